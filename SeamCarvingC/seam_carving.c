@@ -13,7 +13,11 @@
 #define STB_IMAGE_WRITE_IMPLEMENTATION
 #include "stb_image_write.h"
 
+#ifdef SEAMCARVE_HEADLESS
+#include <sys/resource.h>
+#else
 #include <SDL.h>
+#endif
 
 // --- Constants & Structs ---
 
@@ -461,6 +465,123 @@ void seam_carve(Image *img, int mode) {
     }
 }
 
+#ifdef SEAMCARVE_HEADLESS
+
+// --- Headless Benchmark Main ---
+// Built by `make bench` without SDL. Carves a fixed number of seams in one direction,
+// writes every seam path to a trace file and the result as a binary PPM, and prints
+// per-phase timings as key=value pairs for the Java conformance harness.
+
+double now_ms() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000.0 + ts.tv_nsec / 1e6;
+}
+
+long peak_rss_kb() {
+    struct rusage usage;
+    getrusage(RUSAGE_SELF, &usage);
+#ifdef __APPLE__
+    return usage.ru_maxrss / 1024; // bytes on macOS
+#else
+    return usage.ru_maxrss; // kilobytes on Linux
+#endif
+}
+
+void save_ppm(const char *filename, Image *img) {
+    FILE *f = fopen(filename, "wb");
+    if (!f) {
+        fprintf(stderr, "Error writing image to %s\n", filename);
+        return;
+    }
+    fprintf(f, "P6\n%d %d\n255\n", img->width, img->height);
+    for (int y = 0; y < img->height; y++) {
+        for (int x = 0; x < img->width; x++) {
+            uint32_t c = img->pixels[y][x]->color;
+            unsigned char rgb[3] = { (c >> 16) & 0xFF, (c >> 8) & 0xFF, c & 0xFF };
+            fwrite(rgb, 1, 3, f);
+        }
+    }
+    fclose(f);
+}
+
+void write_path(FILE *trace, char direction, int *path, int length) {
+    fputc(direction, trace);
+    for (int i = 0; i < length; i++) {
+        fprintf(trace, " %d", path[i]);
+    }
+    fputc('\n', trace);
+}
+
+int main(int argc, char **argv) {
+    if (argc < 6) {
+        printf("Usage: %s <image_file> <seams> <v|h> <trace_file> <output.ppm>\n", argv[0]);
+        return 1;
+    }
+    int seams = atoi(argv[2]);
+    int mode = (argv[3][0] == 'h') ? 1 : 0;
+    FILE *trace = fopen(argv[4], "w");
+    if (!trace) {
+        fprintf(stderr, "Error writing trace to %s\n", argv[4]);
+        return 1;
+    }
+
+    pixel_init_border();
+
+    double start = now_ms();
+    Image *img = load_image(argv[1]);
+    double load_ms = now_ms() - start;
+
+    start = now_ms();
+    construct_pixel_graph(img);
+    double graph_ms = now_ms() - start;
+
+    double find_ms = 0;
+    double remove_ms = 0;
+    int done = 0;
+    for (; done < seams && img->width > 1 && img->height > 1; done++) {
+        if (mode == 0) {
+            start = now_ms();
+            int *path = find_seam(img);
+            find_ms += now_ms() - start;
+            write_path(trace, 'v', path, img->height);
+
+            start = now_ms();
+            remove_vertical_seam_logic(img, path);
+            remove_ms += now_ms() - start;
+            free(path);
+        } else {
+            // same steps as seam_carve(), with the transposes counted as removal work
+            start = now_ms();
+            Image *transposed = transpose_image_array(img);
+            remove_ms += now_ms() - start;
+
+            start = now_ms();
+            int *path = find_seam(transposed);
+            find_ms += now_ms() - start;
+            write_path(trace, 'h', path, transposed->height);
+
+            start = now_ms();
+            remove_horizontal_seam_logic(transposed, path);
+            update_from_transposed(img, transposed);
+            free_image_struct(transposed);
+            remove_ms += now_ms() - start;
+            free(path);
+        }
+    }
+    fclose(trace);
+    save_ppm(argv[5], img);
+
+    double carve_ms = find_ms + remove_ms;
+    printf("impl=c seams=%d load_ms=%.3f graph_ms=%.3f find_ms=%.3f remove_ms=%.3f "
+           "seams_per_sec=%.1f peak_rss_kb=%ld\n",
+           done, load_ms, graph_ms, find_ms, remove_ms,
+           (carve_ms > 0) ? done * 1000.0 / carve_ms : 0.0, peak_rss_kb());
+    return 0;
+}
+
+#else
+
 // --- GUI Main ---
 
 void update_texture(SDL_Texture *texture, Image *img) {
@@ -613,3 +734,5 @@ int main(int argc, char **argv) {
 
     return 0;
 }
+
+#endif
@@ -0,0 +1,20 @@
+// represents the bulk energy and DP passes over flat planes of doubles
+// (unlike the rest of the program, it has its own source file: the Vector API kernel in src17
+// implements it, and javac warns about classes used outside the file that declares them)
+interface IEnergyKernel {
+
+  // computes the energy of every pixel of a w x h image from the given brightness
+  // plane, which is padded by one black border pixel on every side
+  void energies(double[] brightness, int w, int h, double[] out);
+
+  // computes the energies as above into the given buffer from the given index on (so a block
+  // of rows can write its part of a larger plane)
+  void energies(double[] brightness, int w, int h, double[] out, int offset);
+
+  // computes one DP row: next[x + 1] = min(prev[x], prev[x + 1], prev[x + 2]) + energy[offset + x]
+  // and records the chosen parent column at parents[offset + x]; prev and next are padded
+  // with +infinity on both ends
+  void minPlusAdd(double[] prev, double[] energy, int offset, double[] next, int[] parents,
+      int w);
+
+}
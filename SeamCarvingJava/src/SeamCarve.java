@@ -1,5 +1,73 @@
+import com.sun.management.ThreadMXBean;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.RandomAccess;
 import java.util.Stack;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 
 import tester.*;
 import javalib.impworld.*;
@@ -403,8 +471,149 @@ class Pixel extends APixel {
 
 }
 
+// represents one row of pixels (or column, once transposed) stored as a gap buffer
+// The free slots of the buffer sit wherever the row was last edited. Seams that are removed
+// one after another cross each row close to each other, and undoing a seam re-inserts it
+// exactly where it was removed, so each edit only moves the pixels between two neighboring
+// crossings instead of half the row like ArrayList.remove and ArrayList.add do.
+class PixelRow extends AbstractList<Pixel> implements RandomAccess {
+
+  static final int MIN_GAP = 8;
+
+  Pixel[] items;
+  int gapStart;
+  int gapEnd;
+
+  // creates an empty row
+  PixelRow() {
+    this.items = new Pixel[MIN_GAP];
+    this.gapStart = 0;
+    this.gapEnd = MIN_GAP;
+  }
+
+  // creates a row holding the given pixels, with the gap at its end
+  PixelRow(Collection<Pixel> pixels) {
+    this.items = pixels.toArray(new Pixel[pixels.size() + MIN_GAP]);
+    this.gapStart = pixels.size();
+    this.gapEnd = this.items.length;
+  }
+
+  // returns the number of pixels in this row
+  public int size() {
+    return this.items.length - (this.gapEnd - this.gapStart);
+  }
+
+  // returns the pixel at the given position
+  public Pixel get(int index) {
+    Objects.checkIndex(index, this.size());
+    return this.items[this.slot(index)];
+  }
+
+  // replaces the pixel at the given position and returns the old one
+  public Pixel set(int index, Pixel pixel) {
+    Objects.checkIndex(index, this.size());
+    int slot = this.slot(index);
+    Pixel old = this.items[slot];
+    this.items[slot] = pixel;
+    return old;
+  }
+
+  // inserts the given pixel at the given position
+  public void add(int index, Pixel pixel) {
+    Objects.checkIndex(index, this.size() + 1);
+    this.modCount += 1;
+    if (this.gapStart == this.gapEnd) {
+      this.grow();
+    }
+    this.moveGap(index);
+    this.items[this.gapStart] = pixel;
+    this.gapStart += 1;
+  }
+
+  // removes and returns the pixel at the given position
+  public Pixel remove(int index) {
+    Objects.checkIndex(index, this.size());
+    this.modCount += 1;
+    this.moveGap(index);
+    Pixel pixel = this.items[this.gapEnd];
+    this.items[this.gapEnd] = null;
+    this.gapEnd += 1;
+    return pixel;
+  }
+
+  // returns the buffer slot of the pixel at the given position
+  int slot(int index) {
+    return (index < this.gapStart) ? index : index + this.gapEnd - this.gapStart;
+  }
+
+  // moves the gap so that it starts at the given position
+  void moveGap(int index) {
+    int gap = this.gapEnd - this.gapStart;
+    if (index < this.gapStart) {
+      int moved = this.gapStart - index;
+      System.arraycopy(this.items, index, this.items, this.gapEnd - moved, moved);
+      Arrays.fill(this.items, index, Math.min(index + gap, this.gapStart), null);
+    }
+    else if (index > this.gapStart) {
+      int moved = index - this.gapStart;
+      System.arraycopy(this.items, this.gapEnd, this.items, this.gapStart, moved);
+      Arrays.fill(this.items, Math.max(this.gapEnd, index), this.gapEnd + moved, null);
+    }
+    this.gapStart = index;
+    this.gapEnd = index + gap;
+  }
+
+  // doubles the capacity of this row, keeping the gap where it is
+  void grow() {
+    int extra = Math.max(MIN_GAP, this.items.length);
+    Pixel[] bigger = new Pixel[this.items.length + extra];
+    System.arraycopy(this.items, 0, bigger, 0, this.gapStart);
+    int tail = this.items.length - this.gapEnd;
+    System.arraycopy(this.items, this.gapEnd, bigger, bigger.length - tail, tail);
+    this.gapEnd = bigger.length - tail;
+    this.items = bigger;
+  }
+
+}
+
+// represents one column of the rows of an image as a list, without copying it, so that a
+// horizontal seam finds its pixel in a column the way a vertical seam does in a row
+class PixelColumn extends AbstractList<Pixel> implements RandomAccess {
+
+  final ArrayList<PixelRow> rows;
+  final int column;
+  final int height;
+
+  // creates a view of the given column of the given number of rows from the top
+  PixelColumn(ArrayList<PixelRow> rows, int column, int height) {
+    this.rows = rows;
+    this.column = column;
+    this.height = height;
+  }
+
+  // returns the number of pixels in this column
+  public int size() {
+    return this.height;
+  }
+
+  // returns the pixel in the given row of this column
+  public Pixel get(int index) {
+    Objects.checkIndex(index, this.height);
+    return this.rows.get(index).get(this.column);
+  }
+
+}
+
 // represents a class of utilities
 class Utils {
+
+  // a border pixel to compare against (border pixels are all the same)
+  static final BorderPixel BORDER = new BorderPixel();
+  // the planes above this many pixels are searched by splitPath rather than with a parent
+  // for every pixel (which would take 64 MB here)
+  static final long SPLIT_PATH_PIXELS = 1L << 24;
+  // the rows of the blocks in which splitPath keeps the parents
+  static final int SPLIT_PATH_ROWS = 256;
   
   private static Utils instance = new Utils();
 
@@ -425,19 +634,30 @@ class Utils {
   }
 
   // constructs a valid graph of pixels
-  ArrayList<ArrayList<Pixel>> constructPixelGraph(FromFileImage image) {
-    ArrayList<ArrayList<Pixel>> result = new ArrayList<>();
+  ArrayList<PixelRow> constructPixelGraph(FromFileImage image) {
+    Color[][] colors = new Color[(int) image.getHeight()][(int) image.getWidth()];
+    for (int y = 0; y < colors.length; y += 1) {
+      for (int x = 0; x < colors[y].length; x += 1) {
+        colors[y][x] = image.getColorAt(x, y);
+      }
+    }
+    return this.constructPixelGraph(colors);
+  }
+
+  // constructs a valid graph of pixels from the given rows of colors
+  ArrayList<PixelRow> constructPixelGraph(Color[][] colors) {
+    ArrayList<PixelRow> result = new ArrayList<>();
     Pixel pixel = new Pixel();
     IPixel frontOfRow = new BorderPixel();
-    for (int y = 0; y < (int) image.getHeight(); y += 1) {
-      ArrayList<Pixel> row = new ArrayList<>();
-      Pixel newFront = new Pixel(image.getColorAt(0, y));
+    for (int y = 0; y < colors.length; y += 1) {
+      PixelRow row = new PixelRow();
+      Pixel newFront = new Pixel(colors[y][0]);
       this.connectDownToUp(newFront, frontOfRow);
       frontOfRow = newFront;
       pixel = newFront;
       row.add(pixel);
-      for (int x = 1; x < (int) image.getWidth(); x += 1) {
-        Pixel nextPixel = new Pixel(image.getColorAt(x, y));
+      for (int x = 1; x < colors[y].length; x += 1) {
+        Pixel nextPixel = new Pixel(colors[y][x]);
         this.connectLeftToRight(pixel, nextPixel);
         this.connectDownToUp(nextPixel, pixel.getUp().getRight());
         pixel = nextPixel;
@@ -450,106 +670,637 @@ class Utils {
 
   // is every pixel in the given list of pixels part of a well formed graph of
   // pixels?
-  boolean verifyPixelGraph(ArrayList<ArrayList<Pixel>> pixels) {
-    boolean everythingIsOKForNow = true;
-    // for (ArrayList<Pixel> pixelRow : pixels) {
-    //   for (IPixel pixel : pixelRow) {
-    //     everythingIsOKForNow = pixel.getUp().getRight().sameIPixelAs(pixel.getRight().getUp())
-    //         && pixel.getUp().getLeft().sameIPixelAs(pixel.getLeft().getUp())
-    //         && pixel.getDown().getLeft().sameIPixelAs(pixel.getLeft().getDown())
-    //         && pixel.getDown().getRight().sameIPixelAs(pixel.getRight().getDown());
-    //     if (!everythingIsOKForNow) {
-    //       return everythingIsOKForNow;
-    //     }
-    //   }
-    // }
-    return everythingIsOKForNow;
+  // (checks every pixel, so it costs as much as finding a seam; GraphValidator checks only
+  // the pixels around the last seam)
+  boolean verifyPixelGraph(ArrayList<PixelRow> pixels) {
+    for (PixelRow pixelRow : pixels) {
+      for (IPixel pixel : pixelRow) {
+        if (!this.wellFormedAt(pixel)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  // is the given pixel linked back by each of its neighbors that is not a border, and do the
+  // four squares of pixels around it close?
+  boolean wellFormedAt(IPixel pixel) {
+    IPixel up = pixel.getUp();
+    IPixel down = pixel.getDown();
+    IPixel left = pixel.getLeft();
+    IPixel right = pixel.getRight();
+    return this.linksBack(up, up.getDown(), pixel) && this.linksBack(down, down.getUp(), pixel)
+        && this.linksBack(left, left.getRight(), pixel)
+        && this.linksBack(right, right.getLeft(), pixel)
+        && up.getRight().sameIPixelAs(right.getUp()) && up.getLeft().sameIPixelAs(left.getUp())
+        && down.getLeft().sameIPixelAs(left.getDown())
+        && down.getRight().sameIPixelAs(right.getDown());
+  }
+
+  // is the given neighbor a border, or is its link back the given pixel?
+  boolean linksBack(IPixel neighbor, IPixel back, IPixel pixel) {
+    return neighbor.sameIPixelAs(BORDER) || back == pixel;
+  }
+
+  // returns the brightness of every pixel in the given list of pixels as a plane
+  // padded by one black border pixel on every side
+  double[] brightnessPlane(ArrayList<PixelRow> pixels) {
+    double[] plane = new double[(pixels.get(0).size() + 2) * (pixels.size() + 2)];
+    this.brightnessPlane(pixels, plane);
+    return plane;
+  }
+
+  // writes the brightness plane of the given pixels (padded as above) into the start of the
+  // given buffer, which may be larger and hold anything
+  void brightnessPlane(ArrayList<PixelRow> pixels, double[] plane) {
+    int h = pixels.size();
+    int w = pixels.get(0).size();
+    int stride = w + 2;
+    Arrays.fill(plane, 0, stride, 0);
+    Arrays.fill(plane, (h + 1) * stride, (h + 2) * stride, 0);
+    for (int y = 0; y < h; y += 1) {
+      PixelRow row = pixels.get(y);
+      int offset = (y + 1) * stride + 1;
+      plane[offset - 1] = 0;
+      for (int x = 0; x < w; x += 1) {
+        plane[offset + x] = row.get(x).brightness();
+      }
+      plane[offset + w] = 0;
+    }
   }
 
   // returns an arraylist of seams at the bottom row of pixels
-  ArrayList<ASeamInfo> seamify(ArrayList<ArrayList<Pixel>> pixels, boolean isVert) {
+  ArrayList<ASeamInfo> seamify(ArrayList<PixelRow> pixels, boolean isVert) {
+    return this.seamify(pixels, isVert, new SeamWorkspace());
+  }
+
+  // returns an arraylist of seams at the bottom row of pixels, using the given workspace for
+  // the planes and the DP instead of allocating them
+  ArrayList<ASeamInfo> seamify(ArrayList<PixelRow> pixels, boolean isVert,
+      SeamWorkspace workspace) {
     if (pixels.isEmpty() || pixels.get(0).isEmpty()) {
       return new ArrayList<ASeamInfo>();
     }
 
     int h = pixels.size();
     int w = pixels.get(0).size();
+    IEnergyKernel kernel = EnergyKernels.get();
 
-    double[] rowEnergies = new double[w];
-    int[][] parentIndices = new int[h][w];
+    workspace.reserve(w, h);
+    this.energyPlane(pixels, kernel, workspace);
+    this.cheapestPath(workspace.energies, w, h, kernel, workspace);
+    this.pathWeights(workspace.energies, w, workspace.path, h, workspace.weights);
+    return this.makeSeams(pixels, workspace.path, workspace.weights, isVert);
+  }
 
-    // Initialize first row
-    for (int x = 0; x < w; x++) {
-      rowEnergies[x] = pixels.get(0).get(x).energy();
-      parentIndices[0][x] = -1;
+  // returns the cheapest horizontal seam of the given rows, which are not transposed, as the
+  // only element of a list: only the energy plane is transposed, into the given workspace (in
+  // fixed point, into a new plane), and the seam's index in each column is its row
+  ArrayList<ASeamInfo> seamifyAcross(ArrayList<PixelRow> pixels, boolean fixedPoint,
+      SeamWorkspace workspace) {
+    ArrayList<ASeamInfo> result = new ArrayList<>();
+    if (pixels.isEmpty() || pixels.get(0).isEmpty()) {
+      return result;
     }
 
-    double[] nextRowEnergies = new double[w];
+    int h = pixels.size();
+    int w = pixels.get(0).size();
+    int[] path;
+    double[] weights;
+    if (fixedPoint) {
+      FixedPointKernel kernel = new FixedPointKernel();
+      int[] transposed = this.transposePlane(this.energyPlane(pixels, kernel), w, h);
+      path = this.cheapestPath(transposed, h, w, kernel);
+      weights = this.pathWeights(transposed, h, path);
+    }
+    else {
+      IEnergyKernel kernel = EnergyKernels.get();
+      workspace.reserve(w, h);
+      this.energyPlane(pixels, kernel, workspace);
+      this.transposePlane(workspace.energies, w, h, workspace.transposed);
+      this.cheapestPath(workspace.transposed, h, w, kernel, workspace);
+      this.pathWeights(workspace.transposed, h, workspace.path, w, workspace.weights);
+      path = workspace.path;
+      weights = workspace.weights;
+    }
+    Pixel[] seamPixels = new Pixel[w];
+    for (int x = 0; x < w; x += 1) {
+      seamPixels[x] = pixels.get(path[x]).get(x);
+    }
+    result.add(this.makeSeam(seamPixels, path, weights, false));
+    return result;
+  }
 
-    // DP
-    for (int y = 1; y < h; y++) {
-      ArrayList<Pixel> currentRow = pixels.get(y);
-      for (int x = 0; x < w; x++) {
-        Pixel p = currentRow.get(x);
-        double energy = p.energy();
+  // returns an arraylist of seams at the bottom row of pixels, computed in fixed point:
+  // channel sums as shorts, L1 Sobel magnitudes as ints and saturating int costs
+  // (seam weights are in those integer units rather than brightness units)
+  ArrayList<ASeamInfo> seamifyFixedPoint(ArrayList<PixelRow> pixels, boolean isVert) {
+    if (pixels.isEmpty() || pixels.get(0).isEmpty()) {
+      return new ArrayList<ASeamInfo>();
+    }
 
-        double minC = rowEnergies[x];
-        int minIdx = x;
+    int h = pixels.size();
+    int w = pixels.get(0).size();
+    FixedPointKernel kernel = new FixedPointKernel();
 
-        // Check top-left
-        if (x > 0 && rowEnergies[x - 1] < minC) {
-          minC = rowEnergies[x - 1];
-          minIdx = x - 1;
-        }
-        // Check top-right
-        if (x < w - 1 && rowEnergies[x + 1] < minC) {
-          minC = rowEnergies[x + 1];
-          minIdx = x + 1;
-        }
+    int[] energies = this.energyPlane(pixels, kernel);
+    int[] path = this.cheapestPath(energies, w, h, kernel);
+    return this.makeSeams(pixels, path, this.pathWeights(energies, w, path), isVert);
+  }
+
+  // returns the cost of the cheapest fixed-point seam ending at each column (for vertical
+  // seams) or row (for horizontal ones) of the given pixels, in cells 1..w or 1..h
+  double[] fixedPointEnds(ArrayList<PixelRow> pixels, boolean isVert) {
+    int h = pixels.size();
+    int w = pixels.get(0).size();
+    FixedPointKernel kernel = new FixedPointKernel();
+    int[] energies = this.energyPlane(pixels, kernel);
+    if (!isVert) {
+      energies = this.transposePlane(energies, w, h);
+      int t = w;
+      w = h;
+      h = t;
+    }
+    double[] ends = new double[w + 2];
+    this.cheapestPath(energies, w, h, kernel, ends);
+    return ends;
+  }
+
+  // returns the cheapest vertical seam and then the cheapest horizontal seam of the given
+  // pixels; the energy plane is computed once and both DPs run at the same time on two threads
+  ArrayList<ASeamInfo> seamifyBoth(ArrayList<PixelRow> pixels, boolean fixedPoint) {
+    return this.seamifyBoth(pixels, fixedPoint, null);
+  }
+
+  // returns the cheapest vertical and horizontal seams of the given pixels as above, scoring
+  // them with the given energy function, or the Sobel energy of the kernels if it is null (the
+  // fixed-point search always uses the Sobel energy)
+  ArrayList<ASeamInfo> seamifyBoth(ArrayList<PixelRow> pixels, boolean fixedPoint,
+      IEnergyFunction energy) {
+    ArrayList<ASeamInfo> result = new ArrayList<>();
+    if (pixels.isEmpty() || pixels.get(0).isEmpty()) {
+      return result;
+    }
 
-        nextRowEnergies[x] = minC + energy;
-        parentIndices[y][x] = minIdx;
+    int h = pixels.size();
+    int w = pixels.get(0).size();
+    int[] vertPath;
+    int[] horizPath;
+    double[] vertWeights;
+    double[] horizWeights;
+    if (fixedPoint) {
+      FixedPointKernel kernel = new FixedPointKernel();
+      int[] energies = this.energyPlane(pixels, kernel);
+      int[] transposed = this.transposePlane(energies, w, h);
+      CompletableFuture<int[]> horiz = CompletableFuture
+          .supplyAsync(() -> this.cheapestPath(transposed, h, w, kernel));
+      vertPath = this.cheapestPath(energies, w, h, kernel);
+      horizPath = horiz.join();
+      vertWeights = this.pathWeights(energies, w, vertPath);
+      horizWeights = this.pathWeights(transposed, h, horizPath);
+    }
+    else {
+      IEnergyKernel kernel = EnergyKernels.get();
+      double[] energies = new double[w * h];
+      if (energy == null) {
+        this.energyPlane(pixels, kernel, null, energies);
       }
-      System.arraycopy(nextRowEnergies, 0, rowEnergies, 0, w);
+      else {
+        this.energyPlane(pixels, energy, energies);
+      }
+      double[] transposed = this.transposePlane(energies, w, h);
+      CompletableFuture<int[]> horiz = CompletableFuture
+          .supplyAsync(() -> this.cheapestPath(transposed, h, w, kernel));
+      vertPath = this.cheapestPath(energies, w, h, kernel);
+      horizPath = horiz.join();
+      vertWeights = this.pathWeights(energies, w, vertPath);
+      horizWeights = this.pathWeights(transposed, h, horizPath);
+    }
+
+    Pixel[] horizPixels = new Pixel[w];
+    for (int x = 0; x < w; x += 1) {
+      horizPixels[x] = pixels.get(horizPath[x]).get(x);
+    }
+    result.add(this.makeSeams(pixels, vertPath, vertWeights, true).get(0));
+    result.add(this.makeSeam(horizPixels, horizPath, horizWeights, false));
+    return result;
+  }
+
+  // returns whichever of the given vertical and horizontal seams of a w x h image costs less
+  // per pixel removed (the vertical one on a tie)
+  ASeamInfo cheaperSeam(ASeamInfo vert, ASeamInfo horiz, int w, int h) {
+    if (vert.totalWeight / h <= horiz.totalWeight / w) {
+      return vert;
+    }
+    return horiz;
+  }
+
+  // returns the column in each row of the cheapest top-to-bottom path through the given
+  // w x h energy plane
+  int[] cheapestPath(double[] energies, int w, int h, IEnergyKernel kernel) {
+    SeamWorkspace workspace = new SeamWorkspace();
+    workspace.reservePath(w, h);
+    this.cheapestPath(energies, w, h, kernel, workspace);
+    return Arrays.copyOf(workspace.path, h);
+  }
+
+  // finds the cheapest top-to-bottom path through the given w x h energy plane into the
+  // first h columns of the given workspace's path, using only the workspace's buffers
+  void cheapestPath(double[] energies, int w, int h, IEnergyKernel kernel,
+      SeamWorkspace workspace) {
+    if (Utils.splitsPath(w, h)) {
+      this.splitPath(energies, w, h, kernel, workspace);
+    }
+    else {
+      this.tablePath(energies, w, h, kernel, workspace);
+    }
+  }
+
+  // is the path through a w x h plane found by splitPath?
+  static boolean splitsPath(int w, int h) {
+    return (long) w * h > SPLIT_PATH_PIXELS;
+  }
+
+  // finds the cheapest path like cheapestPath, keeping the parent of every pixel to backtrack
+  void tablePath(double[] energies, int w, int h, IEnergyKernel kernel,
+      SeamWorkspace workspace) {
+    // cost rows are padded with +infinity so the kernel never checks the edges
+    double[] rowEnergies = workspace.costs;
+    double[] nextRowEnergies = workspace.nextCosts;
+    rowEnergies[0] = Double.POSITIVE_INFINITY;
+    rowEnergies[w + 1] = Double.POSITIVE_INFINITY;
+    nextRowEnergies[0] = Double.POSITIVE_INFINITY;
+    nextRowEnergies[w + 1] = Double.POSITIVE_INFINITY;
+    int[] parentIndices = workspace.parents;
+
+    // Initialize first row
+    System.arraycopy(energies, 0, rowEnergies, 1, w);
+
+    // DP
+    for (int y = 1; y < h; y++) {
+      kernel.minPlusAdd(rowEnergies, energies, y * w, nextRowEnergies, parentIndices, w);
+      double[] temp = rowEnergies;
+      rowEnergies = nextRowEnergies;
+      nextRowEnergies = temp;
     }
 
     // Find best seam end
+    workspace.ends = rowEnergies;
     double minTotal = Double.MAX_VALUE;
     int minIdx = -1;
     for (int x = 0; x < w; x++) {
-      if (rowEnergies[x] < minTotal) {
-        minTotal = rowEnergies[x];
+      if (rowEnergies[x + 1] < minTotal) {
+        minTotal = rowEnergies[x + 1];
+        minIdx = x;
+      }
+    }
+    this.backtrack(parentIndices, w, h, minIdx, workspace.path);
+  }
+
+  // finds the same path as tablePath without keeping a parent for every pixel (Hirschberg):
+  // the rows are split in half, and one DP pass over them tracks, for every cell, where its
+  // cheapest path crosses the middle row; the path through that crossing is then found in
+  // each half the same way, down to blocks of SPLIT_PATH_ROWS rows that keep their parents
+  // The state is one block of parents and a cost row per level, O(w log h) rather than w x h,
+  // for about log2(h / SPLIT_PATH_ROWS) more DP passes.
+  void splitPath(double[] energies, int w, int h, IEnergyKernel kernel,
+      SeamWorkspace workspace) {
+    double[] top = workspace.splitCosts(0, w);
+    top[0] = Double.POSITIVE_INFINITY;
+    top[w + 1] = Double.POSITIVE_INFINITY;
+    System.arraycopy(energies, 0, top, 1, w);
+    workspace.costs[0] = Double.POSITIVE_INFINITY;
+    workspace.nextCosts[0] = Double.POSITIVE_INFINITY;
+    this.splitRows(energies, w, 0, h - 1, -1, kernel, workspace, 0);
+  }
+
+  // finds rows lo to hi of the cheapest path into the workspace's path, from the cost row of
+  // row lo (the start row of the given level) and the column of the path in row hi, or -1 if
+  // row hi is the last one and the path ends at its cheapest cell
+  void splitRows(double[] energies, int w, int lo, int hi, int end, IEnergyKernel kernel,
+      SeamWorkspace ws, int depth) {
+    double[] costs = ws.costs;
+    double[] nextCosts = ws.nextCosts;
+    System.arraycopy(ws.splitCosts[depth], 0, costs, 0, w + 2);
+    nextCosts[w + 1] = Double.POSITIVE_INFINITY;
+    boolean block = hi - lo <= SPLIT_PATH_ROWS;
+    int mid = (lo + hi) >>> 1;
+    double[] midCosts = block ? null : ws.splitCosts(depth + 1, w);
+    int[] through = ws.through;
+    int[] nextThrough = ws.nextThrough;
+    for (int y = lo + 1; y <= hi; y += 1) {
+      // the kernel writes the parents where it reads the energies, so each row is copied out
+      System.arraycopy(energies, y * w, ws.rowEnergies, 0, w);
+      kernel.minPlusAdd(costs, ws.rowEnergies, 0, nextCosts, ws.rowParents, w);
+      if (block) {
+        System.arraycopy(ws.rowParents, 0, ws.parents, (y - lo - 1) * w, w);
+      }
+      else if (y == mid + 1) {
+        System.arraycopy(ws.rowParents, 0, through, 0, w);
+      }
+      else if (y > mid) {
+        for (int x = 0; x < w; x += 1) {
+          nextThrough[x] = through[ws.rowParents[x]];
+        }
+        int[] temp = through;
+        through = nextThrough;
+        nextThrough = temp;
+      }
+      double[] temp = costs;
+      costs = nextCosts;
+      nextCosts = temp;
+      if (y == mid && !block) {
+        System.arraycopy(costs, 0, midCosts, 0, w + 2);
+      }
+    }
+    if (end < 0) {
+      end = 0;
+      for (int x = 1; x < w; x += 1) {
+        if (costs[x + 1] < costs[end + 1]) {
+          end = x;
+        }
+      }
+      System.arraycopy(costs, 0, ws.splitEnds, 0, w + 2);
+      ws.ends = ws.splitEnds;
+    }
+    ws.path[hi] = end;
+    if (block) {
+      int x = end;
+      for (int y = hi; y > lo; y -= 1) {
+        ws.path[y] = x;
+        x = ws.parents[(y - lo - 1) * w + x];
+      }
+      ws.path[lo] = x;
+    }
+    else {
+      int crossing = through[end];
+      this.splitRows(energies, w, mid, hi, end, kernel, ws, depth + 1);
+      this.splitRows(energies, w, lo, mid, crossing, kernel, ws, depth);
+    }
+  }
+
+  // returns the column in each row of the cheapest top-to-bottom path through the given
+  // w x h fixed-point energy plane
+  int[] cheapestPath(int[] energies, int w, int h, FixedPointKernel kernel) {
+    return this.cheapestPath(energies, w, h, kernel, null);
+  }
+
+  // returns the cheapest path through the given fixed-point plane as above, also writing the
+  // cost of the cheapest path ending at each column into cells 1..w of the given ends, unless
+  // it is null
+  int[] cheapestPath(int[] energies, int w, int h, FixedPointKernel kernel, double[] ends) {
+    int[] rowCosts = new int[w + 2];
+    int[] nextRowCosts = new int[w + 2];
+    rowCosts[0] = Integer.MAX_VALUE;
+    rowCosts[w + 1] = Integer.MAX_VALUE;
+    nextRowCosts[0] = Integer.MAX_VALUE;
+    nextRowCosts[w + 1] = Integer.MAX_VALUE;
+    int[] parentIndices = new int[w * h];
+    System.arraycopy(energies, 0, rowCosts, 1, w);
+
+    for (int y = 1; y < h; y++) {
+      kernel.minPlusAdd(rowCosts, energies, y * w, nextRowCosts, parentIndices, w);
+      int[] temp = rowCosts;
+      rowCosts = nextRowCosts;
+      nextRowCosts = temp;
+    }
+
+    if (ends != null) {
+      for (int x = 1; x <= w; x++) {
+        ends[x] = rowCosts[x];
+      }
+    }
+    int minIdx = 0;
+    for (int x = 1; x < w; x++) {
+      if (rowCosts[x + 1] < rowCosts[minIdx + 1]) {
         minIdx = x;
       }
     }
+    return this.backtrack(parentIndices, w, h, minIdx);
+  }
+
+  // returns the energy of the pixel on the given path in each row of the given plane
+  double[] pathWeights(double[] energies, int w, int[] path) {
+    double[] weights = new double[path.length];
+    this.pathWeights(energies, w, path, path.length, weights);
+    return weights;
+  }
+
+  // writes the energy of the pixel on the given path in each of the first h rows of the given
+  // plane into the given buffer
+  void pathWeights(double[] energies, int w, int[] path, int h, double[] weights) {
+    for (int y = 0; y < h; y++) {
+      weights[y] = energies[y * w + path[y]];
+    }
+  }
+
+  // returns the energy of the pixel on the given path in each row of the given plane
+  double[] pathWeights(int[] energies, int w, int[] path) {
+    double[] weights = new double[path.length];
+    for (int y = 0; y < path.length; y++) {
+      weights[y] = energies[y * w + path[y]];
+    }
+    return weights;
+  }
+
+  // returns the transpose of the given w x h plane
+  double[] transposePlane(double[] plane, int w, int h) {
+    double[] result = new double[w * h];
+    this.transposePlane(plane, w, h, result);
+    return result;
+  }
+
+  // writes the transpose of the given w x h plane into the given buffer
+  void transposePlane(double[] plane, int w, int h, double[] result) {
+    for (int y = 0; y < h; y += 1) {
+      for (int x = 0; x < w; x += 1) {
+        result[x * h + y] = plane[y * w + x];
+      }
+    }
+  }
+
+  // returns the transpose of the given w x h plane
+  int[] transposePlane(int[] plane, int w, int h) {
+    int[] result = new int[w * h];
+    for (int y = 0; y < h; y += 1) {
+      for (int x = 0; x < w; x += 1) {
+        result[x * h + y] = plane[y * w + x];
+      }
+    }
+    return result;
+  }
+
+  // writes the energy of every one of the given pixels, computed by the given kernel, into the
+  // start of the given buffer, going through the given buffer (or a new one if null) for the
+  // brightness plane; large images are computed by EnergyPlanes on the common fork-join pool
+  // instead
+  void energyPlane(ArrayList<PixelRow> pixels, IEnergyKernel kernel, double[] brightness,
+      double[] out) {
+    int h = pixels.size();
+    int w = pixels.get(0).size();
+    if (EnergyPlanes.parallel(w, h)) {
+      ForkJoinPool.commonPool().invoke(new EnergyPlanes(pixels, kernel, out,
+          EnergyPlanes.blockRows(w)));
+    }
+    else if (brightness == null) {
+      kernel.energies(this.brightnessPlane(pixels), w, h, out);
+    }
+    else {
+      this.brightnessPlane(pixels, brightness);
+      kernel.energies(brightness, w, h, out);
+    }
+  }
+
+  // writes the energy of every one of the given pixels into the energy buffer of the given
+  // workspace (reserved for them): by the workspace's energy function if it has one, and
+  // otherwise by the given kernel through the workspace's brightness buffer
+  void energyPlane(ArrayList<PixelRow> pixels, IEnergyKernel kernel, SeamWorkspace workspace) {
+    if (workspace.energy == null) {
+      this.energyPlane(pixels, kernel, workspace.brightness, workspace.energies);
+    }
+    else {
+      this.energyPlane(pixels, workspace.energy, workspace.energies);
+    }
+  }
+
+  // writes the energy of every one of the given pixels, computed by the given energy function,
+  // into the start of the given buffer; the function starts following the pixels anew, since
+  // the graph may have changed in any way (seams inserted, rows transposed) since the last one
+  void energyPlane(ArrayList<PixelRow> pixels, IEnergyFunction energy, double[] out) {
+    int h = pixels.size();
+    int w = pixels.get(0).size();
+    int[] argb = new int[w * h];
+    for (int y = 0; y < h; y += 1) {
+      PixelRow row = pixels.get(y);
+      for (int x = 0; x < w; x += 1) {
+        argb[y * w + x] = row.get(x).color.getRGB();
+      }
+    }
+    energy.reset(argb, w, w, h);
+    energy.energies(out);
+  }
+
+  // returns the fixed-point energy of every one of the given pixels, computed by the given
+  // kernel, as above
+  int[] energyPlane(ArrayList<PixelRow> pixels, FixedPointKernel kernel) {
+    int h = pixels.size();
+    int w = pixels.get(0).size();
+    int[] out = new int[w * h];
+    if (EnergyPlanes.parallel(w, h)) {
+      ForkJoinPool.commonPool().invoke(new EnergyPlanes(pixels, kernel, out,
+          EnergyPlanes.blockRows(w)));
+    }
+    else {
+      kernel.energies(this.luminancePlane(pixels), w, h, out);
+    }
+    return out;
+  }
+
+  // returns the channel sum (r + g + b) of every pixel in the given list of pixels as a
+  // plane padded by one black border pixel on every side
+  short[] luminancePlane(ArrayList<PixelRow> pixels) {
+    int h = pixels.size();
+    int w = pixels.get(0).size();
+    int stride = w + 2;
+    short[] plane = new short[stride * (h + 2)];
+    for (int y = 0; y < h; y += 1) {
+      PixelRow row = pixels.get(y);
+      int offset = (y + 1) * stride + 1;
+      for (int x = 0; x < w; x += 1) {
+        int rgb = row.get(x).color.getRGB();
+        plane[offset + x] = (short) (((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF));
+      }
+    }
+    return plane;
+  }
 
-    // Reconstruct path
+  // returns the column of the seam in every row, following the given w x h table of parent
+  // columns up from the given column of the bottom row
+  int[] backtrack(int[] parentIndices, int w, int h, int end) {
     int[] path = new int[h];
-    int currX = minIdx;
+    this.backtrack(parentIndices, w, h, end, path);
+    return path;
+  }
+
+  // writes the column of the seam in every row into the given buffer, as above
+  void backtrack(int[] parentIndices, int w, int h, int end, int[] path) {
+    int currX = end;
     for (int y = h - 1; y >= 0; y--) {
       path[y] = currX;
-      currX = parentIndices[y][currX];
+      currX = parentIndices[y * w + currX];
+    }
+  }
+
+  // returns the seam through the given columns of each row as a SeamInfo linked list
+  // (top to bottom), accumulating the given per-row weights
+  ArrayList<ASeamInfo> makeSeams(ArrayList<PixelRow> pixels, int[] path,
+      double[] weights, boolean isVert) {
+    Pixel[] seamPixels = new Pixel[pixels.size()];
+    for (int y = 0; y < seamPixels.length; y++) {
+      seamPixels[y] = pixels.get(y).get(path[y]);
     }
+    ArrayList<ASeamInfo> result = new ArrayList<>();
+    result.add(this.makeSeam(seamPixels, path, weights, isVert));
+    return result;
+  }
 
-    // Build SeamInfo linked list (top to bottom)
+  // returns the seam through the given pixels (one per row of the seam's orientation, at the
+  // given indices) as a SeamInfo linked list, accumulating the given per-row weights
+  ASeamInfo makeSeam(Pixel[] seamPixels, int[] path, double[] weights, boolean isVert) {
     ASeamInfo lastSeam = null;
     double currentTotalWeight = 0;
 
-    for (int y = 0; y < h; y++) {
-      Pixel p = pixels.get(y).get(path[y]);
-      currentTotalWeight += p.energy();
+    for (int y = 0; y < seamPixels.length; y++) {
+      currentTotalWeight += weights[y];
 
       if (isVert) {
-        lastSeam = new VertSeamInfo(p, currentTotalWeight, (VertSeamInfo) lastSeam, path[y]);
+        lastSeam = new VertSeamInfo(seamPixels[y], currentTotalWeight, (VertSeamInfo) lastSeam,
+            path[y]);
       }
       else {
-        lastSeam = new HorizSeamInfo(p, currentTotalWeight, (HorizSeamInfo) lastSeam, path[y]);
+        lastSeam = new HorizSeamInfo(seamPixels[y], currentTotalWeight,
+            (HorizSeamInfo) lastSeam, path[y]);
       }
     }
+    return lastSeam;
+  }
 
-    ArrayList<ASeamInfo> result = new ArrayList<>();
-    result.add(lastSeam);
-    return result;
+  // removes the pixels of the given seam from the given rows of the image without touching
+  // the pixel graph or transposing the rows: a horizontal seam moves the pixels below it up a
+  // row in each column, and drops the last row
+  void removeFromRows(ArrayList<PixelRow> pixels, ASeamInfo seam) {
+    if (seam.isVertical()) {
+      int row = pixels.size() - 1;
+      for (ASeamInfo s = seam; s != null; s = s.cameFrom) {
+        pixels.get(row).remove(s.index);
+        row -= 1;
+      }
+    }
+    else {
+      int col = pixels.get(0).size() - 1;
+      for (ASeamInfo s = seam; s != null; s = s.cameFrom) {
+        for (int row = s.index; row < pixels.size() - 1; row += 1) {
+          pixels.get(row).set(col, pixels.get(row + 1).get(col));
+        }
+        col -= 1;
+      }
+      if (pixels.size() > 1) {
+        pixels.remove(pixels.size() - 1);
+      }
+      else {
+        pixels.set(0, new PixelRow());
+      }
+    }
+  }
+
+  // returns a copy of the given list of pixels that shares the pixels but not the rows
+  ArrayList<PixelRow> copyRows(ArrayList<PixelRow> pixels) {
+    ArrayList<PixelRow> copy = new ArrayList<>(pixels.size());
+    for (PixelRow row : pixels) {
+      copy.add(new PixelRow(row));
+    }
+    return copy;
   }
 
   // returns the most boring seam coming from the 3 neighbor seams above
@@ -606,432 +1357,7917 @@ class Utils {
     }
   }
 
-  // transposes a given ArrayList of ArrayList of items
+  // transposes a given ArrayList of rows of pixels
   // Note: Output will always have at least one row, but columns may be empty
-  <T> ArrayList<ArrayList<T>> transpose(ArrayList<ArrayList<T>> src) {
-    ArrayList<ArrayList<T>> result = new ArrayList<>();
+  ArrayList<PixelRow> transpose(ArrayList<PixelRow> src) {
+    ArrayList<PixelRow> result = new ArrayList<>();
     int cols = src.get(0).size();
     int rows = (src.get(0).isEmpty()) ? 0 : src.size();
-    for (ArrayList<T> arr : src) {
+    for (PixelRow arr : src) {
       if (arr.size() != cols) {
         throw new IllegalArgumentException("Matrix is invalid");
       }
     }
     for (int col = 0; col < cols; col += 1) {
-      result.add(new ArrayList<>());
+      result.add(new PixelRow());
       for (int row = 0; row < rows; row += 1) {
         result.get(col).add(src.get(row).get(col));
       }
     }
     if (result.isEmpty()) {
-      result.add(new ArrayList<>());
+      result.add(new PixelRow());
     }
     return result;
   }
 
 }
 
-// represents a Seam of pixels
-abstract class ASeamInfo {
-
-  Pixel pixel;
-  double totalWeight;
-  ASeamInfo cameFrom;
-  int index;
+// represents the reusable buffers of the plane-based seam search of one engine
+// The buffers are sized for the largest image (and its transpose) seen so far and then used
+// logically smaller as the image narrows, so after the first seam finding a seam allocates
+// nothing but what the engine keeps of it. A workspace belongs to one thread.
+class SeamWorkspace {
+
+  // the padded brightness plane of the Sobel energy, which only seamify and seamifyAcross
+  // fill (EnergyPlanes keeps one per worker, and seamifyBoth and fixed point their own)
+  double[] brightness = new double[0];
+  double[] energies = new double[0];
+  // the energy plane of the rows transposed, for horizontal seams and the flat carver
+  double[] transposed = new double[0];
+  double[] costs = new double[0];
+  double[] nextCosts = new double[0];
+  int[] parents = new int[0];
+  int[] path = new int[0];
+  double[] weights = new double[0];
+  // the cost row of the last DP, whose cells 1 to the line length hold the total cost of the
+  // cheapest seam ending at each position
+  double[] ends = new double[0];
+  // the buffers of Utils.splitPath: one energy and parent row, where the paths to each cell
+  // cross the middle row, and the cost row where each level of the splits starts
+  double[] rowEnergies = new double[0];
+  int[] rowParents = new int[0];
+  int[] through = new int[0];
+  int[] nextThrough = new int[0];
+  double[][] splitCosts = new double[0][];
+  double[] splitEnds = new double[0];
+  // the energy function Utils.seamify scores the pixels with, or null for the Sobel energy of
+  // the kernels; like the buffers, it follows the image of one thread
+  IEnergyFunction energy = null;
+
+  // makes sure the buffers fit every plane of a w x h image and of its transpose
+  void reserve(int w, int h) {
+    if (this.brightness.length < (w + 2) * (h + 2)) {
+      this.brightness = new double[(w + 2) * (h + 2)];
+    }
+    if (this.energies.length < w * h) {
+      this.energies = new double[w * h];
+      this.transposed = new double[w * h];
+    }
+    this.reservePath(w, h);
+  }
 
-  // creates a seam
-  ASeamInfo(Pixel pixel, double totalWeight, ASeamInfo cameFrom, int index) {
-    this.pixel = pixel;
-    this.totalWeight = totalWeight;
-    this.cameFrom = cameFrom;
-    this.index = index;
+  // makes sure the DP buffers fit a w x h energy plane or its transpose
+  void reservePath(int w, int h) {
+    this.reservePath(w, h, Utils.splitsPath(w, h));
   }
 
-  // creates a seam (legacy/test constructor)
-  ASeamInfo(Pixel pixel, double totalWeight, ASeamInfo cameFrom) {
-    this(pixel, totalWeight, cameFrom, -1);
+  // makes sure the DP buffers fit a w x h energy plane or its transpose, searched by
+  // Utils.splitPath (which only keeps the parents of one block of rows) if split is true
+  void reservePath(int w, int h, boolean split) {
+    int side = Math.max(w, h);
+    int parentCells = split ? Utils.SPLIT_PATH_ROWS * side : w * h;
+    if (this.parents.length < parentCells) {
+      this.parents = new int[parentCells];
+    }
+    if (this.costs.length < side + 2) {
+      this.costs = new double[side + 2];
+      this.nextCosts = new double[side + 2];
+    }
+    if (this.path.length < side) {
+      this.path = new int[side];
+      this.weights = new double[side];
+    }
   }
 
-  // paints the pixels in the seam red
-  public void paintRed() {
-    this.pixel.beingRemoved = true;
-    if (this.cameFrom != null) {
-      this.cameFrom.paintRed();
+  // makes sure the buffers of Utils.splitPath fit lines of the given length, and returns the
+  // start row of the given level of the splits
+  double[] splitCosts(int depth, int length) {
+    if (this.rowEnergies.length < length) {
+      this.rowEnergies = new double[length];
+      this.rowParents = new int[length];
+      this.through = new int[length];
+      this.nextThrough = new int[length];
+      this.splitEnds = new double[length + 2];
+      this.splitCosts = new double[this.splitCosts.length][];
     }
+    if (depth >= this.splitCosts.length) {
+      this.splitCosts = Arrays.copyOf(this.splitCosts, depth + 1);
+    }
+    if (this.splitCosts[depth] == null) {
+      this.splitCosts[depth] = new double[this.rowEnergies.length + 2];
+    }
+    return this.splitCosts[depth];
   }
 
-  // reverts the pixels in the seam to their original color
-  public void unPaintRed() {
-    this.pixel.beingRemoved = false;
-    if (this.cameFrom != null) {
-      this.cameFrom.unPaintRed();
+  // returns the bytes held by the DP buffers
+  long pathBytes() {
+    long bytes = 4L * (this.parents.length + this.path.length + this.rowParents.length
+        + this.through.length + this.nextThrough.length)
+        + 8L * (this.costs.length + this.nextCosts.length + this.weights.length
+        + this.rowEnergies.length + this.splitEnds.length);
+    for (double[] row : this.splitCosts) {
+      bytes += (row == null) ? 0 : 8L * row.length;
     }
+    return bytes;
   }
 
-  // returns the next seam connected to this from the given pixel and weight
-  public abstract ASeamInfo makeNextSeam(Pixel pixel, double weight, int index);
+}
 
-  // legacy/test
-  public ASeamInfo makeNextSeam(Pixel pixel, double weight) {
-    return this.makeNextSeam(pixel, weight, -1);
+// represents seam carving within a rectangular window of a packed image: the window is cut
+// out into its own flat carver, so the energy and the DP of every seam only cover the window,
+// and the pixels around it are never carved but bound its energy
+// When the window spans the image across the seams (all its rows for vertical seams, all its
+// columns for horizontal ones), the image closes around the narrowed window, as when the gap
+// between two subjects is squeezed. Otherwise the image keeps its size, and the cells of the
+// window left empty by the seams are transparent, as when an editor scales a selection down.
+class RegionCarver {
+
+  final int[] image;
+  final int imageWidth;
+  final int imageHeight;
+  final int left;
+  final int top;
+  final int windowWidth;
+  final int windowHeight;
+  final FlatSeamCarver window;
+  // the size of the stitched image
+  int width;
+  int height;
+
+  // creates a carver over the given window of the given packed w x h image (which is not
+  // changed), with the energy and the DP computed by the given kernel
+  RegionCarver(int[] image, int w, int h, int left, int top, int windowWidth,
+      int windowHeight, IEnergyKernel kernel) {
+    if (left < 0 || top < 0 || windowWidth < 1 || windowHeight < 1
+        || left + windowWidth > w || top + windowHeight > h) {
+      throw new IllegalArgumentException("The window " + windowWidth + "x" + windowHeight
+          + " at (" + left + ", " + top + ") does not fit in a " + w + "x" + h + " image");
+    }
+    this.image = image;
+    this.imageWidth = w;
+    this.imageHeight = h;
+    this.left = left;
+    this.top = top;
+    this.windowWidth = windowWidth;
+    this.windowHeight = windowHeight;
+    int[] pixels = new int[windowWidth * windowHeight];
+    for (int y = 0; y < windowHeight; y += 1) {
+      System.arraycopy(image, (top + y) * w + left, pixels, y * windowWidth, windowWidth);
+    }
+    this.window = new FlatSeamCarver(pixels, windowWidth, windowHeight, new WindowSobelEnergy(
+        kernel, image, w, h, left, top, windowWidth, windowHeight), kernel);
+    this.width = w;
+    this.height = h;
   }
 
-  // removes this seam from the given list of pixels and row
-  public abstract void removeSelf(ArrayList<ArrayList<Pixel>> pixels, int pos);
+  // creates a carver over the given window of the given packed w x h image using the fastest
+  // kernel
+  RegionCarver(int[] image, int w, int h, int left, int top, int windowWidth,
+      int windowHeight) {
+    this(image, w, h, left, top, windowWidth, windowHeight, EnergyKernels.get());
+  }
 
-  // inserts this seam into the given list of pixels
-  public abstract ArrayList<ArrayList<Pixel>> insert(ArrayList<ArrayList<Pixel>> pixels);
+  // does the window span the image across seams of the given direction?
+  boolean spans(boolean isVert) {
+    return isVert ? this.windowHeight == this.imageHeight : this.windowWidth == this.imageWidth;
+  }
 
-  // helps insert this seam into the given list of pixels
-  public abstract ArrayList<ArrayList<Pixel>> insertHelper(ArrayList<ArrayList<Pixel>> pixels,
-      int count);
+  // removes the cheapest seam of the given direction from the window and returns its
+  // position in every row (or column) of the window, as FlatSeamCarver.carve does
+  int[] carve(boolean isVert) {
+    if ((isVert ? this.window.width : this.window.height) < 2) {
+      throw new IllegalStateException("The window has no seam left to carve");
+    }
+    int[] path = this.window.carve(isVert);
+    if (this.spans(isVert)) {
+      if (isVert) {
+        this.width -= 1;
+      }
+      else {
+        this.height -= 1;
+      }
+    }
+    return path;
+  }
+
+  // returns the carved window stitched back into the image as a packed plane of the current
+  // width and height
+  int[] toArgb() {
+    FlatSeamCarver window = this.window;
+    int removedRows = this.windowHeight - window.height;
+    int middle = this.spans(true) ? window.width : this.windowWidth;
+    int right = this.left + this.windowWidth;
+    int[] result = new int[this.width * this.height];
+    for (int y = 0; y < this.height; y += 1) {
+      int imageY = (this.spans(false) && y >= this.top + window.height) ? y + removedRows : y;
+      int out = y * this.width;
+      int in = imageY * this.imageWidth;
+      System.arraycopy(this.image, in, result, out, this.left);
+      if (y >= this.top && y < this.top + window.height) {
+        System.arraycopy(window.argb, (y - this.top) * window.stride, result, out + this.left,
+            window.width);
+      }
+      else if (imageY < this.top || imageY >= this.top + this.windowHeight) {
+        System.arraycopy(this.image, in + this.left, result, out + this.left, middle);
+      }
+      // what is left of the middle stays transparent
+      System.arraycopy(this.image, in + right, result, out + this.left + middle,
+          this.imageWidth - right);
+    }
+    return result;
+  }
 
 }
 
-// represents a vertical seam
-class VertSeamInfo extends ASeamInfo {
+// represents a seam carver that works on a packed ARGB plane instead of a pixel graph
+// Rows keep the stride of the original image and shrink logically as seams are removed, and
+// every buffer lives in one SeamWorkspace sized up front, so carving a seam allocates nothing
+// beyond what the energy function allocates. With the Sobel energy, energies and seams are the
+// same as those of Utils.seamify on the same image.
+class FlatSeamCarver {
 
-  // creates a vertical seam
-  VertSeamInfo(Pixel pixel, double totalWeight, VertSeamInfo cameFrom, int index) {
-    super(pixel, totalWeight, cameFrom, index);
+  final int[] argb;
+  final int stride;
+  int width;
+  int height;
+  final IEnergyFunction energy;
+  final IEnergyKernel kernel;
+  final SeamWorkspace workspace = new SeamWorkspace();
+  ForwardEnergy forward;
+  int frozenLeft;
+  int frozenRight;
+  double lastWeight;
+  double totalWeight;
+  // the cost per pixel of every removed seam
+  final SeamCostHistogram seamCosts = new SeamCostHistogram();
+
+  // creates a carver over the given packed w x h image (which it then owns) using the given
+  // energy function, and the given kernel for the DP
+  FlatSeamCarver(int[] argb, int width, int height, IEnergyFunction energy,
+      IEnergyKernel kernel) {
+    this.argb = argb;
+    this.stride = width;
+    this.width = width;
+    this.height = height;
+    this.energy = energy;
+    this.kernel = kernel;
+    this.workspace.reserve(width, height);
+    energy.reset(argb, width, width, height);
   }
 
-  VertSeamInfo(Pixel pixel, double totalWeight, VertSeamInfo cameFrom) {
-    this(pixel, totalWeight, cameFrom, -1);
+  // creates a carver over the given packed w x h image using the given energy function
+  FlatSeamCarver(int[] argb, int width, int height, IEnergyFunction energy) {
+    this(argb, width, height, energy, EnergyKernels.get());
   }
 
-  // removes this seam from the given list of pixels and row
-  public void removeSelf(ArrayList<ArrayList<Pixel>> pixels, int row) {
-    if (this.cameFrom != null) {
-      if (this.cameFrom.pixel.sameIPixelAs(this.pixel.getUp())) {
-        this.pixel.slideStill();
-      }
-      else if (this.cameFrom.pixel.sameIPixelAs(this.pixel.getUp().getRight())) {
-        this.pixel.slideLeft();
-      }
-      else if (this.cameFrom.pixel.sameIPixelAs(this.pixel.getUp().getLeft())) {
-        this.pixel.slideRight();
-      }
-      else {
-        throw new IllegalStateException("Pixel Image is Ill-Formed");
+  // creates a carver over the given packed w x h image using the Sobel energy, with both the
+  // energy and the DP computed by the given kernel
+  FlatSeamCarver(int[] argb, int width, int height, IEnergyKernel kernel) {
+    this(argb, width, height, new SobelEnergy(kernel), kernel);
+  }
+
+  // creates a carver over the given rows of colors using the fastest kernel
+  FlatSeamCarver(Color[][] colors) {
+    this(FlatSeamCarver.pack(colors), colors[0].length, colors.length, EnergyKernels.get());
+  }
+
+  // returns the given rows of colors as one packed ARGB plane
+  static int[] pack(Color[][] colors) {
+    int w = colors[0].length;
+    int[] argb = new int[w * colors.length];
+    for (int y = 0; y < colors.length; y += 1) {
+      for (int x = 0; x < w; x += 1) {
+        argb[y * w + x] = colors[y][x].getRGB();
       }
-      this.cameFrom.removeSelf(pixels, row - 1);
     }
-    else {
-      this.pixel.slideStill();
+    return argb;
+  }
+
+  // returns the color at the given position of the carved image
+  int rgbAt(int x, int y) {
+    return this.argb[y * this.stride + x];
+  }
+
+  // switches this carver to the forward-energy criterion (the energy function is still kept
+  // up to date, so switching back with useBackwardEnergy is immediate)
+  void useForwardEnergy() {
+    this.forward = new ForwardEnergy(this.argb, this.stride, this.width, this.height);
+  }
+
+  // switches this carver back to removing the seam of least energy
+  void useBackwardEnergy() {
+    this.forward = null;
+  }
+
+  // keeps the given numbers of columns at the left and right edges of the image from being
+  // carved: they still count for the energies of their neighbors, but vertical seams avoid
+  // them (and horizontal seams, which would cut through them, are refused)
+  void freezeColumns(int left, int right) {
+    if (left < 0 || right < 0 || left + right >= this.width) {
+      throw new IllegalArgumentException("Frozen columns must leave some to carve");
     }
-    if (this.index != -1) {
-      pixels.get(row).remove(this.index);
-    } else {
-      pixels.get(row).remove(this.pixel);
+    this.frozenLeft = left;
+    this.frozenRight = right;
+  }
+
+  // returns the carved image as a packed plane without the row padding
+  int[] toArgb() {
+    int[] result = new int[this.width * this.height];
+    for (int y = 0; y < this.height; y += 1) {
+      System.arraycopy(this.argb, y * this.stride, result, y * this.width, this.width);
     }
+    return result;
+  }
 
+  // removes the cheapest seam of the given direction and returns its position in every row
+  // (column of a vertical seam, row of a horizontal seam); the array belongs to the workspace
+  // and only its first height (or width) entries are valid until the next seam
+  int[] carve(boolean isVert) {
+    this.findSeam(isVert);
+    return this.removeFound(isVert);
   }
 
-  // returns the next seam connected to this from the given pixel and weight
-  public ASeamInfo makeNextSeam(Pixel pixel, double weight, int index) {
-    return new VertSeamInfo(pixel, weight, this, index);
+  // removes the cheapest seam of the given direction like carve, unless the given target
+  // stops at it: then the image is left as it is and null is returned, so the DP pass that
+  // crossed the target is the only one spent on a seam that is not removed
+  int[] carveUnless(boolean isVert, AutoTarget target) {
+    double weight = this.findSeam(isVert);
+    int length = isVert ? this.height : this.width;
+    if (!target.resolved()) {
+      target.resolve(this.workspace.ends, 1, isVert ? this.width : this.height, length);
+    }
+    if (target.stops(weight, length)) {
+      return null;
+    }
+    return this.removeFound(isVert);
   }
 
-  // inserts this seam into the given list of pixels
-  public ArrayList<ArrayList<Pixel>> insert(ArrayList<ArrayList<Pixel>> pixels) {
-    return this.insertHelper(pixels, 0);
+  // finds the cheapest seam of the given direction into the workspace's path and returns its
+  // total cost
+  double findSeam(boolean isVert) {
+    if (this.frozenLeft + this.frozenRight > 0 && (!isVert || this.forward != null
+        || this.frozenLeft + this.frozenRight >= this.width)) {
+      throw new IllegalStateException("Frozen columns only allow backward vertical seams");
+    }
+    this.lastWeight = (this.forward != null) ? this.forward.cheapestPath(isVert, this.workspace)
+        : this.backwardPath(isVert);
+    return this.lastWeight;
+  }
 
+  // removes the given seam of the given direction and total cost, found by an earlier carve of
+  // the same image (as SeamCache replays it), without searching for it
+  int[] replay(int[] path, boolean isVert, double weight) {
+    System.arraycopy(path, 0, this.workspace.path, 0, isVert ? this.height : this.width);
+    this.lastWeight = weight;
+    return this.removeFound(isVert);
   }
 
-  // helps insert this seam into the given list of pixels
-  public ArrayList<ArrayList<Pixel>> insertHelper(ArrayList<ArrayList<Pixel>> pixels, int count) {
-    if (pixels.size() - 1 < count) {
-      pixels.add(new ArrayList<>());
+  // removes the seam that findSeam last found and returns its path
+  int[] removeFound(boolean isVert) {
+    int w = this.width;
+    int h = this.height;
+    SeamWorkspace ws = this.workspace;
+    this.totalWeight += this.lastWeight;
+    this.seamCosts.record(this.lastWeight / (isVert ? h : w));
+    if (isVert) {
+      for (int y = 0; y < h; y += 1) {
+        int x = ws.path[y];
+        int row = y * this.stride;
+        System.arraycopy(this.argb, row + x + 1, this.argb, row + x, w - x - 1);
+      }
+      this.width -= 1;
     }
-    if (this.cameFrom != null) {
-      this.cameFrom.insertHelper(pixels, count + 1);
+    else {
+      for (int x = 0; x < w; x += 1) {
+        for (int y = ws.path[x]; y < h - 1; y += 1) {
+          this.argb[y * this.stride + x] = this.argb[(y + 1) * this.stride + x];
+        }
+      }
+      this.height -= 1;
     }
-    this.pixel.revalidate();
-    int row = pixels.size() - count - 1;
-    int index = pixels.get(row).indexOf(this.pixel.getRight());
-    if (index == -1) {
-      pixels.get(row).add(this.pixel);
+    this.energy.seamRemoved(ws.path, isVert);
+    if (this.forward != null) {
+      this.forward.seamRemoved(ws.path, isVert);
+    }
+    return ws.path;
+  }
+
+  // finds the seam of the given direction with the least total energy into the workspace's
+  // path and returns that energy
+  double backwardPath(boolean isVert) {
+    int w = this.width;
+    int h = this.height;
+    SeamWorkspace ws = this.workspace;
+    Utils utils = Utils.getInstance();
+    this.energy.energies(ws.energies);
+    double total = 0;
+    if (isVert) {
+      if (this.frozenLeft + this.frozenRight > 0) {
+        for (int y = 0; y < h; y += 1) {
+          Arrays.fill(ws.energies, y * w, y * w + this.frozenLeft, Double.POSITIVE_INFINITY);
+          Arrays.fill(ws.energies, (y + 1) * w - this.frozenRight, (y + 1) * w,
+              Double.POSITIVE_INFINITY);
+        }
+      }
+      utils.cheapestPath(ws.energies, w, h, this.kernel, ws);
+      for (int y = 0; y < h; y += 1) {
+        total += ws.energies[y * w + ws.path[y]];
+      }
     }
     else {
-      pixels.get(row).add(index, this.pixel);
+      utils.transposePlane(ws.energies, w, h, ws.transposed);
+      utils.cheapestPath(ws.transposed, h, w, this.kernel, ws);
+      for (int x = 0; x < w; x += 1) {
+        total += ws.transposed[x * h + ws.path[x]];
+      }
     }
-    return pixels;
+    return total;
   }
 
 }
 
-// represents a horizontal seam
-class HorizSeamInfo extends ASeamInfo {
-
-  Utils utils = new Utils();
+// represents a streaming histogram of seam costs, plus the curve of the costs in the order
+// they were recorded
+// Each power of two is split into 16 buckets, so percentiles come within 1/16 of the true
+// cost whatever the scale of the energy, in constant memory and without sorting.
+class SeamCostHistogram {
+
+  static final int SUB_BUCKETS = 16;
+  static final int MIN_EXPONENT = -40;
+  static final int MAX_EXPONENT = 60;
+
+  // bucket 0 counts the costs of zero (and below the smallest exponent)
+  final long[] counts = new long[1 + (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS];
+  long count;
+  double min = Double.POSITIVE_INFINITY;
+  double max = Double.NEGATIVE_INFINITY;
+  double[] curve = new double[64];
+
+  // records the given cost, which must be a finite number of at least zero
+  void record(double cost) {
+    if (!(cost >= 0) || cost == Double.POSITIVE_INFINITY) {
+      throw new IllegalArgumentException("Seam costs must be finite and not negative: " + cost);
+    }
+    this.counts[SeamCostHistogram.bucket(cost)] += 1;
+    if (this.count == this.curve.length) {
+      this.curve = Arrays.copyOf(this.curve, this.curve.length * 2);
+    }
+    this.curve[(int) this.count] = cost;
+    this.count += 1;
+    this.min = Math.min(this.min, cost);
+    this.max = Math.max(this.max, cost);
+  }
 
-  // creates a horizontal seam
-  HorizSeamInfo(Pixel pixel, double totalWeight, HorizSeamInfo cameFrom, int index) {
-    super(pixel, totalWeight, cameFrom, index);
+  // returns the bucket of the given cost
+  static int bucket(double cost) {
+    int exponent = Math.getExponent(cost);
+    if (cost == 0 || exponent < MIN_EXPONENT) {
+      return 0;
+    }
+    if (exponent > MAX_EXPONENT) {
+      return (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS;
+    }
+    int sub = (int) (Double.doubleToRawLongBits(cost) >>> 48) & (SUB_BUCKETS - 1);
+    return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
   }
 
-  HorizSeamInfo(Pixel pixel, double totalWeight, HorizSeamInfo cameFrom) {
-    this(pixel, totalWeight, cameFrom, -1);
+  // returns the largest cost that the given bucket holds (costs too small for the smallest
+  // exponent count as zero, and the last bucket has no bound)
+  static double upperBound(int bucket) {
+    if (bucket == 0) {
+      return 0;
+    }
+    if (bucket == (MAX_EXPONENT - MIN_EXPONENT + 1) * SUB_BUCKETS) {
+      return Double.POSITIVE_INFINITY;
+    }
+    int exponent = (bucket - 1) / SUB_BUCKETS + MIN_EXPONENT;
+    int sub = (bucket - 1) % SUB_BUCKETS;
+    return Math.scalb(1 + (sub + 1) / (double) SUB_BUCKETS, exponent);
   }
 
-  // removes this seam from the given list of pixels and row
-  public void removeSelf(ArrayList<ArrayList<Pixel>> pixels, int col) {
-    if (this.cameFrom != null) {
-      if (this.cameFrom.pixel.sameIPixelAs(this.pixel.getLeft())) {
-        this.pixel.slideStillHoriz();
-      }
-      else if (this.cameFrom.pixel.sameIPixelAs(this.pixel.getLeft().getDown())) {
-        this.pixel.slideUp();
-      }
-      else if (this.cameFrom.pixel.sameIPixelAs(this.pixel.getLeft().getUp())) {
-        this.pixel.slideDown();
-      }
-      else {
-        throw new IllegalStateException("Pixel Image is Ill-Formed");
-      }
-      this.cameFrom.removeSelf(pixels, col - 1);
+  // returns the cost that the given percentage of the recorded costs are at most, to within
+  // the width of a bucket (and never outside the recorded range)
+  double percentile(double percent) {
+    if (this.count == 0) {
+      throw new IllegalStateException("No seam costs recorded");
     }
-    else {
-      this.pixel.slideStillHoriz();
+    if (!(percent >= 0 && percent <= 100)) {
+      throw new IllegalArgumentException("Percentiles go from 0 to 100: " + percent);
     }
-    if (this.index != -1) {
-      pixels.get(col).remove(this.index);
-    } else {
-      pixels.get(col).remove(this.pixel);
+    long rank = Math.max(1, (long) Math.ceil(percent / 100 * this.count));
+    long seen = 0;
+    int bucket = 0;
+    for (; bucket < this.counts.length - 1; bucket += 1) {
+      seen += this.counts[bucket];
+      if (seen >= rank) {
+        break;
+      }
     }
+    return Math.max(this.min, Math.min(this.max, SeamCostHistogram.upperBound(bucket)));
   }
 
-  // returns the next seam connected to this from the given pixel and weight
-  public ASeamInfo makeNextSeam(Pixel pixel, double weight, int index) {
-    return new HorizSeamInfo(pixel, weight, this, index);
+  // returns the recorded costs in the order they were recorded
+  double[] curve() {
+    return Arrays.copyOf(this.curve, (int) this.count);
   }
 
-  // inserts this seam into the given list of pixels
-  public ArrayList<ArrayList<Pixel>> insert(ArrayList<ArrayList<Pixel>> pixels) {
-    Utils utils = Utils.getInstance();
-    pixels = utils.transpose(pixels);
-    pixels = this.insertHelper(pixels, 0);
-    pixels = utils.transpose(pixels);
-    return pixels;
+  // writes the curve to the given file as CSV lines of the seam number and its cost
+  void writeCurve(Path file) throws IOException {
+    StringBuilder csv = new StringBuilder("seam,cost\n");
+    for (int i = 0; i < this.count; i += 1) {
+      csv.append(i + 1).append(',').append(this.curve[i]).append('\n');
+    }
+    Files.write(file, csv.toString().getBytes(StandardCharsets.US_ASCII));
   }
 
-  // helps insert this seam into the given list of pixels
-  public ArrayList<ArrayList<Pixel>> insertHelper(ArrayList<ArrayList<Pixel>> pixels, int count) {
-    if (pixels.size() - 1 < count) {
-      pixels.add(new ArrayList<>());
+}
+
+// represents when to stop carving without a target size: at the first seam that costs more
+// per pixel than an absolute limit, or than a percentile of the costs of all the seams of the
+// uncarved image
+// A percentile target is resolved from the candidates of the first DP pass, which ends at
+// every position of the last line; stopping at the 50th percentile, for instance, removes
+// seams until the cheapest one left costs more than a typical seam did at the start.
+class AutoTarget {
+
+  final double percentile;
+  double threshold;
+
+  // creates a target from the given specification: a cost per pixel, or a percentile if it
+  // ends with %
+  AutoTarget(String spec) {
+    if (spec.endsWith("%")) {
+      this.percentile = Double.parseDouble(spec.substring(0, spec.length() - 1));
+      this.threshold = Double.NaN;
+      if (!(this.percentile >= 0 && this.percentile <= 100)) {
+        throw new IllegalArgumentException("Percentiles go from 0 to 100: " + spec);
+      }
     }
-    if (this.cameFrom != null) {
-      this.cameFrom.insertHelper(pixels, count + 1);
+    else {
+      this.percentile = Double.NaN;
+      this.threshold = Double.parseDouble(spec);
+      if (!(this.threshold >= 0)) {
+        throw new IllegalArgumentException("Seam cost targets cannot be negative: " + spec);
+      }
     }
-    this.pixel.revalidate();
-    int row = pixels.size() - count - 1;
-    int index = pixels.get(row).indexOf(this.pixel.getDown());
-    if (index == -1) {
-      pixels.get(row).add(this.pixel);
+  }
+
+  // is the cost this target stops above known yet?
+  boolean resolved() {
+    return !Double.isNaN(this.threshold);
+  }
+
+  // resolves a percentile target from the total costs of the given number of candidate seams
+  // of the given length, starting at the given index (infinite costs, of frozen positions,
+  // are left out)
+  void resolve(double[] totals, int from, int count, int length) {
+    SeamCostHistogram candidates = new SeamCostHistogram();
+    for (int i = from; i < from + count; i += 1) {
+      if (totals[i] != Double.POSITIVE_INFINITY) {
+        candidates.record(totals[i] / length);
+      }
     }
-    else {
-      pixels.get(row).add(index, this.pixel);
+    this.threshold = candidates.percentile(this.percentile);
+  }
+
+  // should carving stop at a seam of the given total cost and length?
+  boolean stops(double total, int length) {
+    if (!this.resolved()) {
+      throw new IllegalStateException("The percentile target is not resolved yet");
     }
-    return pixels;
+    return total / length > this.threshold;
   }
 
 }
 
-// represents a seam carving animation
-class SeamCarving extends World {
-
-  ArrayList<ArrayList<Pixel>> pixels;
-  Stack<ASeamInfo> history;
-  ASeamInfo badSeam;
+// represents the forward-energy seam criterion: a seam costs the brightness differences
+// between the pixels that its removal makes neighbors, rather than the energy of the pixels
+// it removes (Rubinstein, Shamir and Avidan, "Improved Seam Carving for Video Retargeting")
+// Removing a pixel always joins its two neighbors across the seam, plus the pixel before it on
+// the previous line with one of them when the seam turns. The differences of those pairs are
+// kept as planes for both directions, laid out like the image: the DP only reads them, and
+// when a seam is removed they shift like the image and only the cells next to the seam are
+// recomputed. Pixels outside the image count as black, as in the backward energy.
+class ForwardEnergy {
+
+  final int stride;
   int width;
   int height;
-  boolean removeVert;
-  boolean isPlaying;
-  boolean isReversed;
-  int colorMode;
+  final double[] brightness;
+  // |left - right| and |up - down| (joined by a vertical or a horizontal seam)
+  final double[] acrossVert;
+  final double[] acrossHoriz;
+  // |up - left|, |up - right| and |left - down| (joined by a seam that turns)
+  final double[] upLeft;
+  final double[] upRight;
+  final double[] leftDown;
+
+  // creates the planes of the given w x h packed image, whose rows are the given stride apart
+  ForwardEnergy(int[] argb, int stride, int w, int h) {
+    this.stride = stride;
+    this.width = w;
+    this.height = h;
+    this.brightness = new double[stride * h];
+    this.acrossVert = new double[stride * h];
+    this.acrossHoriz = new double[stride * h];
+    this.upLeft = new double[stride * h];
+    this.upRight = new double[stride * h];
+    this.leftDown = new double[stride * h];
+    for (int y = 0; y < h; y += 1) {
+      for (int x = 0; x < w; x += 1) {
+        int rgb = argb[y * stride + x];
+        this.brightness[y * stride + x] = ((((rgb >> 16) & 0xFF) + (rgb & 0xFF)
+            + ((rgb >> 8) & 0xFF)) / 3.0) / 255.0;
+      }
+    }
+    for (int y = 0; y < h; y += 1) {
+      for (int x = 0; x < w; x += 1) {
+        this.recompute(x, y);
+      }
+    }
+  }
 
-  // creates a seam carving animation from a given image
-  SeamCarving(FromFileImage image) {
-    this.width = (int) image.getWidth();
-    this.height = (int) image.getHeight();
-    this.pixels = Utils.getInstance().constructPixelGraph(image);
-    this.history = new Stack<>();
-    this.badSeam = null;
-    this.removeVert = true;
-    this.isPlaying = true;
-    this.colorMode = 1;
-    this.isReversed = false;
+  // returns the brightness at the given position (0 outside the image)
+  double brightnessAt(int x, int y) {
+    if (x < 0 || y < 0 || x >= this.width || y >= this.height) {
+      return 0;
+    }
+    return this.brightness[y * this.stride + x];
   }
 
-  // creates a seam carving animation for a given arraylist of pixels
-  SeamCarving(ArrayList<ArrayList<Pixel>> pixels) {
-    this.width = pixels.get(0).size();
-    this.height = pixels.size();
-    this.pixels = pixels;
-    this.history = new Stack<>();
-    this.badSeam = null;
-    this.removeVert = true;
-    this.isPlaying = true;
-    this.colorMode = 1;
-    this.isReversed = false;
+  // recomputes every difference at the given position
+  void recompute(int x, int y) {
+    int i = y * this.stride + x;
+    double left = this.brightnessAt(x - 1, y);
+    double right = this.brightnessAt(x + 1, y);
+    double up = this.brightnessAt(x, y - 1);
+    double down = this.brightnessAt(x, y + 1);
+    this.acrossVert[i] = Math.abs(left - right);
+    this.acrossHoriz[i] = Math.abs(up - down);
+    this.upLeft[i] = Math.abs(up - left);
+    this.upRight[i] = Math.abs(up - right);
+    this.leftDown[i] = Math.abs(left - down);
   }
 
-  // constructs the scene using an arrayList of pixels
-  public WorldScene makeScene() {
-    WorldScene scene = new WorldScene(this.width, this.height);
-    ComputedPixelImage pixelImage = new ComputedPixelImage(this.width, this.height);
-    for (int y = 0; y < this.pixels.size() && y < this.height; y += 1) {
-      for (int x = 0; x < this.pixels.get(y).size() && x < this.width; x += 1) {
-        Pixel pixel = this.pixels.get(y).get(x);
-        pixelImage.setPixel(x, y, pixel.getColor(this.colorMode));
+  // finds the seam of the given direction whose removal creates the least new difference into
+  // the given workspace's path and returns that difference
+  // A line is a row of a vertical seam or a column of a horizontal one; the seam can come to
+  // each position from the same position of the previous line (joining the two neighbors
+  // across) or from the one before or after it (also joining the pixel of the previous line
+  // with the neighbor it turns towards). Ties prefer straight, then before, then after.
+  double cheapestPath(boolean isVert, SeamWorkspace ws) {
+    int lines = isVert ? this.height : this.width;
+    int length = isVert ? this.width : this.height;
+    int lineStep = isVert ? this.stride : 1;
+    int posStep = isVert ? 1 : this.stride;
+    double[] across = isVert ? this.acrossVert : this.acrossHoriz;
+    double[] after = isVert ? this.upRight : this.leftDown;
+    double[] before = this.upLeft;
+    double[] costs = ws.costs;
+    double[] nextCosts = ws.nextCosts;
+    // forward energy backtracks through a parent for every pixel, even above the split size
+    if (ws.parents.length < lines * length) {
+      ws.parents = new int[lines * length];
+    }
+    int[] parents = ws.parents;
+    costs[0] = Double.POSITIVE_INFINITY;
+    costs[length + 1] = Double.POSITIVE_INFINITY;
+    nextCosts[0] = Double.POSITIVE_INFINITY;
+    nextCosts[length + 1] = Double.POSITIVE_INFINITY;
+    for (int pos = 0; pos < length; pos += 1) {
+      costs[pos + 1] = across[pos * posStep];
+    }
+    for (int line = 1; line < lines; line += 1) {
+      int base = line * lineStep;
+      int row = line * length;
+      for (int pos = 0; pos < length; pos += 1) {
+        int i = base + pos * posStep;
+        double minC = costs[pos + 1];
+        int minIdx = pos;
+        double fromBefore = costs[pos] + before[i];
+        double fromAfter = costs[pos + 2] + after[i];
+        if (fromBefore < minC) {
+          minC = fromBefore;
+          minIdx = pos - 1;
+        }
+        if (fromAfter < minC) {
+          minC = fromAfter;
+          minIdx = pos + 1;
+        }
+        nextCosts[pos + 1] = minC + across[i];
+        parents[row + pos] = minIdx;
       }
+      double[] temp = costs;
+      costs = nextCosts;
+      nextCosts = temp;
     }
-    scene.placeImageXY(pixelImage, this.width / 2, this.height / 2);
-    return scene;
+    ws.ends = costs;
+    int end = 0;
+    for (int pos = 1; pos < length; pos += 1) {
+      if (costs[pos + 1] < costs[end + 1]) {
+        end = pos;
+      }
+    }
+    Utils.getInstance().backtrack(parents, length, lines, end, ws.path);
+    return costs[end + 1];
   }
 
-  // removes or inserts vertical and horizontal seams
-  public void onTick() {
-    if (this.isPlaying) {
-      this.removeOrInsert();
+  // shifts every plane past the given seam, which was just removed from the image, and
+  // recomputes the cells whose neighbors did not all shift with them: those within one
+  // position of where the seam crosses the line or its two neighbor lines
+  void seamRemoved(int[] path, boolean isVert) {
+    double[][] planes = { this.brightness, this.acrossVert, this.acrossHoriz, this.upLeft,
+        this.upRight, this.leftDown };
+    int lines = isVert ? this.height : this.width;
+    int length = isVert ? this.width : this.height;
+    int top = length;
+    for (int line = 0; line < lines; line += 1) {
+      top = Math.min(top, path[line]);
+    }
+    for (double[] plane : planes) {
+      if (isVert) {
+        for (int line = 0; line < lines; line += 1) {
+          int row = line * this.stride;
+          System.arraycopy(plane, row + path[line] + 1, plane, row + path[line],
+              length - path[line] - 1);
+        }
+      }
+      else {
+        // row by row (the planes are stored by rows), moving up the columns the seam crossed
+        for (int y = top; y < length - 1; y += 1) {
+          int row = y * this.stride;
+          for (int x = 0; x < lines; x += 1) {
+            if (y >= path[x]) {
+              plane[row + x] = plane[row + this.stride + x];
+            }
+          }
+        }
+      }
+    }
+    if (isVert) {
+      this.width -= 1;
     }
     else {
-      if (this.badSeam != null) {
-        if (this.isReversed) {
-          this.insertBadSeam();
+      this.height -= 1;
+    }
+    for (int line = 0; line < lines; line += 1) {
+      int lo = path[line];
+      int hi = path[line];
+      if (line > 0) {
+        lo = Math.min(lo, path[line - 1]);
+        hi = Math.max(hi, path[line - 1]);
+      }
+      if (line < lines - 1) {
+        lo = Math.min(lo, path[line + 1]);
+        hi = Math.max(hi, path[line + 1]);
+      }
+      for (int pos = Math.max(0, lo - 1); pos <= Math.min(length - 2, hi + 1); pos += 1) {
+        if (isVert) {
+          this.recompute(pos, line);
         }
         else {
-          this.removeBadSeam();
+          this.recompute(line, pos);
         }
       }
     }
-    if (this.pixels.get(0).isEmpty()) {
-      this.isReversed = true;
+  }
+
+}
+
+// represents an out-of-core carving of vertical seams: the image stays in a file and only a
+// band of rows at a time is in memory
+// Each seam takes one pass over the bands that computes the energies and the DP rows, writing
+// the parent of every pixel to a scratch file (one byte each), and one pass back up over the
+// parents. The seam is removed from the file during the next seam's pass (or on flush), so
+// every row is read and written once per seam. The energies, DP and tie-breaking are those of
+// FlatSeamCarver, so both remove the same seams.
+// The file holds height rows of stride big-endian ARGB ints; carved rows keep the stride.
+class BandedSeamCarver implements AutoCloseable {
+
+  static final int BAND_ROWS = 64;
+
+  final FileChannel pixels;
+  final FileChannel parents;
+  final IEnergyKernel kernel;
+  final int stride;
+  final int bandRows;
+  int width;
+  int height;
+  double lastWeight;
+  double totalWeight;
+  // the last seam, still to be removed from the file
+  final int[] path;
+  boolean pending;
+
+  final int[] rows;
+  final ByteBuffer pixelIo;
+  final ByteBuffer parentIo;
+  final double[] brightness;
+  final double[] above;
+  final double[] energies;
+  final int[] bandParents;
+  double[] costs;
+  double[] nextCosts;
+
+  // creates a carver over the given file of a w x h image (which it then carves in place),
+  // computing energies with the given kernel over bands of the given number of rows
+  BandedSeamCarver(Path file, int w, int h, IEnergyKernel kernel, int bandRows)
+      throws IOException {
+    if (bandRows < 1) {
+      throw new IllegalArgumentException("Bands must have rows");
     }
-    else if (this.history.isEmpty() && this.badSeam == null) {
-      this.isReversed = false;
+    this.pixels = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    if (this.pixels.size() < (long) w * h * Integer.BYTES) {
+      this.pixels.close();
+      throw new IOException("The file is too short for a " + w + "x" + h + " image: " + file);
     }
+    this.parents = FileChannel.open(Files.createTempFile("seamcarve", ".parents"),
+        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    this.kernel = kernel;
+    this.stride = w;
+    this.width = w;
+    this.height = h;
+    this.bandRows = Math.min(bandRows, h);
+    this.path = new int[h];
+    this.pending = false;
+    this.rows = new int[(this.bandRows + 1) * w];
+    this.pixelIo = ByteBuffer.allocate(this.rows.length * Integer.BYTES);
+    this.parentIo = ByteBuffer.allocate(this.bandRows * w);
+    this.brightness = new double[(this.bandRows + 2) * (w + 2)];
+    this.above = new double[w + 2];
+    this.energies = new double[this.bandRows * w];
+    this.bandParents = new int[this.bandRows * w];
+    this.costs = new double[w + 2];
+    this.nextCosts = new double[w + 2];
   }
 
-  // removes or inserts seams from this.pixels
-  void removeOrInsert() {
-    if (this.isReversed) {
-      this.insertSeam();
-    }
+  // creates a carver with the fastest kernel and bands of BAND_ROWS rows
+  BandedSeamCarver(Path file, int w, int h) throws IOException {
+    this(file, w, h, EnergyKernels.get(), BAND_ROWS);
+  }
+
+  // writes the given packed w x h image to a new temporary file for a carver, and returns it
+  static Path spill(int[] argb, int w, int h) throws IOException {
+    Path file = Files.createTempFile("seamcarve", ".argb");
+    ByteBuffer buffer = ByteBuffer.allocate(w * h * Integer.BYTES);
+    buffer.asIntBuffer().put(argb, 0, w * h);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+    return file;
+  }
+
+  // removes the cheapest vertical seam and returns its column in every row (valid until the
+  // next seam)
+  int[] carve() throws IOException {
+    if (this.width < 2) {
+      throw new IllegalStateException("Cannot carve an image " + this.width + " pixel wide");
+    }
+    int w = this.width;
+    int h = this.height;
+    this.costs[0] = Double.POSITIVE_INFINITY;
+    this.costs[w + 1] = Double.POSITIVE_INFINITY;
+    this.nextCosts[0] = Double.POSITIVE_INFINITY;
+    this.nextCosts[w + 1] = Double.POSITIVE_INFINITY;
+    Arrays.fill(this.above, 0);
+    for (int y0 = 0; y0 < h; y0 += this.bandRows) {
+      int count = Math.min(this.bandRows, h - y0);
+      int read = Math.min(count + 1, h - y0);
+      this.readRows(y0, read);
+      if (this.pending) {
+        this.removePending(y0, read);
+        this.writeRows(y0, count);
+      }
+      this.bandEnergies(count, read > count);
+      for (int r = 0; r < count; r += 1) {
+        if (y0 + r == 0) {
+          System.arraycopy(this.energies, 0, this.costs, 1, w);
+        }
+        else {
+          this.kernel.minPlusAdd(this.costs, this.energies, r * w, this.nextCosts,
+              this.bandParents, w);
+          double[] temp = this.costs;
+          this.costs = this.nextCosts;
+          this.nextCosts = temp;
+        }
+      }
+      this.writeParents(y0, count);
+    }
+    double min = Double.MAX_VALUE;
+    int end = -1;
+    for (int x = 0; x < w; x += 1) {
+      if (this.costs[x + 1] < min) {
+        min = this.costs[x + 1];
+        end = x;
+      }
+    }
+    this.backtrack(end);
+    this.lastWeight = min;
+    this.totalWeight += min;
+    this.pending = true;
+    this.width -= 1;
+    return this.path;
+  }
+
+  // removes the last seam from the file, if it is still there
+  void flush() throws IOException {
+    if (this.pending) {
+      for (int y0 = 0; y0 < this.height; y0 += this.bandRows) {
+        int count = Math.min(this.bandRows, this.height - y0);
+        this.readRows(y0, count);
+        this.removePending(y0, count);
+        this.writeRows(y0, count);
+      }
+      this.pending = false;
+    }
+  }
+
+  // removes up to the given number of vertical seams, stopping at an image one pixel wide,
+  // and returns the number removed
+  int carveSeams(int seams) throws IOException {
+    int done = 0;
+    for (; done < seams && this.width > 1; done += 1) {
+      this.carve();
+    }
+    return done;
+  }
+
+  // hands the given consumer every row of the carved image, a band at a time
+  void rows(IRowConsumer consumer) throws IOException {
+    this.flush();
+    int[] row = new int[this.width];
+    for (int y0 = 0; y0 < this.height; y0 += this.bandRows) {
+      int count = Math.min(this.bandRows, this.height - y0);
+      this.readRows(y0, count);
+      for (int r = 0; r < count; r += 1) {
+        System.arraycopy(this.rows, r * this.stride, row, 0, this.width);
+        consumer.accept(y0 + r, row);
+      }
+    }
+  }
+
+  // returns the carved image as a packed plane (which has to fit in memory)
+  int[] toArgb() throws IOException {
+    int[] result = new int[this.width * this.height];
+    this.rows((y, row) -> System.arraycopy(row, 0, result, y * this.width, this.width));
+    return result;
+  }
+
+  // removes the last seam from the file and releases the scratch file
+  public void close() throws IOException {
+    try {
+      this.flush();
+    }
+    finally {
+      this.pixels.close();
+      this.parents.close();
+    }
+  }
+
+  // reads the given number of rows from the given one on into the row buffer
+  void readRows(int y0, int count) throws IOException {
+    ByteBuffer buffer = this.pixelIo;
+    buffer.clear().limit(count * this.stride * Integer.BYTES);
+    long position = (long) y0 * this.stride * Integer.BYTES;
+    while (buffer.hasRemaining()) {
+      if (this.pixels.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("The image file ended early");
+      }
+    }
+    buffer.flip();
+    buffer.asIntBuffer().get(this.rows, 0, count * this.stride);
+  }
+
+  // writes the given number of rows of the row buffer back from the given one on
+  void writeRows(int y0, int count) throws IOException {
+    ByteBuffer buffer = this.pixelIo;
+    buffer.clear().limit(count * this.stride * Integer.BYTES);
+    buffer.asIntBuffer().put(this.rows, 0, count * this.stride);
+    long position = (long) y0 * this.stride * Integer.BYTES;
+    while (buffer.hasRemaining()) {
+      this.pixels.write(buffer, position + buffer.position());
+    }
+  }
+
+  // removes the last seam from the given number of buffered rows from the given one on
+  void removePending(int y0, int count) {
+    int before = this.width + 1;
+    for (int r = 0; r < count; r += 1) {
+      int x = this.path[y0 + r];
+      int offset = r * this.stride;
+      System.arraycopy(this.rows, offset + x + 1, this.rows, offset + x, before - x - 1);
+    }
+  }
+
+  // computes the energies of the given number of buffered rows, from the brightness of the
+  // row above the band (kept from the last band) and of the buffered row below it, if any
+  void bandEnergies(int count, boolean hasBelow) {
+    int w = this.width;
+    int padded = w + 2;
+    double[] plane = this.brightness;
+    System.arraycopy(this.above, 0, plane, 0, padded);
+    for (int r = 0; r <= count; r += 1) {
+      int offset = (r + 1) * padded;
+      if (r == count && !hasBelow) {
+        Arrays.fill(plane, offset, offset + padded, 0);
+        break;
+      }
+      plane[offset] = 0;
+      for (int x = 0; x < w; x += 1) {
+        int rgb = this.rows[r * this.stride + x];
+        // same arithmetic as Pixel.brightness()
+        plane[offset + x + 1] = ((((rgb >> 16) & 0xFF) + (rgb & 0xFF) + ((rgb >> 8) & 0xFF))
+            / 3.0) / 255.0;
+      }
+      plane[offset + w + 1] = 0;
+    }
+    System.arraycopy(plane, count * padded, this.above, 0, padded);
+    this.kernel.energies(plane, w, count, this.energies);
+  }
+
+  // writes the parents of the given number of rows from the given one on to the scratch file,
+  // as offsets from each pixel's column (0 up-left, 1 up, 2 up-right)
+  void writeParents(int y0, int count) throws IOException {
+    int w = this.width;
+    ByteBuffer buffer = this.parentIo;
+    buffer.clear();
+    for (int r = 0; r < count; r += 1) {
+      for (int x = 0; x < w; x += 1) {
+        buffer.put((byte) (this.bandParents[r * w + x] - x + 1));
+      }
+    }
+    buffer.flip();
+    long position = (long) y0 * this.stride;
+    while (buffer.hasRemaining()) {
+      this.parents.write(buffer, position + buffer.position());
+    }
+  }
+
+  // follows the parents from the given column of the last row up, band by band, into the path
+  void backtrack(int end) throws IOException {
+    int w = this.width;
+    int x = end;
+    int last = (this.height - 1) / this.bandRows * this.bandRows;
+    for (int y0 = last; y0 >= 0; y0 -= this.bandRows) {
+      int count = Math.min(this.bandRows, this.height - y0);
+      ByteBuffer buffer = this.parentIo;
+      buffer.clear().limit(count * w);
+      long position = (long) y0 * this.stride;
+      while (buffer.hasRemaining()) {
+        if (this.parents.read(buffer, position + buffer.position()) < 0) {
+          throw new IOException("The parent file ended early");
+        }
+      }
+      for (int r = count - 1; r >= 0; r -= 1) {
+        this.path[y0 + r] = x;
+        if (y0 + r > 0) {
+          x += buffer.get(r * w + x) - 1;
+        }
+      }
+    }
+  }
+
+}
+
+// represents a destination for the tiles of a TiledSeamCarver, taking each tile whose pixels
+// changed since it last took them
+interface ITileSink {
+
+  // takes the pixels of the tile of the given index (row-major over the grid of tiles): row r
+  // of the tile holds lengths[r] pixels from argb[r * tileSize] on (it then owns both arrays)
+  void accept(int tile, int[] argb, int[] lengths);
+
+}
+
+// represents a carving of vertical seams out of an image kept in tiles, for interactive edits
+// of large canvases: a seam only rewrites the tiles it crosses, and the next seam search only
+// recomputes what the last seam changed
+// The image is cut into bands of tileSize rows, and every band into tiles of tileSize columns.
+// Removing a pixel shifts the rest of its row within its own tile, so the tiles of a band
+// shrink unevenly; each row keeps the lengths of its tiles in a Fenwick tree, which finds the
+// column where a tile starts, and the tile of a column, in the logarithm of the tiles per
+// row. Each tile keeps the energy and the DP state (cumulative cost and parent) of its
+// pixels. After a seam, energies are recomputed where the 3x3 neighborhood changed, a few
+// pixels around the seam in each row, and the DP is recomputed from there down, each row only
+// as far to the sides as the costs above it changed. A seam then costs about its length times
+// the tile size, rather than the area. Energies, costs and seams are those of FlatSeamCarver
+// with the Sobel energy and the scalar kernel, whose arithmetic the updates repeat.
+class TiledSeamCarver {
+
+  static final int TILE_SIZE = 64;
+
+  final int tileSize;
+  final int columns;
+  final int bands;
+  // row r of tile t starts at (t * tileSize + r) * tileSize in the pixel planes
+  final int[] argb;
+  final double[] energies;
+  final double[] costs;
+  // the column of each pixel's parent in the row above, relative to its own: -1, 0 or 1
+  final byte[] parents;
+  // the pixels in row r of tile t, at t * tileSize + r
+  final int[] lengths;
+  // a Fenwick tree per row over the lengths of its tiles: entry i sums the lengths of the
+  // i & -i tiles up to tile i - 1
+  final int[][] spans;
+  // the largest power of two that is at most the tiles per row, where a search starts
+  final int topStep;
+  // the tiles whose pixels changed since they were last handed to a sink
+  final boolean[] dirty;
+  final int[] path;
+  // the indices of a span of the rows above, at and below the one being updated
+  final int[] above;
+  final int[] here;
+  final int[] below;
+  int width;
+  final int height;
+  double lastWeight;
+  double totalWeight;
+
+  // creates a carver over a copy of the given packed w x h image, in tiles of the given size
+  // (the first energies and DP are computed with the scalar kernel, so that the cells updated
+  // after each seam agree with them exactly)
+  TiledSeamCarver(int[] argb, int w, int h, int tileSize) {
+    if (tileSize < 1) {
+      throw new IllegalArgumentException("Tiles must have at least one pixel: " + tileSize);
+    }
+    this.tileSize = tileSize;
+    this.columns = (w + tileSize - 1) / tileSize;
+    this.bands = (h + tileSize - 1) / tileSize;
+    int tiles = this.columns * this.bands;
+    int pixels = tiles * tileSize * tileSize;
+    this.argb = new int[pixels];
+    this.energies = new double[pixels];
+    this.costs = new double[pixels];
+    this.parents = new byte[pixels];
+    this.lengths = new int[tiles * tileSize];
+    this.spans = new int[h][this.columns + 1];
+    this.topStep = Integer.highestOneBit(this.columns);
+    this.dirty = new boolean[tiles];
+    Arrays.fill(this.dirty, true);
+    this.path = new int[h];
+    this.above = new int[w + 2];
+    this.here = new int[w + 2];
+    this.below = new int[w + 2];
+    this.width = w;
+    this.height = h;
+    this.lastWeight = 0;
+    this.totalWeight = 0;
+
+    IEnergyKernel kernel = EnergyKernels.scalar();
+    double[] plane = new double[w * h];
+    SobelEnergy sobel = new SobelEnergy(kernel);
+    sobel.reset(argb, w, w, h);
+    sobel.energies(plane);
+    double[] prev = new double[w + 2];
+    double[] next = new double[w + 2];
+    prev[0] = Double.POSITIVE_INFINITY;
+    prev[w + 1] = Double.POSITIVE_INFINITY;
+    next[0] = Double.POSITIVE_INFINITY;
+    next[w + 1] = Double.POSITIVE_INFINITY;
+    double[] rowEnergies = new double[w];
+    int[] rowParents = new int[w];
+    System.arraycopy(plane, 0, prev, 1, w);
+    for (int y = 0; y < h; y += 1) {
+      if (y > 0) {
+        System.arraycopy(plane, y * w, rowEnergies, 0, w);
+        kernel.minPlusAdd(prev, rowEnergies, 0, next, rowParents, w);
+        double[] swap = prev;
+        prev = next;
+        next = swap;
+      }
+      int[] spans = this.spans[y];
+      for (int i = 1; i <= this.columns; i += 1) {
+        spans[i] += Math.min(tileSize, w - (i - 1) * tileSize);
+        if (i + (i & -i) <= this.columns) {
+          spans[i + (i & -i)] += spans[i];
+        }
+      }
+      for (int tx = 0; tx < this.columns; tx += 1) {
+        int tile = (y / tileSize) * this.columns + tx;
+        int start = (tile * tileSize + y % tileSize) * tileSize;
+        int left = tx * tileSize;
+        int count = Math.min(tileSize, w - left);
+        this.lengths[tile * tileSize + y % tileSize] = count;
+        System.arraycopy(argb, y * w + left, this.argb, start, count);
+        System.arraycopy(plane, y * w + left, this.energies, start, count);
+        System.arraycopy(prev, left + 1, this.costs, start, count);
+        for (int i = 0; i < count; i += 1) {
+          this.parents[start + i] = (byte) ((y == 0) ? 0 : rowParents[left + i] - left - i);
+        }
+      }
+    }
+  }
+
+  // creates a carver over a copy of the given packed w x h image in tiles of TILE_SIZE
+  TiledSeamCarver(int[] argb, int w, int h) {
+    this(argb, w, h, TILE_SIZE);
+  }
+
+  // removes the cheapest vertical seam and returns its column in every row (the array belongs
+  // to the carver and is valid until the next seam)
+  int[] carve() {
+    if (this.width < 2) {
+      throw new IllegalStateException("The image has no seam left to carve");
+    }
+    this.lastWeight = this.findSeam();
+    this.totalWeight += this.lastWeight;
+    this.removeSeam();
+    this.update();
+    return this.path;
+  }
+
+  // finds the cheapest vertical seam into path (the leftmost one on a tie) and returns the sum
+  // of its energies
+  double findSeam() {
+    int y = this.height - 1;
+    int band = y / this.tileSize;
+    double min = Double.MAX_VALUE;
+    int end = -1;
+    int left = 0;
+    for (int tx = 0; tx < this.columns; tx += 1) {
+      int tile = band * this.columns + tx;
+      int start = (tile * this.tileSize + y % this.tileSize) * this.tileSize;
+      int count = this.lengths[tile * this.tileSize + y % this.tileSize];
+      for (int i = 0; i < count; i += 1) {
+        if (this.costs[start + i] < min) {
+          min = this.costs[start + i];
+          end = left + i;
+        }
+      }
+      left += count;
+    }
+    this.path[y] = end;
+    for (; y > 0; y -= 1) {
+      this.path[y - 1] = this.path[y] + this.parents[this.index(y, this.path[y])];
+    }
+    double total = 0;
+    for (y = 0; y < this.height; y += 1) {
+      total += this.energies[this.index(y, this.path[y])];
+    }
+    return total;
+  }
+
+  // removes the pixels of path from their tiles, marking those tiles dirty
+  void removeSeam() {
+    for (int y = 0; y < this.height; y += 1) {
+      int[] spans = this.spans[y];
+      int tx = this.tileAt(y, this.path[y]);
+      int tile = (y / this.tileSize) * this.columns + tx;
+      int line = tile * this.tileSize + y % this.tileSize;
+      int position = this.path[y] - this.left(y, tx);
+      int at = line * this.tileSize + position;
+      int rest = this.lengths[line] - position - 1;
+      System.arraycopy(this.argb, at + 1, this.argb, at, rest);
+      System.arraycopy(this.energies, at + 1, this.energies, at, rest);
+      System.arraycopy(this.costs, at + 1, this.costs, at, rest);
+      System.arraycopy(this.parents, at + 1, this.parents, at, rest);
+      this.lengths[line] -= 1;
+      for (int i = tx + 1; i <= this.columns; i += i & -i) {
+        spans[i] -= 1;
+      }
+      this.dirty[tile] = true;
+    }
+    this.width -= 1;
+  }
+
+  // recomputes the energies around the removed seam (path, in the columns from before it was
+  // removed) and the DP cells whose cost may have changed with them
+  void update() {
+    int h = this.height;
+    int changedFrom = 0;
+    int changedTo = -1;
+    for (int y = 0; y < h; y += 1) {
+      // a pixel's neighborhood changed if a row next to it lost a pixel on one side of it and
+      // another row on the other side
+      int from = this.path[y];
+      int to = this.path[y];
+      for (int other = Math.max(0, y - 1); other <= Math.min(h - 1, y + 1); other += 1) {
+        from = Math.min(from, this.path[other]);
+        to = Math.max(to, this.path[other]);
+      }
+      from = Math.max(0, from - 1);
+      to = Math.min(this.width - 1, to);
+      // the costs change where the energies did and below the costs that changed above
+      int lo = from;
+      int hi = to;
+      if (changedFrom <= changedTo) {
+        lo = Math.max(0, Math.min(lo, changedFrom - 1));
+        hi = Math.min(this.width - 1, Math.max(hi, changedTo + 1));
+      }
+      // here[k], above[k] and below[k] index the pixels of column lo - 1 + k
+      this.indices(y, lo - 1, hi + 1, this.here);
+      this.indices(y - 1, lo - 1, hi + 1, this.above);
+      this.indices(y + 1, from - 1, to + 1, this.below);
+      for (int x = from; x <= to; x += 1) {
+        int k = x - lo + 1;
+        int b = x - from + 1;
+        double upLeft = this.brightness(this.above[k - 1]);
+        double up = this.brightness(this.above[k]);
+        double upRight = this.brightness(this.above[k + 1]);
+        double left = this.brightness(this.here[k - 1]);
+        double right = this.brightness(this.here[k + 1]);
+        double downLeft = this.brightness(this.below[b - 1]);
+        double down = this.brightness(this.below[b]);
+        double downRight = this.brightness(this.below[b + 1]);
+        // the arithmetic of the scalar kernel
+        double horiz = upLeft + 2 * left + downLeft - (upRight + 2 * right + downRight);
+        double vert = upLeft + 2 * up + upRight - (downLeft + 2 * down + downRight);
+        this.energies[this.here[k]] = Math.sqrt(horiz * horiz + vert * vert);
+      }
+      changedFrom = Integer.MAX_VALUE;
+      changedTo = -1;
+      for (int x = lo; x <= hi; x += 1) {
+        int k = x - lo + 1;
+        int i = this.here[k];
+        double cost = this.energies[i];
+        byte parent = 0;
+        // the tie-breaking of the scalar kernel: straight up, then up-left, then up-right
+        if (y > 0) {
+          double min = this.costs[this.above[k]];
+          if (x > 0 && this.costs[this.above[k - 1]] < min) {
+            min = this.costs[this.above[k - 1]];
+            parent = -1;
+          }
+          if (x + 1 < this.width && this.costs[this.above[k + 1]] < min) {
+            min = this.costs[this.above[k + 1]];
+            parent = 1;
+          }
+          cost = min + this.energies[i];
+        }
+        this.parents[i] = parent;
+        if (cost != this.costs[i]) {
+          this.costs[i] = cost;
+          changedFrom = Math.min(changedFrom, x);
+          changedTo = x;
+        }
+      }
+    }
+  }
+
+  // returns the brightness of the pixel of the given index in the pixel planes, or 0 (black)
+  // for an index of -1 (outside the image)
+  double brightness(int index) {
+    return (index < 0) ? 0 : SobelEnergy.brightness(this.argb[index]);
+  }
+
+  // writes the indices in the pixel planes of the pixels of the given row from the given
+  // column to the given column (both included) into the start of the given buffer, walking
+  // the row's tiles once, with -1 for the columns outside the image
+  void indices(int y, int from, int to, int[] out) {
+    int k = 0;
+    int x = from;
+    for (; x < 0 || (x <= to && (y < 0 || y >= this.height)); x += 1) {
+      out[k] = -1;
+      k += 1;
+    }
+    if (x <= to && x < this.width) {
+      int band = (y / this.tileSize) * this.columns;
+      int line = y % this.tileSize;
+      int tx = this.tileAt(y, x);
+      int position = x - this.left(y, tx);
+      for (; x <= to && x < this.width; x += 1) {
+        while (position == this.lengths[(band + tx) * this.tileSize + line]) {
+          tx += 1;
+          position = 0;
+        }
+        out[k] = ((band + tx) * this.tileSize + line) * this.tileSize + position;
+        position += 1;
+        k += 1;
+      }
+    }
+    for (; x <= to; x += 1) {
+      out[k] = -1;
+      k += 1;
+    }
+  }
+
+  // returns the tile column holding the pixel at the given column of the given row: the first
+  // tile whose pixels and those of the tiles before it are more than the column (so empty
+  // tiles are skipped)
+  int tileAt(int y, int x) {
+    int[] spans = this.spans[y];
+    int tx = 0;
+    int rest = x;
+    for (int step = this.topStep; step > 0; step >>= 1) {
+      if (tx + step <= this.columns && spans[tx + step] <= rest) {
+        tx += step;
+        rest -= spans[tx];
+      }
+    }
+    return tx;
+  }
+
+  // returns the column of the given row where the tile of the given tile column starts
+  int left(int y, int tx) {
+    int[] spans = this.spans[y];
+    int left = 0;
+    for (int i = tx; i > 0; i -= i & -i) {
+      left += spans[i];
+    }
+    return left;
+  }
+
+  // returns the index in the pixel planes of the pixel at the given column of the given row
+  int index(int y, int x) {
+    int tx = this.tileAt(y, x);
+    int tile = (y / this.tileSize) * this.columns + tx;
+    return (tile * this.tileSize + y % this.tileSize) * this.tileSize + x - this.left(y, tx);
+  }
+
+  // hands the given sink a copy of every tile whose pixels changed since the last call (every
+  // tile on the first), and returns how many it handed
+  int redraw(ITileSink sink) {
+    int handed = 0;
+    int area = this.tileSize * this.tileSize;
+    for (int tile = 0; tile < this.dirty.length; tile += 1) {
+      if (this.dirty[tile]) {
+        sink.accept(tile, Arrays.copyOfRange(this.argb, tile * area, (tile + 1) * area),
+            Arrays.copyOfRange(this.lengths, tile * this.tileSize, (tile + 1) * this.tileSize));
+        this.dirty[tile] = false;
+        handed += 1;
+      }
+    }
+    return handed;
+  }
+
+  // returns the current image as a packed width x height plane
+  int[] toArgb() {
+    int[] result = new int[this.width * this.height];
+    for (int y = 0; y < this.height; y += 1) {
+      int left = 0;
+      for (int tx = 0; tx < this.columns; tx += 1) {
+        int tile = (y / this.tileSize) * this.columns + tx;
+        int line = tile * this.tileSize + y % this.tileSize;
+        System.arraycopy(this.argb, line * this.tileSize, result, y * this.width + left,
+            this.lengths[line]);
+        left += this.lengths[line];
+      }
+    }
+    return result;
+  }
+
+}
+
+// represents the tiles a TiledSeamCarver handed over as images of their rows, so that a frame
+// only rebuilds the images of the tiles the last seams crossed and places the others where
+// their rows now start
+class TileRenderer implements ITileSink {
+
+  final int tileSize;
+  final int columns;
+  // the size of the scene, which the image had before any seam was carved
+  final int width;
+  final int height;
+  // the pixels in row r of tile t, at t * tileSize + r, as last handed over
+  final int[] lengths;
+  // the image of row r of tile t, at t * tileSize + r: one pixel high, with its pinhole at
+  // its top-left corner, or null while the row is empty
+  final WorldImage[] rows;
+  // the packed pixels of each tile, as last handed over
+  final int[][] tiles;
+
+  // creates a renderer for the tiles of the given carver, which has handed none over yet
+  TileRenderer(TiledSeamCarver carver) {
+    this.tileSize = carver.tileSize;
+    this.columns = carver.columns;
+    this.width = carver.width;
+    this.height = carver.height;
+    this.lengths = new int[carver.lengths.length];
+    this.rows = new WorldImage[carver.lengths.length];
+    this.tiles = new int[carver.dirty.length][];
+  }
+
+  // rebuilds the images of the rows of the given tile from its pixels
+  public void accept(int tile, int[] argb, int[] lengths) {
+    this.tiles[tile] = argb;
+    System.arraycopy(lengths, 0, this.lengths, tile * this.tileSize, this.tileSize);
+    Color color = Color.BLACK;
+    for (int r = 0; r < this.tileSize; r += 1) {
+      ComputedPixelImage row = null;
+      if (lengths[r] > 0) {
+        row = new ComputedPixelImage(lengths[r], 1);
+        for (int i = 0; i < lengths[r]; i += 1) {
+          // neighboring pixels often share a color
+          int rgb = argb[r * this.tileSize + i];
+          if (rgb != color.getRGB()) {
+            color = new Color(rgb, true);
+          }
+          row.setPixel(i, 0, color);
+        }
+      }
+      this.rows[tile * this.tileSize + r] = (row == null) ? null
+          : row.movePinhole(-lengths[r] / 2.0, -0.5);
+    }
+  }
+
+  // returns a scene placing the image of every row of every tile where it starts, without
+  // walking any pixel
+  WorldScene scene() {
+    WorldScene scene = new WorldScene(this.width, this.height);
+    for (int y = 0; y < this.height; y += 1) {
+      int left = 0;
+      for (int tx = 0; tx < this.columns; tx += 1) {
+        int line = ((y / this.tileSize) * this.columns + tx) * this.tileSize + y % this.tileSize;
+        if (this.rows[line] != null) {
+          scene.placeImageXY(this.rows[line], left, y);
+        }
+        left += this.lengths[line];
+      }
+    }
+    return scene;
+  }
+
+  // returns the image drawn so far as a packed plane as wide as its first row
+  int[] toArgb() {
+    int w = 0;
+    for (int tx = 0; tx < this.columns; tx += 1) {
+      w += this.lengths[tx * this.tileSize];
+    }
+    int[] result = new int[w * this.height];
+    for (int y = 0; y < this.height; y += 1) {
+      int left = 0;
+      for (int tx = 0; tx < this.columns; tx += 1) {
+        int tile = (y / this.tileSize) * this.columns + tx;
+        int line = tile * this.tileSize + y % this.tileSize;
+        if (this.lengths[line] > 0) {
+          System.arraycopy(this.tiles[tile], (y % this.tileSize) * this.tileSize, result,
+              y * w + left, this.lengths[line]);
+        }
+        left += this.lengths[line];
+      }
+    }
+    return result;
+  }
+
+}
+
+// represents an animation carving one vertical seam per tick out of an image kept in tiles,
+// which only draws again the tiles each seam crossed
+class TiledCarving extends World {
+
+  final TiledSeamCarver carver;
+  final TileRenderer renderer;
+
+  // creates an animation carving the given packed w x h image
+  TiledCarving(int[] argb, int w, int h) {
+    this.carver = new TiledSeamCarver(argb, w, h);
+    this.renderer = new TileRenderer(this.carver);
+    this.carver.redraw(this.renderer);
+  }
+
+  // carves the next seam while more than one column is left, and hands the renderer the
+  // tiles it crossed
+  public void onTick() {
+    if (this.carver.width > 1) {
+      this.carver.carve();
+      this.carver.redraw(this.renderer);
+    }
+  }
+
+  // returns the scene of the tiles drawn so far
+  public WorldScene makeScene() {
+    return this.renderer.scene();
+  }
+
+}
+
+// represents one of the ways to carve an image, with what it costs in heap
+// The bytes per pixel were measured on a 64-bit JVM with compressed pointers, and round up
+// for the peaks of carving (transposed rows, workspaces and the planes of forward energy).
+class CarveEngine {
+
+  // the engines from the fastest to the slowest
+  static final CarveEngine FLAT = new CarveEngine("flat", 96, 0, false, true);
+  static final CarveEngine BANDED = new CarveEngine("banded", 0,
+      BandedSeamCarver.BAND_ROWS * 30 + 32, false, false);
+  static final CarveEngine GRAPH = new CarveEngine("graph", 192, 0, true, true);
+  static final CarveEngine[] ALL = { FLAT, BANDED, GRAPH };
+  static final long FIXED_BYTES = 1 << 20;
+
+  final String name;
+  final long bytesPerPixel;
+  final long bytesPerColumn;
+  final boolean undoable;
+  final boolean horizontal;
+
+  // creates an engine needing the given heap per pixel and per column of the image; undoable
+  // engines can put carved seams back, and horizontal ones can carve horizontal seams
+  CarveEngine(String name, long bytesPerPixel, long bytesPerColumn, boolean undoable,
+      boolean horizontal) {
+    this.name = name;
+    this.bytesPerPixel = bytesPerPixel;
+    this.bytesPerColumn = bytesPerColumn;
+    this.undoable = undoable;
+    this.horizontal = horizontal;
+  }
+
+  // can this engine carve seams in the given direction (v, h, or both alternating)?
+  boolean carves(String direction) {
+    return this.horizontal || direction.equals("v");
+  }
+
+  // throws if the carving of a w x h image that fits no engine but the banded one asks for
+  // options that only the flat engine has
+  static void checkBanded(int w, int h, boolean flatOptions) {
+    if (flatOptions) {
+      throw new IllegalArgumentException("A " + w + "x" + h + " image only fits the banded "
+          + "engine, which carves without --auto, --curve, --cache or frames");
+    }
+  }
+
+  // returns the estimated peak heap of carving a w x h image with this engine
+  long footprint(int w, int h) {
+    return FIXED_BYTES + this.bytesPerPixel * w * h + this.bytesPerColumn * w
+        + (long) Integer.BYTES * h;
+  }
+
+}
+
+// represents the engine chosen for one job, and the heap it holds while it runs
+class EnginePlan {
+
+  final CarveEngine engine;
+  final int width;
+  final int height;
+  final long bytes;
+
+  // creates the plan of carving a w x h image with the given engine
+  EnginePlan(CarveEngine engine, int width, int height) {
+    this.engine = engine;
+    this.width = width;
+    this.height = height;
+    this.bytes = engine.footprint(width, height);
+  }
+
+}
+
+// represents the admission of carving jobs into a heap budget shared by the jobs running at
+// the same time
+// Each job gets the fastest engine whose footprint fits in what the running jobs leave free.
+// When none does, the job waits (in arrival order) until enough running jobs release their
+// memory, instead of running out of it; a job that would not fit even alone is refused.
+class EnginePlanner {
+
+  final long budget;
+  long reserved;
+  int running;
+  // the jobs waiting for memory, in arrival order
+  final ArrayDeque<Object> waiting = new ArrayDeque<>();
+
+  // creates a planner for jobs sharing the given number of bytes
+  EnginePlanner(long budget) {
+    if (budget <= 0) {
+      throw new IllegalArgumentException("The memory budget must be positive");
+    }
+    this.budget = budget;
+  }
+
+  // creates a planner for jobs sharing three quarters of the maximum heap (the rest is left
+  // for the rest of the program and for the garbage collector to work in)
+  EnginePlanner() {
+    this(Runtime.getRuntime().maxMemory() / 4 * 3);
+  }
+
+  // returns the fastest engine for a w x h image (an undoable one, if asked) whose footprint
+  // fits in the given number of bytes and that carves seams in the given direction (v, h, or
+  // both alternating), or null if none does
+  CarveEngine choose(int w, int h, boolean undoable, String direction, long available) {
+    for (CarveEngine engine : CarveEngine.ALL) {
+      if ((engine.undoable || !undoable) && engine.carves(direction)
+          && engine.footprint(w, h) <= available) {
+        return engine;
+      }
+    }
+    return null;
+  }
+
+  // returns the fastest engine for a w x h image carved in vertical seams, as above
+  CarveEngine choose(int w, int h, boolean undoable, long available) {
+    return this.choose(w, h, undoable, "v", available);
+  }
+
+  // returns the fastest engine for a w x h image carved in the given direction that fits in
+  // the whole budget, as for a job running alone (the command-line tools), or throws if none
+  // does
+  CarveEngine require(int w, int h, boolean undoable, String direction) {
+    CarveEngine engine = this.choose(w, h, undoable, direction, this.budget);
+    if (engine == null) {
+      throw new IllegalArgumentException("A " + w + "x" + h + " image does not fit in "
+          + this.budget + " bytes with any " + (undoable ? "undoable " : "") + "engine"
+          + (direction.equals("v") ? "" : " carving " + direction + " seams"));
+    }
+    return engine;
+  }
+
+  // returns the plan of a w x h image carved in the given direction as soon as its engine
+  // fits beside the running jobs and the jobs that came first have started, holding its
+  // memory until it is released
+  synchronized EnginePlan acquire(int w, int h, boolean undoable, String direction)
+      throws InterruptedException {
+    this.require(w, h, undoable, direction);
+    Object job = new Object();
+    this.waiting.add(job);
+    try {
+      CarveEngine engine = this.choose(w, h, undoable, direction, this.budget - this.reserved);
+      while (this.waiting.peek() != job || engine == null) {
+        this.wait();
+        engine = this.choose(w, h, undoable, direction, this.budget - this.reserved);
+      }
+      return this.start(engine, w, h);
+    }
+    finally {
+      // a job that is interrupted while waiting gives its turn to the next one
+      this.waiting.remove(job);
+      this.notifyAll();
+    }
+  }
+
+  // returns the plan of a w x h image carved in vertical seams, as above
+  EnginePlan acquire(int w, int h, boolean undoable) throws InterruptedException {
+    return this.acquire(w, h, undoable, "v");
+  }
+
+  // returns the plan of a w x h image carved in the given direction if no job is waiting and
+  // its engine fits beside the running jobs right now (holding its memory until it is
+  // released), or null
+  synchronized EnginePlan tryAcquire(int w, int h, boolean undoable, String direction) {
+    CarveEngine engine = this.choose(w, h, undoable, direction, this.budget - this.reserved);
+    if (!this.waiting.isEmpty() || engine == null) {
+      return null;
+    }
+    return this.start(engine, w, h);
+  }
+
+  // returns the plan of a w x h image carved in vertical seams, as above
+  EnginePlan tryAcquire(int w, int h, boolean undoable) {
+    return this.tryAcquire(w, h, undoable, "v");
+  }
+
+  // returns the plan of a w x h image with the given engine, holding its memory
+  EnginePlan start(CarveEngine engine, int w, int h) {
+    EnginePlan plan = new EnginePlan(engine, w, h);
+    this.reserved += plan.bytes;
+    this.running += 1;
+    return plan;
+  }
+
+  // gives back the memory of the given finished job
+  synchronized void release(EnginePlan plan) {
+    this.reserved -= plan.bytes;
+    this.running -= 1;
+    this.notifyAll();
+  }
+
+}
+
+// represents what is done with each decoded row of a RawImage
+interface IRowConsumer {
+
+  // takes the given row of packed ARGB pixels (reused for the next row)
+  void accept(int y, int[] row) throws IOException;
+
+}
+
+// represents an image that RawImage writes out a row at a time
+interface IRowSource {
+
+  // hands the given consumer every row of the image, in order
+  void rows(IRowConsumer consumer) throws IOException;
+
+}
+
+// represents an image that is already decoded in a file: a binary PPM (P6), a PAM (P7) or
+// headerless RGBA bytes
+// The samples are memory-mapped, a bounded window of rows at a time, and converted straight
+// into a packed ARGB plane (or into the file of a BandedSeamCarver), so neither AWT nor a copy
+// of the file on the heap is involved, and processes reading the same file share its pages.
+// Samples wider than 8 bits are big-endian, as the formats say, and all are scaled to 0..255;
+// gray images get equal channels and images without alpha are opaque.
+class RawImage {
+
+  static final int HEADER_LIMIT = 1 << 16;
+  // the default number of bytes mapped at once
+  static final long WINDOW_BYTES = 1 << 26;
+
+  final Path file;
+  final int width;
+  final int height;
+  final int channels;
+  final int maxval;
+  final long offset;
+  // at most this many bytes of samples are mapped at once (but always at least one row)
+  final long windowBytes;
+
+  // creates the image of the given size and sample layout whose rows start at the given
+  // offset of the given file
+  RawImage(Path file, int width, int height, int channels, int maxval, long offset)
+      throws IOException {
+    this(file, width, height, channels, maxval, offset, WINDOW_BYTES);
+  }
+
+  // creates the image of the given size and sample layout whose rows start at the given
+  // offset of the given file, mapping at most the given number of bytes at once
+  RawImage(Path file, int width, int height, int channels, int maxval, long offset,
+      long windowBytes) throws IOException {
+    if (width < 1 || height < 1 || channels < 1 || channels > 4 || maxval < 1
+        || maxval > 65535) {
+      throw new IOException("Unsupported raw image layout in " + file);
+    }
+    if (windowBytes < 1) {
+      throw new IllegalArgumentException("The window must hold at least one byte");
+    }
+    this.file = file;
+    this.width = width;
+    this.height = height;
+    this.channels = channels;
+    this.maxval = maxval;
+    this.offset = offset;
+    this.windowBytes = windowBytes;
+    if (Files.size(file) < offset + this.rowBytes() * height) {
+      throw new IOException("The file is too short for a " + width + "x" + height
+          + " image: " + file);
+    }
+  }
+
+  // returns the image in the given binary PPM or PAM file
+  static RawImage open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          Math.min(channel.size(), HEADER_LIMIT));
+      if (header.remaining() < 2 || header.get() != 'P') {
+        throw new IOException("Not a binary PPM or PAM file: " + file);
+      }
+      byte kind = header.get();
+      if (kind == '6') {
+        int w = Integer.parseInt(token(header, file));
+        int h = Integer.parseInt(token(header, file));
+        int maxval = Integer.parseInt(token(header, file));
+        // exactly one whitespace byte separates the header from the samples
+        return new RawImage(file, w, h, 3, maxval, header.position() + 1);
+      }
+      if (kind == '7') {
+        HashMap<String, String> fields = new HashMap<>();
+        for (String key = token(header, file); !key.equals("ENDHDR");
+            key = token(header, file)) {
+          fields.put(key, token(header, file));
+        }
+        // the samples start after the end of the ENDHDR line
+        while (header.get() != '\n') {
+          continue;
+        }
+        try {
+          return new RawImage(file, Integer.parseInt(fields.get("WIDTH")),
+              Integer.parseInt(fields.get("HEIGHT")), Integer.parseInt(fields.get("DEPTH")),
+              Integer.parseInt(fields.get("MAXVAL")), header.position());
+        }
+        catch (NumberFormatException e) {
+          throw new IOException("Incomplete PAM header: " + file, e);
+        }
+      }
+      throw new IOException("Not a binary PPM or PAM file: " + file);
+    }
+    catch (BufferUnderflowException | NumberFormatException e) {
+      throw new IOException("Malformed header: " + file, e);
+    }
+  }
+
+  // returns the w x h image stored in the given file as headerless 8-bit RGBA
+  static RawImage openRgba(Path file, int w, int h) throws IOException {
+    return new RawImage(file, w, h, 4, 255, 0);
+  }
+
+  // returns the image in the given file: headerless RGBA if a size is given ("<w>x<h>"), and
+  // PPM or PAM otherwise
+  static RawImage open(Path file, String size) throws IOException {
+    if (size == null) {
+      return open(file);
+    }
+    String[] parts = size.split("x");
+    return openRgba(file, Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+  }
+
+  // writes the given packed w x h image to the given file: as a PAM with alpha if its name
+  // ends in .pam, and as a binary PPM otherwise
+  static void write(Path file, int[] argb, int w, int h) throws IOException {
+    write(file, w, h, consumer -> {
+      int[] row = new int[w];
+      for (int y = 0; y < h; y += 1) {
+        System.arraycopy(argb, y * w, row, 0, w);
+        consumer.accept(y, row);
+      }
+    });
+  }
+
+  // writes the w x h image whose rows the given source hands out to the given file, as above,
+  // so that the image never has to be in memory at once
+  static void write(Path file, int w, int h, IRowSource source) throws IOException {
+    boolean pam = file.toString().toLowerCase().endsWith(".pam");
+    int channels = pam ? 4 : 3;
+    // a builder rather than concatenation, whose first use bootstraps method handles: this is
+    // on the path of the headless CLI, where that would cost more than a small carve
+    String header = (pam ? new StringBuilder("P7\nWIDTH ").append(w).append("\nHEIGHT ").append(h)
+        .append("\nDEPTH 4\nMAXVAL 255\nTUPLTYPE RGB_ALPHA\nENDHDR\n")
+        : new StringBuilder("P6\n").append(w).append(' ').append(h).append("\n255\n"))
+        .toString();
+    int rowBytes = w * channels;
+    int rows = Math.max(1, Math.min(h, (1 << 20) / Math.max(1, rowBytes)));
+    ByteBuffer buffer = ByteBuffer.allocate(Math.max(header.length(), rows * rowBytes));
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      buffer.put(header.getBytes(StandardCharsets.US_ASCII));
+      source.rows((y, row) -> {
+        if (buffer.remaining() < rowBytes) {
+          drain(channel, buffer);
+        }
+        for (int x = 0; x < w; x += 1) {
+          int pixel = row[x];
+          buffer.put((byte) (pixel >> 16)).put((byte) (pixel >> 8)).put((byte) pixel);
+          if (pam) {
+            buffer.put((byte) (pixel >>> 24));
+          }
+        }
+      });
+      drain(channel, buffer);
+    }
+  }
+
+  // writes out what the given buffer holds and empties it
+  static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  // does the given file name look like a PPM, PAM or raw RGBA file?
+  static boolean handles(String name) {
+    String lower = name.toLowerCase();
+    return lower.endsWith(".ppm") || lower.endsWith(".pam") || lower.endsWith(".rgba");
+  }
+
+  // returns the next header token of a PPM or PAM header (comments skipped)
+  static String token(ByteBuffer header, Path file) throws IOException {
+    StringBuilder token = new StringBuilder();
+    while (true) {
+      char c = (char) header.get();
+      if (c == '#') {
+        while (header.get() != '\n') {
+          continue;
+        }
+      }
+      else if (!Character.isWhitespace(c)) {
+        token.append(c);
+      }
+      else if (token.length() > 0) {
+        // leaves the whitespace after the token unread
+        header.position(header.position() - 1);
+        return token.toString();
+      }
+    }
+  }
+
+  // returns the number of bytes of one row of samples
+  long rowBytes() {
+    return (long) this.width * this.channels * ((this.maxval > 255) ? 2 : 1);
+  }
+
+  // returns this image read through windows of the given number of bytes
+  RawImage withWindow(long windowBytes) throws IOException {
+    return new RawImage(this.file, this.width, this.height, this.channels, this.maxval,
+        this.offset, windowBytes);
+  }
+
+  // returns a new packed ARGB plane of the image
+  int[] toArgb() throws IOException {
+    int[] argb = new int[Math.multiplyExact(this.width, this.height)];
+    this.decode((y, row) -> System.arraycopy(row, 0, argb, y * this.width, this.width));
+    return argb;
+  }
+
+  // returns a flat carver over the image
+  FlatSeamCarver carver() throws IOException {
+    return new FlatSeamCarver(this.toArgb(), this.width, this.height, EnergyKernels.get());
+  }
+
+  // returns a flat carver over the image in the named file: a PPM or PAM, headerless RGBA of
+  // the given size ("<w>x<h>", or null), or anything ImageIO reads
+  static FlatSeamCarver load(String name, String rgbaSize) throws IOException {
+    RawImage raw = find(name, rgbaSize);
+    return (raw == null) ? carverOf(read(name)) : raw.carver();
+  }
+
+  // returns a flat carver over the given image
+  static FlatSeamCarver carverOf(BufferedImage image) {
+    int w = image.getWidth();
+    int h = image.getHeight();
+    return new FlatSeamCarver(image.getRGB(0, 0, w, h, null, 0, w), w, h, EnergyKernels.get());
+  }
+
+  // returns the image in the named file if it is a PPM, PAM or headerless RGBA of the given
+  // size ("<w>x<h>", or null), or null if ImageIO has to read it
+  static RawImage find(String name, String rgbaSize) throws IOException {
+    if (rgbaSize == null && !handles(name)) {
+      return null;
+    }
+    if (rgbaSize == null && name.toLowerCase().endsWith(".rgba")) {
+      throw new IOException("Headerless RGBA needs a size: " + name);
+    }
+    return open(Paths.get(name), rgbaSize);
+  }
+
+  // returns the image in the named file as ImageIO reads it
+  static BufferedImage read(String name) throws IOException {
+    BufferedImage image = ImageIO.read(new File(name));
+    if (image == null) {
+      throw new IOException("Unknown image format: " + name);
+    }
+    return image;
+  }
+
+  // writes the image into a new temporary file for a BandedSeamCarver, a window at a time,
+  // and returns it
+  Path spill() throws IOException {
+    Path target = Files.createTempFile("seamcarve", ".argb");
+    ByteBuffer buffer = ByteBuffer.allocate(this.width * Integer.BYTES);
+    try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+      this.decode((y, row) -> {
+        buffer.clear();
+        buffer.asIntBuffer().put(row);
+        while (buffer.hasRemaining()) {
+          out.write(buffer);
+        }
+      });
+    }
+    return target;
+  }
+
+  // maps the samples a window of rows at a time and hands the consumer every row as ARGB
+  void decode(IRowConsumer consumer) throws IOException {
+    long rowBytes = this.rowBytes();
+    int windowRows = (int) Math.max(1, Math.min(this.height, this.windowBytes / rowBytes));
+    byte[] samples = new byte[Math.toIntExact(rowBytes)];
+    int[] row = new int[this.width];
+    try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+      for (int y0 = 0; y0 < this.height; y0 += windowRows) {
+        int rows = Math.min(windowRows, this.height - y0);
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+            this.offset + y0 * rowBytes, rows * rowBytes);
+        for (int r = 0; r < rows; r += 1) {
+          window.get(samples);
+          this.convert(samples, row);
+          consumer.accept(y0 + r, row);
+        }
+      }
+    }
+  }
+
+  // converts one row of samples into packed ARGB pixels
+  void convert(byte[] samples, int[] row) {
+    int channels = this.channels;
+    if (this.maxval == 255) {
+      for (int x = 0, i = 0; x < row.length; x += 1, i += channels) {
+        int r = samples[i] & 0xFF;
+        int g = (channels >= 3) ? samples[i + 1] & 0xFF : r;
+        int b = (channels >= 3) ? samples[i + 2] & 0xFF : r;
+        int a = (channels == 4) ? samples[i + 3] & 0xFF
+            : (channels == 2) ? samples[i + 1] & 0xFF : 0xFF;
+        row[x] = (a << 24) | (r << 16) | (g << 8) | b;
+      }
+      return;
+    }
+    int bytes = (this.maxval > 255) ? 2 : 1;
+    int[] values = new int[4];
+    for (int x = 0; x < row.length; x += 1) {
+      for (int c = 0; c < channels; c += 1) {
+        int i = (x * channels + c) * bytes;
+        int value = (bytes == 2) ? ((samples[i] & 0xFF) << 8) | (samples[i + 1] & 0xFF)
+            : samples[i] & 0xFF;
+        values[c] = (value * 255 + this.maxval / 2) / this.maxval;
+      }
+      int r = values[0];
+      int g = (channels >= 3) ? values[1] : r;
+      int b = (channels >= 3) ? values[2] : r;
+      int a = (channels == 4) ? values[3] : (channels == 2) ? values[1] : 0xFF;
+      row[x] = (a << 24) | (r << 16) | (g << 8) | b;
+    }
+  }
+
+}
+
+// carves from the command line without AWT or javalib: the image comes in and goes out as a
+// PPM or PAM (or comes in as headerless RGBA of the size given with --rgba), and only the
+// flat engine, the energy kernels and RawImage are loaded, which keeps the start-up of short
+// jobs small (make headless also dumps a class-data sharing archive of those classes)
+// The EnginePlanner picks the engine from the size in the header: the flat engine, or the
+// banded one for vertical seams out of images whose planes do not fit in the heap.
+// usage: java -XX:SharedArchiveFile=headless.jsa -cp headless.jar HeadlessCarve
+//   <in.ppm|in.pam|in.rgba> <out.ppm|out.pam> <seams> [v|h|both] [--rgba <w>x<h>]
+//   [--auto <cost>|<percentile>%] [--curve <file.csv>] [--cache <dir>]
+class HeadlessCarve {
+
+  public static void main(String[] args) throws IOException {
+    HeadlessCarve.run(args, new EnginePlanner());
+  }
+
+  // carves as main does, with the engine the given planner chooses for the image alone
+  static void run(String[] args, EnginePlanner planner) throws IOException {
+    if (args.length < 3) {
+      throw new IllegalArgumentException("Usage: HeadlessCarve <in> <out.ppm|out.pam> <seams> "
+          + "[v|h|both] [--rgba <w>x<h>] [--auto <cost>|<percentile>%] [--curve <file>] "
+          + "[--cache <dir>]");
+    }
+    int seams = Integer.parseInt(args[2]);
+    String direction = "v";
+    String rgbaSize = null;
+    AutoTarget target = null;
+    String curve = null;
+    SeamCache cache = null;
+    for (int i = 3; i < args.length; i += 1) {
+      if (args[i].equals("--rgba")) {
+        rgbaSize = args[i + 1];
+        i += 1;
+      }
+      else if (args[i].equals("--auto")) {
+        target = new AutoTarget(args[i + 1]);
+        i += 1;
+      }
+      else if (args[i].equals("--curve")) {
+        curve = args[i + 1];
+        i += 1;
+      }
+      else if (args[i].equals("--cache")) {
+        cache = new SeamCache(Paths.get(args[i + 1]));
+        i += 1;
+      }
+      else {
+        direction = args[i];
+      }
+    }
+    if (cache != null && target != null) {
+      throw new IllegalArgumentException("--cache does not stop at a target, drop --auto");
+    }
+    long start = System.nanoTime();
+    RawImage image = RawImage.open(Paths.get(args[0]), rgbaSize);
+    CarveEngine engine = planner.require(image.width, image.height, false, direction);
+    int done = (engine == CarveEngine.BANDED)
+        ? HeadlessCarve.carveBanded(image, seams, Paths.get(args[1]),
+            cache != null || target != null || curve != null)
+        : HeadlessCarve.carveFlat(image, seams, direction, target, curve, cache,
+            Paths.get(args[1]));
+    StringBuilder report = new StringBuilder("seams=").append(done).append(" work_us=")
+        .append((System.nanoTime() - start) / 1000).append(" engine=").append(engine.name);
+    if (cache != null) {
+      report.append(" cache=").append((cache.hits.get() > 0) ? "hit" : "miss");
+    }
+    System.out.println(report);
+  }
+
+  // carves up to the given number of vertical seams out of the given image through a file of
+  // its pixels, and writes the result to the given file a band at a time; returns the number
+  // carved (the flat options must not be asked for)
+  static int carveBanded(RawImage image, int seams, Path out, boolean flatOptions)
+      throws IOException {
+    CarveEngine.checkBanded(image.width, image.height, flatOptions);
+    Path spilled = image.spill();
+    try (BandedSeamCarver banded = new BandedSeamCarver(spilled, image.width, image.height)) {
+      int done = banded.carveSeams(seams);
+      RawImage.write(out, banded.width, banded.height, banded::rows);
+      return done;
+    }
+    finally {
+      Files.delete(spilled);
+    }
+  }
+
+  // carves the given number of seams in the given direction out of the given image with the
+  // flat engine (the one chosen wherever the graph would fit too), stopping at the given
+  // target and going through the given cache if any, and writes the result and the cost
+  // curve to the given files; returns the number carved
+  static int carveFlat(RawImage image, int seams, String direction, AutoTarget target,
+      String curve, SeamCache cache, Path out) throws IOException {
+    FlatSeamCarver carver = image.carver();
+    int done = (cache == null) ? 0 : cache.carve(carver, seams, direction);
+    for (; cache == null && done < seams; done += 1) {
+      boolean isVert = direction.equals("v") || (direction.equals("both") && done % 2 == 0);
+      if ((isVert ? carver.width : carver.height) < 2) {
+        break;
+      }
+      if (target == null) {
+        carver.carve(isVert);
+      }
+      else if (carver.carveUnless(isVert, target) == null) {
+        break;
+      }
+    }
+    RawImage.write(out, carver.toArgb(), carver.width, carver.height);
+    if (curve != null) {
+      carver.seamCosts.writeCurve(Paths.get(curve));
+    }
+    return done;
+  }
+
+}
+
+// represents a destination for the images of a size ladder, taking each one as it is reached
+interface IFrameSink {
+
+  // takes the given packed w x h image (which it then owns)
+  void accept(int[] argb, int w, int h) throws IOException;
+
+}
+
+// represents a sink that writes every image it takes into a directory, as a PNG or JPEG
+// named after a prefix and either the image size or the image's number in the sequence
+class ImageDirectorySink implements IFrameSink {
+
+  final File dir;
+  final String prefix;
+  final String format;
+  final boolean numbered;
+  int count;
+
+  // creates a sink writing <prefix>-<w>x<h>.<format> files (or <prefix>-<number>.<format>,
+  // numbered from 0, if numbered) into the given directory
+  ImageDirectorySink(File dir, String prefix, String format, boolean numbered) {
+    this.dir = dir;
+    this.prefix = prefix;
+    this.format = format;
+    this.numbered = numbered;
+    this.count = 0;
+  }
+
+  // creates a sink writing <prefix>-<w>x<h>.png files into the given directory
+  ImageDirectorySink(File dir, String prefix) {
+    this(dir, prefix, "png", false);
+  }
+
+  // writes the given image
+  public void accept(int[] argb, int w, int h) throws IOException {
+    this.dir.mkdirs();
+    String name = this.numbered ? String.format("%05d", this.count) : w + "x" + h;
+    this.count += 1;
+    write(new File(this.dir, this.prefix + "-" + name + "." + this.format), this.format, argb,
+        w, h);
+  }
+
+  // writes the given packed w x h image to the given file in the given format
+  static void write(File file, String format, int[] argb, int w, int h) throws IOException {
+    BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+    image.setRGB(0, 0, w, h, argb, 0, w);
+    if (!ImageIO.write(image, format, file)) {
+      throw new IOException("No image writer for " + format);
+    }
+  }
+
+  // returns the image format of the given file name: JPEG for .jpg and .jpeg, PNG otherwise
+  static String formatOf(String name) {
+    String lower = name.toLowerCase();
+    return (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) ? "jpg" : "png";
+  }
+
+}
+
+// represents a sink that streams the images it takes into an animated GIF, one frame each
+// Frames go out as they come, so the animation is never held in memory. The first frame sets
+// the size of the animation; later, smaller frames are drawn at the top left after the last
+// frame is cleared.
+class GifAnimationSink implements IFrameSink, Closeable {
+
+  final ImageWriter writer;
+  final ImageOutputStream output;
+  final int delayMillis;
+  boolean first;
+
+  // creates a sink writing an endlessly looping animation with the given time between frames
+  // into the given file
+  GifAnimationSink(File file, int delayMillis) throws IOException {
+    Files.deleteIfExists(file.toPath());
+    this.writer = ImageIO.getImageWritersByFormatName("gif").next();
+    this.output = ImageIO.createImageOutputStream(file);
+    this.writer.setOutput(this.output);
+    this.writer.prepareWriteSequence(null);
+    this.delayMillis = delayMillis;
+    this.first = true;
+  }
+
+  // appends the given image as the next frame
+  public void accept(int[] argb, int w, int h) throws IOException {
+    BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+    image.setRGB(0, 0, w, h, argb, 0, w);
+    IIOMetadata metadata = this.writer.getDefaultImageMetadata(new ImageTypeSpecifier(image),
+        null);
+    String format = metadata.getNativeMetadataFormatName();
+    IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+    IIOMetadataNode control = new IIOMetadataNode("GraphicControlExtension");
+    control.setAttribute("disposalMethod", "restoreToBackgroundColor");
+    control.setAttribute("userInputFlag", "FALSE");
+    control.setAttribute("transparentColorFlag", "FALSE");
+    control.setAttribute("delayTime", Integer.toString(this.delayMillis / 10));
+    control.setAttribute("transparentColorIndex", "0");
+    root.appendChild(control);
+    if (this.first) {
+      // the NETSCAPE2.0 extension with 0 repetitions loops forever
+      IIOMetadataNode extensions = new IIOMetadataNode("ApplicationExtensions");
+      IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+      loop.setAttribute("applicationID", "NETSCAPE");
+      loop.setAttribute("authenticationCode", "2.0");
+      loop.setUserObject(new byte[] { 1, 0, 0 });
+      extensions.appendChild(loop);
+      root.appendChild(extensions);
+      this.first = false;
+    }
+    metadata.setFromTree(format, root);
+    this.writer.writeToSequence(new IIOImage(image, null, metadata), null);
+  }
+
+  // ends the animation and closes the file
+  public void close() throws IOException {
+    try {
+      this.writer.endWriteSequence();
+    }
+    finally {
+      this.output.close();
+      this.writer.dispose();
+    }
+  }
+
+}
+
+// represents one image waiting between a carver and a background sink
+class QueuedFrame {
+
+  final int[] argb;
+  final int width;
+  final int height;
+
+  // creates the waiting packed w x h image
+  QueuedFrame(int[] argb, int width, int height) {
+    this.argb = argb;
+    this.width = width;
+    this.height = height;
+  }
+
+}
+
+// represents a sink that hands the images it takes to another sink on a background thread
+// At most a fixed number of images wait in between: taking another one blocks until the
+// other sink is done with the oldest, so exporting any number of frames takes the same
+// memory and a fast carver never runs ahead of a slow encoder. A failure of the other sink
+// comes back out of the next accept or of close, which also closes the other sink.
+class AsyncFrameSink implements IFrameSink, Closeable {
+
+  static final QueuedFrame END = new QueuedFrame(new int[0], 0, 0);
+
+  final IFrameSink target;
+  final BlockingQueue<QueuedFrame> queue;
+  final ExecutorService executor;
+  final Future<Void> worker;
+
+  // creates a sink passing images to the given sink with at most the given number waiting
+  AsyncFrameSink(IFrameSink target, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("At least one image must be able to wait");
+    }
+    this.target = target;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    // a sink nobody closes must not keep the program running
+    this.executor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "frame-encode");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.worker = this.executor.submit(() -> {
+      try {
+        for (QueuedFrame frame = this.queue.take(); frame != END; frame = this.queue.take()) {
+          target.accept(frame.argb, frame.width, frame.height);
+        }
+      }
+      finally {
+        if (target instanceof Closeable) {
+          ((Closeable) target).close();
+        }
+      }
+      return null;
+    });
+  }
+
+  // queues the given image for the other sink, waiting while the queue is full
+  public void accept(int[] argb, int w, int h) throws IOException {
+    this.put(new QueuedFrame(argb, w, h));
+  }
+
+  // waits until the other sink has taken every image, and closes it
+  public void close() throws IOException {
+    if (!this.worker.isDone()) {
+      this.put(END);
+    }
+    this.finish();
+  }
+
+  // queues the given image, rethrowing the failure of the other sink if it stops taking them
+  void put(QueuedFrame frame) throws IOException {
+    try {
+      while (!this.queue.offer(frame, 10, TimeUnit.MILLISECONDS)) {
+        if (this.worker.isDone()) {
+          this.finish();
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the encoder");
+    }
+  }
+
+  // waits for the background thread to stop and rethrows its failure
+  void finish() throws IOException {
+    try {
+      this.worker.get();
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException("The encoder failed", e.getCause());
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the encoder");
+    }
+    finally {
+      this.executor.shutdown();
+    }
+  }
+
+}
+
+// exports a carving from the command line: carves the given number of seams out of an image
+// (anything ImageIO reads, a PPM or PAM, or headerless RGBA of the size given with --rgba)
+// and writes the result as a PNG or JPEG, plus, optionally, every few seams a frame of an
+// animated GIF or a numbered PNG in a directory
+// The EnginePlanner picks the engine from the image size: the flat engine, or the banded one
+// for vertical seams out of images whose planes do not fit in the heap.
+// usage: java -cp "jars/javalib.jar:bin" CarveExport <image> <out.png|out.jpg> <seams>
+//   [v|h|both] [--rgba <w>x<h>] [--gif <file.gif> | --frames <dir>] [--every <seams>]
+//   [--auto <cost>|<percentile>%] [--curve <file.csv>] [--cache <dir>]
+class CarveExport {
+
+  static final int BUFFERED_FRAMES = 4;
+  static final int FRAME_MILLIS = 40;
+
+  public static void main(String[] args) throws IOException {
+    CarveExport.run(args, new EnginePlanner());
+  }
+
+  // exports as main does, with the engine the given planner chooses for the image alone
+  static void run(String[] args, EnginePlanner planner) throws IOException {
+    if (args.length < 3) {
+      throw new IllegalArgumentException("Usage: CarveExport <image> <out> <seams> [v|h|both] "
+          + "[--rgba <w>x<h>] [--gif <file> | --frames <dir>] [--every <seams>] "
+          + "[--auto <cost>|<percentile>%] [--curve <file>] [--cache <dir>]");
+    }
+    int seams = Integer.parseInt(args[2]);
+    String direction = "v";
+    String gif = null;
+    String frameDir = null;
+    int every = 1;
+    String rgbaSize = null;
+    AutoTarget target = null;
+    String curve = null;
+    SeamCache cache = null;
+    for (int i = 3; i < args.length; i += 1) {
+      if (args[i].equals("--rgba")) {
+        rgbaSize = args[i + 1];
+        i += 1;
+      }
+      else if (args[i].equals("--gif")) {
+        gif = args[i + 1];
+        frameDir = null;
+        i += 1;
+      }
+      else if (args[i].equals("--frames")) {
+        frameDir = args[i + 1];
+        gif = null;
+        i += 1;
+      }
+      else if (args[i].equals("--every")) {
+        every = Integer.parseInt(args[i + 1]);
+        i += 1;
+      }
+      else if (args[i].equals("--auto")) {
+        target = new AutoTarget(args[i + 1]);
+        i += 1;
+      }
+      else if (args[i].equals("--curve")) {
+        curve = args[i + 1];
+        i += 1;
+      }
+      else if (args[i].equals("--cache")) {
+        cache = new SeamCache(Paths.get(args[i + 1]));
+        i += 1;
+      }
+      else {
+        direction = args[i];
+      }
+    }
+    if (cache != null && (target != null || gif != null || frameDir != null)) {
+      throw new IllegalArgumentException("--cache carves without frames or a target");
+    }
+    RawImage raw = RawImage.find(args[0], rgbaSize);
+    BufferedImage decoded = (raw == null) ? RawImage.read(args[0]) : null;
+    int w = (raw == null) ? decoded.getWidth() : raw.width;
+    int h = (raw == null) ? decoded.getHeight() : raw.height;
+    if (planner.require(w, h, false, direction) == CarveEngine.BANDED) {
+      CarveEngine.checkBanded(w, h, cache != null || target != null || curve != null
+          || gif != null || frameDir != null);
+      Path spilled = (raw == null)
+          ? BandedSeamCarver.spill(decoded.getRGB(0, 0, w, h, null, 0, w), w, h) : raw.spill();
+      try (BandedSeamCarver banded = new BandedSeamCarver(spilled, w, h)) {
+        banded.carveSeams(seams);
+        ImageDirectorySink.write(new File(args[1]), ImageDirectorySink.formatOf(args[1]),
+            banded.toArgb(), banded.width, banded.height);
+      }
+      finally {
+        Files.delete(spilled);
+      }
+      return;
+    }
+    // the flat engine fits wherever the graph does, so it is the only other engine chosen
+    FlatSeamCarver carver = (raw == null) ? RawImage.carverOf(decoded) : raw.carver();
+    // the sinks are only opened once every argument is known to be valid
+    try (AsyncFrameSink frames = CarveExport.openAnimation(gif, frameDir)) {
+      if (cache == null) {
+        new CarveExport().carve(carver, seams, direction, frames, every, target);
+      }
+      else {
+        cache.carve(carver, seams, direction);
+      }
+    }
+    ImageDirectorySink.write(new File(args[1]), ImageDirectorySink.formatOf(args[1]),
+        carver.toArgb(), carver.width, carver.height);
+    if (curve != null) {
+      carver.seamCosts.writeCurve(Paths.get(curve));
+    }
+  }
+
+  // returns a sink writing frames in the background into the given GIF file or else into the
+  // given directory, or null if neither is given
+  static AsyncFrameSink openAnimation(String gif, String frameDir) throws IOException {
+    if (gif != null) {
+      return new AsyncFrameSink(new GifAnimationSink(new File(gif), FRAME_MILLIS),
+          BUFFERED_FRAMES);
+    }
+    if (frameDir != null) {
+      return new AsyncFrameSink(new ImageDirectorySink(new File(frameDir), "frame", "png", true),
+          BUFFERED_FRAMES);
+    }
+    return null;
+  }
+
+  // carves the given number of seams in the given direction (v, h, or both alternating) out
+  // of the carver's image, handing the given sink (if any) the image before the first seam,
+  // after every given number of seams and after the last
+  void carve(FlatSeamCarver carver, int seams, String direction, IFrameSink frames, int every)
+      throws IOException {
+    this.carve(carver, seams, direction, frames, every, null);
+  }
+
+  // carves like the method above, but stops early at the first seam that the given target (if
+  // any) stops at, and returns the number of seams carved
+  int carve(FlatSeamCarver carver, int seams, String direction, IFrameSink frames, int every,
+      AutoTarget target) throws IOException {
+    if (frames != null) {
+      frames.accept(carver.toArgb(), carver.width, carver.height);
+    }
+    for (int seam = 1; seam <= seams; seam += 1) {
+      boolean isVert = direction.equals("v") || (direction.equals("both") && seam % 2 == 1);
+      if ((isVert ? carver.width : carver.height) < 2) {
+        return seam - 1;
+      }
+      if (target == null) {
+        carver.carve(isVert);
+      }
+      else if (carver.carveUnless(isVert, target) == null) {
+        if (frames != null && (seam - 1) % every != 0) {
+          frames.accept(carver.toArgb(), carver.width, carver.height);
+        }
+        return seam - 1;
+      }
+      if (frames != null && (seam % every == 0 || seam == seams)) {
+        frames.accept(carver.toArgb(), carver.width, carver.height);
+      }
+    }
+    return seams;
+  }
+
+}
+
+// represents a ladder of target widths carved out of one image in a single pass
+// Carving toward the narrowest width goes through every wider one, so the image is handed to
+// the sink whenever it reaches a width of the ladder. Each snapshot is exactly what carving
+// to that width alone gives, and the whole ladder costs about as much as its narrowest width.
+class SizeLadder {
+
+  final int[] widths;
+
+  // creates a ladder of the given widths, which must be positive and strictly decreasing
+  SizeLadder(int... widths) {
+    for (int i = 0; i < widths.length; i += 1) {
+      if (widths[i] < 1 || (i > 0 && widths[i] >= widths[i - 1])) {
+        throw new IllegalArgumentException("Ladder widths must be positive and decreasing");
+      }
+    }
+    this.widths = widths.clone();
+  }
+
+  // carves vertical seams out of the carver's image down to each width of the ladder in turn,
+  // handing the sink a copy of the image at each one
+  void carve(FlatSeamCarver carver, IFrameSink sink) throws IOException {
+    if (this.widths.length > 0 && this.widths[0] > carver.width) {
+      throw new IllegalArgumentException("Ladder width " + this.widths[0]
+          + " exceeds the image width " + carver.width);
+    }
+    for (int width : this.widths) {
+      while (carver.width > width) {
+        carver.carve(true);
+      }
+      sink.accept(carver.toArgb(), carver.width, carver.height);
+    }
+  }
+
+  // writes the given image carved to each given width as PNGs into the given directory
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3) {
+      throw new IllegalArgumentException("Usage: SizeLadder <image> <dir> <width>...");
+    }
+    int[] widths = new int[args.length - 2];
+    for (int i = 0; i < widths.length; i += 1) {
+      widths[i] = -Integer.parseInt(args[i + 2]);
+    }
+    Arrays.sort(widths);
+    for (int i = 0; i < widths.length; i += 1) {
+      widths[i] = -widths[i];
+    }
+    File file = new File(args[0]);
+    FlatSeamCarver carver = RawImage.load(args[0], null);
+    String name = file.getName().replaceFirst("\\.[^.]*$", "");
+    new SizeLadder(widths).carve(carver, new ImageDirectorySink(new File(args[1]), name));
+  }
+
+}
+
+// represents an approximate carving of vertical seams out of a wide image on several threads
+// The image is cut into vertical strips that each remove their share of the seams on their
+// own thread, with a FlatSeamCarver that also sees (but never carves) one column of each
+// neighboring strip, so energies at the strip edges are right at the start. Seams cannot cross
+// strip boundaries in that pass, so a reserve of seams is then carved in narrow bands around
+// each boundary of the stitched image, with the DP constrained to the band. Seams cost more
+// than those of carving the whole image (totalWeight against FlatSeamCarver.totalWeight).
+class StripCarver {
+
+  static final int HALO = 1;
+
+  final int threads;
+  final int strips;
+  final int bandWidth;
+  double totalWeight;
+
+  // creates a carver that cuts images into the given number of strips, carves them on the
+  // given number of threads and reconciles the boundaries in bands of the given width
+  StripCarver(int threads, int strips, int bandWidth) {
+    if (threads < 1 || strips < 1 || bandWidth < 2) {
+      throw new IllegalArgumentException("Threads, strips and band width must be positive");
+    }
+    this.threads = threads;
+    this.strips = strips;
+    this.bandWidth = bandWidth;
+  }
+
+  // creates a carver with one strip per thread and 32-column boundary bands
+  StripCarver(int threads) {
+    this(threads, threads, 32);
+  }
+
+  // returns the given packed w x h image without the given number of vertical seams (as a
+  // packed image seams columns narrower), and records the total energy of the removed seams
+  int[] carve(int[] argb, int w, int h, int seams) {
+    int strips = Math.max(1, Math.min(this.strips, w / (2 * this.bandWidth)));
+    if (seams < 0 || seams > w - 2 * strips) {
+      throw new IllegalArgumentException("Cannot remove " + seams + " seams from a " + w
+          + " pixel wide image in " + strips + " strips");
+    }
+    int boundaries = strips - 1;
+    int[] starts = new int[strips + 1];
+    for (int i = 0; i <= strips; i += 1) {
+      starts[i] = (int) ((long) w * i / strips);
+    }
+    int reserve = (boundaries == 0) ? 0
+        : Math.min(seams / (4 * boundaries), this.bandWidth / 4);
+    int[] shares = this.shares(starts, seams - reserve * boundaries);
+    for (int i = 0; i < strips; i += 1) {
+      if (starts[i + 1] - starts[i] - shares[i] < this.bandWidth) {
+        // the strips get too narrow for bands around their boundaries
+        reserve = 0;
+        shares = this.shares(starts, seams);
+      }
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+    try {
+      int[] stitched = this.carveRegions(pool, argb, w, h, starts, shares);
+      if (reserve == 0) {
+        return stitched;
+      }
+      // regions alternate between untouched stretches and bands centered on the boundaries
+      int width = w - seams + reserve * boundaries;
+      int[] bandStarts = new int[2 * boundaries + 2];
+      int[] bandShares = new int[2 * boundaries + 1];
+      int boundary = 0;
+      for (int i = 0; i < boundaries; i += 1) {
+        boundary += starts[i + 1] - starts[i] - shares[i];
+        bandStarts[2 * i + 1] = boundary - this.bandWidth / 2;
+        bandStarts[2 * i + 2] = boundary + this.bandWidth / 2;
+        bandShares[2 * i + 1] = reserve;
+      }
+      bandStarts[2 * boundaries + 1] = width;
+      double stripWeight = this.totalWeight;
+      stitched = this.carveRegions(pool, stitched, width, h, bandStarts, bandShares);
+      this.totalWeight += stripWeight;
+      return stitched;
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  // returns how many of the given seams each strip between consecutive given starts removes,
+  // in proportion to the strip widths (the rounding spread by cumulative counts)
+  int[] shares(int[] starts, int seams) {
+    int w = starts[starts.length - 1];
+    int[] shares = new int[starts.length - 1];
+    for (int i = 0; i < shares.length; i += 1) {
+      shares[i] = (int) ((long) seams * starts[i + 1] / w) - (int) ((long) seams * starts[i] / w);
+    }
+    return shares;
+  }
+
+  // carves the given number of seams out of each region between consecutive given starts of
+  // the given packed w x h image on the pool, and returns the regions stitched back together
+  // (regions with no seams are copied as they are); totalWeight becomes the energy removed
+  int[] carveRegions(ExecutorService pool, int[] argb, int w, int h, int[] starts,
+      int[] shares) {
+    int regions = shares.length;
+    ArrayList<Future<FlatSeamCarver>> carved = new ArrayList<>();
+    for (int i = 0; i < regions; i += 1) {
+      int from = Math.max(0, starts[i] - HALO);
+      int to = Math.min(w, starts[i + 1] + HALO);
+      int left = starts[i] - from;
+      int right = to - starts[i + 1];
+      int count = shares[i];
+      carved.add((count == 0) ? null : pool.submit(() -> {
+        int[] region = new int[(to - from) * h];
+        for (int y = 0; y < h; y += 1) {
+          System.arraycopy(argb, y * w + from, region, y * (to - from), to - from);
+        }
+        FlatSeamCarver carver = new FlatSeamCarver(region, to - from, h,
+            EnergyKernels.get());
+        carver.freezeColumns(left, right);
+        for (int seam = 0; seam < count; seam += 1) {
+          carver.carve(true);
+        }
+        return carver;
+      }));
+    }
+    int width = w;
+    for (int share : shares) {
+      width -= share;
+    }
+    int[] result = new int[width * h];
+    this.totalWeight = 0;
+    int column = 0;
+    for (int i = 0; i < regions; i += 1) {
+      int keep = starts[i + 1] - starts[i] - shares[i];
+      if (carved.get(i) == null) {
+        for (int y = 0; y < h; y += 1) {
+          System.arraycopy(argb, y * w + starts[i], result, y * width + column, keep);
+        }
+      }
+      else {
+        FlatSeamCarver carver = this.join(carved.get(i));
+        int left = starts[i] - Math.max(0, starts[i] - HALO);
+        for (int y = 0; y < h; y += 1) {
+          System.arraycopy(carver.argb, y * carver.stride + left, result, y * width + column,
+              keep);
+        }
+        this.totalWeight += carver.totalWeight;
+      }
+      column += keep;
+    }
+    return result;
+  }
+
+  // returns the result of the given task, rethrowing its failure
+  FlatSeamCarver join(Future<FlatSeamCarver> task) {
+    try {
+      return task.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while carving strips", e);
+    }
+    catch (ExecutionException e) {
+      throw new IllegalStateException("Carving a strip failed", e.getCause());
+    }
+  }
+
+}
+
+// represents a way of scoring how much each pixel of a packed image matters (seams go through
+// the pixels with the least energy)
+// A function follows one image from reset on: the carver tells it about every seam it removes
+// so that it can update whatever it keeps about the image instead of rebuilding it.
+interface IEnergyFunction {
+
+  // starts following the given w x h packed image, whose rows are the given stride apart
+  void reset(int[] argb, int stride, int w, int h);
+
+  // computes the energy of every pixel of the image into the given buffer (w per row)
+  void energies(double[] out);
+
+  // updates this function after the given seam was removed from the image (the column of a
+  // vertical seam in every row, or the row of a horizontal seam in every column)
+  void seamRemoved(int[] path, boolean isVert);
+
+  // returns a name for this function and its parameters, the same for any two functions that
+  // compute the same energies (SeamCache keys its entries with it), or null if the energies
+  // depend on more than the image, so that no name covers them
+  String id();
+
+}
+
+// represents the 3x3 Sobel energy on mean RGB brightness (the energy of Pixel.energy())
+class SobelEnergy implements IEnergyFunction {
+
+  final IEnergyKernel kernel;
+  int[] argb;
+  int stride;
+  int width;
+  int height;
+  double[] brightness;
+
+  // creates the Sobel energy computed by the given kernel
+  SobelEnergy(IEnergyKernel kernel) {
+    this.kernel = kernel;
+  }
+
+  // creates the Sobel energy computed by the fastest kernel
+  SobelEnergy() {
+    this(EnergyKernels.get());
+  }
+
+  // starts following the given image
+  public void reset(int[] argb, int stride, int w, int h) {
+    this.argb = argb;
+    this.stride = stride;
+    this.width = w;
+    this.height = h;
+    this.brightness = new double[(w + 2) * (h + 2)];
+  }
+
+  // computes the energy of every pixel of the image
+  public void energies(double[] out) {
+    this.fillBrightness();
+    this.kernel.energies(this.brightness, this.width, this.height, out);
+  }
+
+  // the energies are recomputed from the image, so only its size is kept
+  public void seamRemoved(int[] path, boolean isVert) {
+    if (isVert) {
+      this.width -= 1;
+    }
+    else {
+      this.height -= 1;
+    }
+  }
+
+  // names the Sobel energy and the kernel that computes it
+  public String id() {
+    return "sobel/" + this.kernel.getClass().getSimpleName();
+  }
+
+  // writes the padded brightness plane of the image, with the same arithmetic as
+  // Pixel.brightness()
+  void fillBrightness() {
+    int w = this.width;
+    int h = this.height;
+    int padded = w + 2;
+    double[] plane = this.brightness;
+    Arrays.fill(plane, 0, padded, 0);
+    Arrays.fill(plane, (h + 1) * padded, (h + 2) * padded, 0);
+    for (int y = 0; y < h; y += 1) {
+      int offset = (y + 1) * padded + 1;
+      int row = y * this.stride;
+      plane[offset - 1] = 0;
+      for (int x = 0; x < w; x += 1) {
+        plane[offset + x] = SobelEnergy.brightness(this.argb[row + x]);
+      }
+      plane[offset + w] = 0;
+    }
+  }
+
+  // returns the brightness of the given packed color, with the same arithmetic as
+  // Pixel.brightness()
+  static double brightness(int rgb) {
+    return ((((rgb >> 16) & 0xFF) + (rgb & 0xFF) + ((rgb >> 8) & 0xFF)) / 3.0) / 255.0;
+  }
+
+}
+
+// represents the Sobel energy of a window of a larger image, whose padding is the pixels
+// around the window rather than black, so that the surroundings are a fixed boundary
+// The padding stays the pixels around the window as it was cut out: the column right of it
+// (or the row below it) is still the one next to the window after seams narrowed it.
+class WindowSobelEnergy extends SobelEnergy {
+
+  final int[] image;
+  final int imageWidth;
+  final int imageHeight;
+  final int left;
+  final int top;
+  final int windowWidth;
+  final int windowHeight;
+
+  // creates the Sobel energy, computed by the given kernel, of the given window of the given
+  // packed image
+  WindowSobelEnergy(IEnergyKernel kernel, int[] image, int imageWidth, int imageHeight,
+      int left, int top, int windowWidth, int windowHeight) {
+    super(kernel);
+    this.image = image;
+    this.imageWidth = imageWidth;
+    this.imageHeight = imageHeight;
+    this.left = left;
+    this.top = top;
+    this.windowWidth = windowWidth;
+    this.windowHeight = windowHeight;
+  }
+
+  // the energies depend on pixels outside the window, which no name of this function covers
+  public String id() {
+    return null;
+  }
+
+  // writes the padded brightness plane of the window, padded with its surroundings
+  void fillBrightness() {
+    super.fillBrightness();
+    int w = this.width;
+    int h = this.height;
+    int padded = w + 2;
+    for (int x = -1; x <= w; x += 1) {
+      this.brightness[x + 1] = this.around(x, -1);
+      this.brightness[(h + 1) * padded + x + 1] = this.around(x, h);
+    }
+    for (int y = 0; y < h; y += 1) {
+      this.brightness[(y + 1) * padded] = this.around(-1, y);
+      this.brightness[(y + 1) * padded + w + 1] = this.around(w, y);
+    }
+  }
+
+  // returns the brightness of the image pixel at the given position around the window
+  // (0 outside the image, as for the plain Sobel energy)
+  double around(int x, int y) {
+    int imageX = (x < 0) ? this.left - 1
+        : (x >= this.width) ? this.left + this.windowWidth : this.left + x;
+    int imageY = (y < 0) ? this.top - 1
+        : (y >= this.height) ? this.top + this.windowHeight : this.top + y;
+    if (imageX < 0 || imageX >= this.imageWidth || imageY < 0 || imageY >= this.imageHeight) {
+      return 0;
+    }
+    return SobelEnergy.brightness(this.image[imageY * this.imageWidth + imageX]);
+  }
+
+}
+
+// represents a summed-area table (integral image) of one integer value per pixel, so that
+// the sum over any rectangle costs four lookups
+// The table is padded with a zero row and column: entry (x, y) is the sum over the pixels
+// left of column x and above row y. When a seam is removed only the entries past the first
+// crossing of the seam in each row (or column) change, and they are updated in place.
+class SummedAreaTable {
+
+  final long[] table;
+  final int stride;
+  int width;
+  int height;
+  long[] previous;
+  long[] current;
+
+  // creates an empty table for images of up to the given size
+  SummedAreaTable(int maxWidth, int maxHeight) {
+    this.stride = maxWidth + 1;
+    this.table = new long[this.stride * (maxHeight + 1)];
+    this.previous = new long[Math.max(maxWidth, maxHeight) + 1];
+    this.current = new long[Math.max(maxWidth, maxHeight) + 1];
+  }
+
+  // fills this table with the given value of each pixel of the given w x h packed image
+  void build(int[] argb, int argbStride, int w, int h, IntUnaryOperator value) {
+    this.width = w;
+    this.height = h;
+    Arrays.fill(this.table, 0, w + 1, 0);
+    for (int y = 0; y < h; y += 1) {
+      int base = (y + 1) * this.stride;
+      long rowSum = 0;
+      this.table[base] = 0;
+      for (int x = 0; x < w; x += 1) {
+        rowSum += value.applyAsInt(argb[y * argbStride + x]);
+        this.table[base + x + 1] = this.table[base - this.stride + x + 1] + rowSum;
+      }
+    }
+  }
+
+  // returns the sum over the pixels from (x0, y0) to (x1, y1) inclusive
+  long sum(int x0, int y0, int x1, int y1) {
+    int top = y0 * this.stride;
+    int bottom = (y1 + 1) * this.stride;
+    return this.table[bottom + x1 + 1] - this.table[bottom + x0] - this.table[top + x1 + 1]
+        + this.table[top + x0];
+  }
+
+  // updates this table after the given seam was removed from the image
+  // Walking along the seam, a line (row of a vertical seam, column of a horizontal one) only
+  // changes from the leftmost crossing so far on: there its prefix sums lose the removed
+  // pixel and the entries shift by one. The old entries of the line above are kept in a
+  // buffer because the update overwrites them. Every prefix sum past a removed pixel changes,
+  // so a seam that starts near the left (or top) edge rewrites most of the table: up to w * h
+  // entries, as many as build() writes but without reading any pixel, and as many as the
+  // energy pass that reads the table after each seam.
+  void removeSeam(int[] path, boolean isVert) {
+    int lineStep = isVert ? this.stride : 1;
+    int posStep = isVert ? 1 : this.stride;
+    int lines = isVert ? this.height : this.width;
+    int length = isVert ? this.width : this.height;
+    int first = Integer.MAX_VALUE;
+    int previousFirst = Integer.MAX_VALUE;
+    for (int line = 1; line <= lines; line += 1) {
+      int cut = path[line - 1] + 1;
+      first = Math.min(first, cut);
+      int base = line * lineStep;
+      int above = base - lineStep;
+      for (int pos = first - 1; pos <= length; pos += 1) {
+        this.current[pos] = this.table[base + pos * posStep];
+      }
+      long removed = this.along(cut, above, posStep, previousFirst)
+          - this.along(cut - 1, above, posStep, previousFirst);
+      for (int pos = first; pos < length; pos += 1) {
+        long along = (pos < cut) ? this.along(pos, above, posStep, previousFirst)
+            : this.along(pos + 1, above, posStep, previousFirst) - removed;
+        this.table[base + pos * posStep] = this.table[above + pos * posStep] + along;
+      }
+      long[] temp = this.previous;
+      this.previous = this.current;
+      this.current = temp;
+      previousFirst = first;
+    }
+    if (isVert) {
+      this.width -= 1;
+    }
+    else {
+      this.height -= 1;
+    }
+  }
+
+  // returns the old prefix sum of the current line up to the given position: its old table
+  // entry minus the old entry of the line above (unchanged in the table before the line
+  // above's first updated position, kept in the buffer from there on)
+  private long along(int pos, int above, int posStep, int previousFirst) {
+    long oldAbove = (pos < previousFirst) ? this.table[above + pos * posStep]
+        : this.previous[pos];
+    return this.current[pos] - oldAbove;
+  }
+
+}
+
+// represents the variance of the channel sum (r + g + b) over a square window around each
+// pixel, in brightness units squared (the window is cut off at the image's edges)
+// Sums of values and of squared values come from two summed-area tables, so the energy costs
+// the same for every window size.
+class LocalVarianceEnergy implements IEnergyFunction {
+
+  final int radius;
+  int width;
+  int height;
+  SummedAreaTable sums;
+  SummedAreaTable squares;
+
+  // creates the variance over the given odd window size
+  LocalVarianceEnergy(int window) {
+    if (window < 1 || window % 2 == 0) {
+      throw new IllegalArgumentException("Window must be odd and positive: " + window);
+    }
+    this.radius = window / 2;
+  }
+
+  // starts following the given image
+  public void reset(int[] argb, int stride, int w, int h) {
+    this.width = w;
+    this.height = h;
+    this.sums = new SummedAreaTable(w, h);
+    this.squares = new SummedAreaTable(w, h);
+    this.sums.build(argb, stride, w, h, rgb -> LocalVarianceEnergy.channelSum(rgb));
+    this.squares.build(argb, stride, w, h,
+        rgb -> LocalVarianceEnergy.channelSum(rgb) * LocalVarianceEnergy.channelSum(rgb));
+  }
+
+  // returns r + g + b of the given packed color
+  static int channelSum(int rgb) {
+    return ((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF);
+  }
+
+  // computes the energy of every pixel of the image
+  public void energies(double[] out) {
+    int w = this.width;
+    int h = this.height;
+    for (int y = 0; y < h; y += 1) {
+      int y0 = Math.max(0, y - this.radius);
+      int y1 = Math.min(h - 1, y + this.radius);
+      for (int x = 0; x < w; x += 1) {
+        int x0 = Math.max(0, x - this.radius);
+        int x1 = Math.min(w - 1, x + this.radius);
+        long n = (long) (x1 - x0 + 1) * (y1 - y0 + 1);
+        long sum = this.sums.sum(x0, y0, x1, y1);
+        long square = this.squares.sum(x0, y0, x1, y1);
+        // exact in longs, so the energy does not depend on the order of updates
+        out[y * w + x] = (n * square - sum * sum) / (n * n * 765.0 * 765.0);
+      }
+    }
+  }
+
+  // updates both tables along the removed seam
+  public void seamRemoved(int[] path, boolean isVert) {
+    this.sums.removeSeam(path, isVert);
+    this.squares.removeSeam(path, isVert);
+    if (isVert) {
+      this.width -= 1;
+    }
+    else {
+      this.height -= 1;
+    }
+  }
+
+  // names the variance and its window size
+  public String id() {
+    return "variance/" + (2 * this.radius + 1);
+  }
+
+}
+
+// represents the Shannon entropy (in bits) of the histogram of channel sums (r + g + b) in a
+// square window around each pixel (cut off at the image's edges)
+// Every histogram bin has its own summed-area table of pixel counts, so the energy costs
+// O(bins) per pixel for every window size, the tables take 8 * bins bytes per pixel, and a
+// seam updates every one of them (up to bins * w * h entries, see SummedAreaTable). The bins
+// are bounded by MAX_BINS, which keeps the tables within 256 bytes per pixel.
+class EntropyEnergy implements IEnergyFunction {
+
+  static final int MAX_BINS = 32;
+
+  final int radius;
+  final int bins;
+  final double[] countLogCount;
+  int width;
+  int height;
+  SummedAreaTable[] counts;
+
+  // creates the entropy over the given odd window size with the given number of bins
+  EntropyEnergy(int window, int bins) {
+    if (window < 1 || window % 2 == 0) {
+      throw new IllegalArgumentException("Window must be odd and positive: " + window);
+    }
+    if (bins < 2 || bins > MAX_BINS) {
+      throw new IllegalArgumentException("Bins must be between 2 and " + MAX_BINS + ": "
+          + bins);
+    }
+    this.radius = window / 2;
+    this.bins = bins;
+    this.countLogCount = new double[window * window + 1];
+    for (int c = 1; c < this.countLogCount.length; c += 1) {
+      this.countLogCount[c] = c * Math.log(c) / Math.log(2);
+    }
+  }
+
+  // creates the entropy over the given odd window size with 8 bins
+  EntropyEnergy(int window) {
+    this(window, 8);
+  }
+
+  // starts following the given image
+  public void reset(int[] argb, int stride, int w, int h) {
+    this.width = w;
+    this.height = h;
+    this.counts = new SummedAreaTable[this.bins];
+    for (int b = 0; b < this.bins; b += 1) {
+      int bin = b;
+      this.counts[b] = new SummedAreaTable(w, h);
+      this.counts[b].build(argb, stride, w, h, rgb -> (this.binOf(rgb) == bin) ? 1 : 0);
+    }
+  }
+
+  // returns the histogram bin of the given packed color
+  int binOf(int rgb) {
+    return LocalVarianceEnergy.channelSum(rgb) * this.bins / 766;
+  }
+
+  // computes the energy of every pixel of the image: with c_b pixels of the n in the window
+  // in bin b, the entropy is log n - (sum of c_b log c_b) / n
+  public void energies(double[] out) {
+    int w = this.width;
+    int h = this.height;
+    for (int y = 0; y < h; y += 1) {
+      int y0 = Math.max(0, y - this.radius);
+      int y1 = Math.min(h - 1, y + this.radius);
+      for (int x = 0; x < w; x += 1) {
+        int x0 = Math.max(0, x - this.radius);
+        int x1 = Math.min(w - 1, x + this.radius);
+        int n = (x1 - x0 + 1) * (y1 - y0 + 1);
+        double spread = 0;
+        for (SummedAreaTable count : this.counts) {
+          spread += this.countLogCount[(int) count.sum(x0, y0, x1, y1)];
+        }
+        out[y * w + x] = (this.countLogCount[n] - spread) / n;
+      }
+    }
+  }
+
+  // updates every bin's table along the removed seam
+  public void seamRemoved(int[] path, boolean isVert) {
+    for (SummedAreaTable count : this.counts) {
+      count.removeSeam(path, isVert);
+    }
+    if (isVert) {
+      this.width -= 1;
+    }
+    else {
+      this.height -= 1;
+    }
+  }
+
+  // names the entropy, its window size and its number of bins
+  public String id() {
+    return "entropy/" + (2 * this.radius + 1) + "/" + this.bins;
+  }
+
+}
+
+// represents the plain one-element-at-a-time kernel (works on every JDK)
+class ScalarEnergyKernel implements IEnergyKernel {
+
+  // computes the energy of every pixel from the given padded brightness plane
+  public void energies(double[] brightness, int w, int h, double[] out) {
+    this.energies(brightness, w, h, out, 0);
+  }
+
+  // computes the energy of every pixel from the given padded brightness plane into the given
+  // buffer from the given index on
+  public void energies(double[] brightness, int w, int h, double[] out, int offset) {
+    int stride = w + 2;
+    for (int y = 0; y < h; y += 1) {
+      int center = (y + 1) * stride + 1;
+      for (int x = 0; x < w; x += 1) {
+        int i = center + x;
+        double upLeft = brightness[i - stride - 1];
+        double up = brightness[i - stride];
+        double upRight = brightness[i - stride + 1];
+        double left = brightness[i - 1];
+        double right = brightness[i + 1];
+        double downLeft = brightness[i + stride - 1];
+        double down = brightness[i + stride];
+        double downRight = brightness[i + stride + 1];
+        // same operation order as Pixel.horizEnergy() and Pixel.vertEnergy()
+        double horiz = upLeft + 2 * left + downLeft - (upRight + 2 * right + downRight);
+        double vert = upLeft + 2 * up + upRight - (downLeft + 2 * down + downRight);
+        out[offset + y * w + x] = Math.sqrt(horiz * horiz + vert * vert);
+      }
+    }
+  }
+
+  // computes one DP row, preferring the pixel straight above, then top-left, then top-right
+  public void minPlusAdd(double[] prev, double[] energy, int offset, double[] next, int[] parents,
+      int w) {
+    for (int x = 0; x < w; x += 1) {
+      double minC = prev[x + 1];
+      int minIdx = x;
+      if (prev[x] < minC) {
+        minC = prev[x];
+        minIdx = x - 1;
+      }
+      if (prev[x + 2] < minC) {
+        minC = prev[x + 2];
+        minIdx = x + 1;
+      }
+      next[x + 1] = minC + energy[offset + x];
+      parents[offset + x] = minIdx;
+    }
+  }
+
+}
+
+// represents the integer energy and DP passes used by the fixed-point mode
+// Luminance is the channel sum r + g + b (0..765) stored as a short, the gradient magnitude
+// is the L1 norm |horiz| + |vert| of the Sobel responses (at most 6120) and cumulative
+// costs saturate at Integer.MAX_VALUE instead of overflowing.
+class FixedPointKernel {
+
+  // computes the L1 energy of every pixel from the given padded luminance plane
+  void energies(short[] luminance, int w, int h, int[] out) {
+    this.energies(luminance, w, h, out, 0);
+  }
+
+  // computes the L1 energies as above into the given buffer from the given index on
+  void energies(short[] luminance, int w, int h, int[] out, int offset) {
+    int stride = w + 2;
+    for (int y = 0; y < h; y += 1) {
+      int center = (y + 1) * stride + 1;
+      for (int x = 0; x < w; x += 1) {
+        int i = center + x;
+        int upLeft = luminance[i - stride - 1];
+        int upRight = luminance[i - stride + 1];
+        int downLeft = luminance[i + stride - 1];
+        int downRight = luminance[i + stride + 1];
+        int horiz = upLeft + 2 * luminance[i - 1] + downLeft
+            - (upRight + 2 * luminance[i + 1] + downRight);
+        int vert = upLeft + 2 * luminance[i - stride] + upRight
+            - (downLeft + 2 * luminance[i + stride] + downRight);
+        out[offset + y * w + x] = Math.abs(horiz) + Math.abs(vert);
+      }
+    }
+  }
+
+  // computes one DP row with the same tie-breaking as ScalarEnergyKernel; prev and next are
+  // padded with Integer.MAX_VALUE on both ends
+  void minPlusAdd(int[] prev, int[] energy, int offset, int[] next, int[] parents, int w) {
+    for (int x = 0; x < w; x += 1) {
+      int minC = prev[x + 1];
+      int minIdx = x;
+      if (prev[x] < minC) {
+        minC = prev[x];
+        minIdx = x - 1;
+      }
+      if (prev[x + 2] < minC) {
+        minC = prev[x + 2];
+        minIdx = x + 1;
+      }
+      int sum = minC + energy[offset + x];
+      next[x + 1] = (sum < minC) ? Integer.MAX_VALUE : sum;
+      parents[offset + x] = minIdx;
+    }
+  }
+
+}
+
+// represents the registry of available energy kernels
+// The SIMD kernel (VectorEnergyKernel in src17) only exists in JDK 17+ builds and needs
+// --add-modules jdk.incubator.vector at runtime; otherwise the scalar kernel is used.
+// Both kernels perform the same IEEE operations in the same order, so energies and costs
+// agree to within TOLERANCE (in practice they are bit-identical).
+class EnergyKernels {
+
+  // the largest difference allowed between the energies or costs of two kernels
+  static final double TOLERANCE = 1e-12;
+
+  private static final IEnergyKernel SCALAR = new ScalarEnergyKernel();
+  private static final IEnergyKernel BEST = EnergyKernels.load();
+
+  // returns the fastest kernel available on this JVM
+  static IEnergyKernel get() {
+    return BEST;
+  }
+
+  // returns the scalar kernel
+  static IEnergyKernel scalar() {
+    return SCALAR;
+  }
+
+  // loads the vector kernel if this JVM can run it, unless -Dseamcarve.kernel=scalar is set
+  private static IEnergyKernel load() {
+    if ("scalar".equals(System.getProperty("seamcarve.kernel"))) {
+      return SCALAR;
+    }
+    try {
+      return (IEnergyKernel) Class.forName("VectorEnergyKernel").getDeclaredConstructor()
+          .newInstance();
+    }
+    catch (ReflectiveOperationException | LinkageError e) {
+      return SCALAR;
+    }
+  }
+
+  // returns the largest absolute difference between the two given planes
+  static double maxDeviation(double[] a, double[] b) {
+    double max = 0;
+    for (int i = 0; i < a.length; i += 1) {
+      max = Math.max(max, Math.abs(a[i] - b[i]));
+    }
+    return max;
+  }
+
+}
+
+// represents the first full-frame pass over a pixel graph, its brightness plane (or luminance
+// plane in fixed point) and then its energy plane, as a fork-join task over blocks of rows
+// Each block reads its rows and the one row above and below them from the pixel graph once,
+// into a padded plane of its own small enough to stay in a core's L2 cache, and the kernel
+// writes the block's energies straight into the shared energy plane. Blocks only share the
+// rows they read, so no block waits for another: the brightness of the rows at their edges
+// is computed twice instead. The energies are bit-identical to the sequential pass.
+class EnergyPlanes extends RecursiveAction {
+
+  private static final long serialVersionUID = 1L;
+  // the bytes of a block's padded plane
+  static final int BLOCK_BYTES = 1 << 18;
+  static final int MIN_BLOCK_ROWS = 8;
+  // images below this many pixels are computed on the calling thread
+  static final int PARALLEL_PIXELS = 1 << 18;
+  // the number of tasks per worker thread, so that workers that finish early can steal
+  static final int TASKS_PER_WORKER = 8;
+  // the padded planes of each worker thread, kept from one pass to the next and grown when a
+  // pass needs larger blocks (so a worker holds about BLOCK_BYTES of each between passes)
+  static final ThreadLocal<double[]> BRIGHTNESS = ThreadLocal.withInitial(() -> new double[0]);
+  static final ThreadLocal<short[]> LUMINANCE = ThreadLocal.withInitial(() -> new short[0]);
+
+  final ArrayList<PixelRow> pixels;
+  final int width;
+  final int height;
+  final IEnergyKernel kernel;
+  final double[] energies;
+  final FixedPointKernel fixedKernel;
+  final int[] fixedEnergies;
+  final int blockRows;
+  final int from;
+  final int to;
+  int taskRows;
+
+  // creates the task computing the energies of the given pixels with the given kernel into the
+  // start of the given buffer (exactly one of the kernels and one of the buffers is given),
+  // from the given row to the given row, in blocks of the given number of rows
+  EnergyPlanes(ArrayList<PixelRow> pixels, IEnergyKernel kernel, double[] energies,
+      FixedPointKernel fixedKernel, int[] fixedEnergies, int blockRows, int from, int to) {
+    if (blockRows < 1) {
+      throw new IllegalArgumentException("Blocks must have at least one row: " + blockRows);
+    }
+    this.pixels = pixels;
+    this.width = pixels.get(0).size();
+    this.height = pixels.size();
+    this.kernel = kernel;
+    this.energies = energies;
+    this.fixedKernel = fixedKernel;
+    this.fixedEnergies = fixedEnergies;
+    this.blockRows = blockRows;
+    this.from = from;
+    this.to = to;
+    this.taskRows = 0;
+  }
+
+  // creates the task computing every energy of the given pixels with the given kernel into the
+  // start of the given buffer, in blocks of the given number of rows
+  EnergyPlanes(ArrayList<PixelRow> pixels, IEnergyKernel kernel, double[] energies,
+      int blockRows) {
+    this(pixels, kernel, energies, null, null, blockRows, 0, pixels.size());
+  }
+
+  // creates the task computing every fixed-point energy of the given pixels with the given
+  // kernel into the start of the given buffer, in blocks of the given number of rows
+  EnergyPlanes(ArrayList<PixelRow> pixels, FixedPointKernel kernel, int[] energies,
+      int blockRows) {
+    this(pixels, null, null, kernel, energies, blockRows, 0, pixels.size());
+  }
+
+  // creates the task for the given rows of the given task's image
+  EnergyPlanes(EnergyPlanes parent, int from, int to) {
+    this(parent.pixels, parent.kernel, parent.energies, parent.fixedKernel,
+        parent.fixedEnergies, parent.blockRows, from, to);
+    this.taskRows = parent.taskRows;
+  }
+
+  // returns the rows of a block of a w-wide image: as many as fit BLOCK_BYTES with the two rows
+  // around them, but at least MIN_BLOCK_ROWS
+  static int blockRows(int w) {
+    return Math.max(MIN_BLOCK_ROWS, BLOCK_BYTES / Double.BYTES / (w + 2) - 2);
+  }
+
+  // is a w x h image large enough to be worth computing on the fork-join pool?
+  static boolean parallel(int w, int h) {
+    return (long) w * h >= PARALLEL_PIXELS;
+  }
+
+  // computes the energies of this task's rows: splits them in half until each task has about
+  // TASKS_PER_WORKER times fewer rows than the pool has workers, then goes block by block
+  protected void compute() {
+    if (this.taskRows == 0) {
+      // the common pool lets the thread that invokes it run the task, outside the pool
+      ForkJoinPool pool = ForkJoinTask.getPool();
+      int tasks = TASKS_PER_WORKER * ((pool == null) ? ForkJoinPool.getCommonPoolParallelism()
+          : pool.getParallelism());
+      int blocks = (this.height + this.blockRows - 1) / this.blockRows;
+      this.taskRows = Math.max(1, blocks / tasks) * this.blockRows;
+    }
+    if (this.to - this.from > this.taskRows) {
+      int middle = this.from + (this.to - this.from) / this.blockRows / 2 * this.blockRows;
+      middle = (middle == this.from) ? this.from + this.blockRows : middle;
+      ForkJoinTask.invokeAll(new EnergyPlanes(this, this.from, middle),
+          new EnergyPlanes(this, middle, this.to));
+    }
+    else if (this.kernel != null) {
+      double[] plane = this.brightnessPlane();
+      for (int y = this.from; y < this.to; y += this.blockRows) {
+        int rows = Math.min(this.blockRows, this.to - y);
+        this.brightness(y, rows, plane);
+        this.kernel.energies(plane, this.width, rows, this.energies, y * this.width);
+      }
+    }
+    else {
+      short[] plane = this.luminancePlane();
+      for (int y = this.from; y < this.to; y += this.blockRows) {
+        int rows = Math.min(this.blockRows, this.to - y);
+        this.luminance(y, rows, plane);
+        this.fixedKernel.energies(plane, this.width, rows, this.fixedEnergies, y * this.width);
+      }
+    }
+  }
+
+  // returns this worker's brightness plane, large enough for a padded block of this task
+  double[] brightnessPlane() {
+    int length = (this.blockRows + 2) * (this.width + 2);
+    if (BRIGHTNESS.get().length < length) {
+      BRIGHTNESS.set(new double[length]);
+    }
+    return BRIGHTNESS.get();
+  }
+
+  // returns this worker's luminance plane, large enough for a padded block of this task
+  short[] luminancePlane() {
+    int length = (this.blockRows + 2) * (this.width + 2);
+    if (LUMINANCE.get().length < length) {
+      LUMINANCE.set(new short[length]);
+    }
+    return LUMINANCE.get();
+  }
+
+  // writes the padded brightness plane of the given rows and the rows around them into the
+  // given buffer (two blocks may fill the brightness cache of a row between them at once, with
+  // equal immutable Doubles)
+  void brightness(int top, int rows, double[] plane) {
+    int stride = this.width + 2;
+    for (int line = 0; line < rows + 2; line += 1) {
+      int y = top + line - 1;
+      int offset = line * stride;
+      if (y < 0 || y >= this.height) {
+        Arrays.fill(plane, offset, offset + stride, 0);
+        continue;
+      }
+      PixelRow row = this.pixels.get(y);
+      plane[offset] = 0;
+      for (int x = 0; x < this.width; x += 1) {
+        plane[offset + x + 1] = row.get(x).brightness();
+      }
+      plane[offset + this.width + 1] = 0;
+    }
+  }
+
+  // writes the padded luminance plane (the channel sums) of the given rows and the rows around
+  // them into the given buffer, as Utils.luminancePlane does
+  void luminance(int top, int rows, short[] plane) {
+    int stride = this.width + 2;
+    for (int line = 0; line < rows + 2; line += 1) {
+      int y = top + line - 1;
+      int offset = line * stride;
+      if (y < 0 || y >= this.height) {
+        Arrays.fill(plane, offset, offset + stride, (short) 0);
+        continue;
+      }
+      PixelRow row = this.pixels.get(y);
+      plane[offset] = 0;
+      for (int x = 0; x < this.width; x += 1) {
+        int rgb = row.get(x).color.getRGB();
+        plane[offset + x + 1] = (short) (((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF)
+            + (rgb & 0xFF));
+      }
+      plane[offset + this.width + 1] = 0;
+    }
+  }
+
+}
+
+// represents a Seam of pixels
+abstract class ASeamInfo {
+
+  Pixel pixel;
+  double totalWeight;
+  ASeamInfo cameFrom;
+  int index;
+
+  // creates a seam
+  ASeamInfo(Pixel pixel, double totalWeight, ASeamInfo cameFrom, int index) {
+    this.pixel = pixel;
+    this.totalWeight = totalWeight;
+    this.cameFrom = cameFrom;
+    this.index = index;
+  }
+
+  // creates a seam (legacy/test constructor)
+  ASeamInfo(Pixel pixel, double totalWeight, ASeamInfo cameFrom) {
+    this(pixel, totalWeight, cameFrom, -1);
+  }
+
+  // paints the pixels in the seam red
+  public void paintRed() {
+    this.pixel.beingRemoved = true;
+    if (this.cameFrom != null) {
+      this.cameFrom.paintRed();
+    }
+  }
+
+  // reverts the pixels in the seam to their original color
+  public void unPaintRed() {
+    this.pixel.beingRemoved = false;
+    if (this.cameFrom != null) {
+      this.cameFrom.unPaintRed();
+    }
+  }
+
+  // returns the next seam connected to this from the given pixel and weight
+  public abstract ASeamInfo makeNextSeam(Pixel pixel, double weight, int index);
+
+  // legacy/test
+  public ASeamInfo makeNextSeam(Pixel pixel, double weight) {
+    return this.makeNextSeam(pixel, weight, -1);
+  }
+
+  // is this a vertical seam?
+  public abstract boolean isVertical();
+
+  // removes this seam from the given list of pixels and row
+  public abstract void removeSelf(ArrayList<PixelRow> pixels, int pos);
+
+  // removes this seam from the pixel graph and from the given rows of the image (in the
+  // image's orientation, whichever way the seam runs)
+  public abstract void removeFrom(ArrayList<PixelRow> pixels);
+
+  // inserts this seam into the given list of pixels
+  public abstract ArrayList<PixelRow> insert(ArrayList<PixelRow> pixels);
+
+  // helps insert this seam into the given list of pixels
+  public abstract ArrayList<PixelRow> insertHelper(ArrayList<PixelRow> pixels,
+      int count);
+
+  // returns where this seam's pixel goes back into the given row, given the pixel that
+  // follows it there (a border pixel at the end of the row)
+  // The index recorded when the seam was found is right as long as seams are re-inserted in
+  // the reverse order of their removal; otherwise the row is searched.
+  int insertIndex(List<Pixel> row, IPixel next) {
+    if (this.index >= 0 && this.index <= row.size()
+        && ((this.index == row.size()) ? next.sameIPixelAs(new BorderPixel())
+            : row.get(this.index) == next)) {
+      return this.index;
+    }
+    int index = row.indexOf(next);
+    return (index == -1) ? row.size() : index;
+  }
+
+}
+
+// represents a vertical seam
+class VertSeamInfo extends ASeamInfo {
+
+  // creates a vertical seam
+  VertSeamInfo(Pixel pixel, double totalWeight, VertSeamInfo cameFrom, int index) {
+    super(pixel, totalWeight, cameFrom, index);
+  }
+
+  VertSeamInfo(Pixel pixel, double totalWeight, VertSeamInfo cameFrom) {
+    this(pixel, totalWeight, cameFrom, -1);
+  }
+
+  // removes this seam from the given list of pixels and row
+  public void removeSelf(ArrayList<PixelRow> pixels, int row) {
+    if (this.cameFrom != null) {
+      if (this.cameFrom.pixel.sameIPixelAs(this.pixel.getUp())) {
+        this.pixel.slideStill();
+      }
+      else if (this.cameFrom.pixel.sameIPixelAs(this.pixel.getUp().getRight())) {
+        this.pixel.slideLeft();
+      }
+      else if (this.cameFrom.pixel.sameIPixelAs(this.pixel.getUp().getLeft())) {
+        this.pixel.slideRight();
+      }
+      else {
+        throw new IllegalStateException("Pixel Image is Ill-Formed");
+      }
+      this.cameFrom.removeSelf(pixels, row - 1);
+    }
+    else {
+      this.pixel.slideStill();
+    }
+    if (this.index != -1) {
+      pixels.get(row).remove(this.index);
+    } else {
+      pixels.get(row).remove(this.pixel);
+    }
+
+  }
+
+  // removes this seam from the pixel graph and from each of the given rows
+  public void removeFrom(ArrayList<PixelRow> pixels) {
+    this.removeSelf(pixels, pixels.size() - 1);
+  }
+
+  // is this a vertical seam?
+  public boolean isVertical() {
+    return true;
+  }
+
+  // returns the next seam connected to this from the given pixel and weight
+  public ASeamInfo makeNextSeam(Pixel pixel, double weight, int index) {
+    return new VertSeamInfo(pixel, weight, this, index);
+  }
+
+  // inserts this seam into the given list of pixels
+  public ArrayList<PixelRow> insert(ArrayList<PixelRow> pixels) {
+    return this.insertHelper(pixels, 0);
+
+  }
+
+  // helps insert this seam into the given list of pixels
+  public ArrayList<PixelRow> insertHelper(ArrayList<PixelRow> pixels, int count) {
+    if (pixels.size() - 1 < count) {
+      pixels.add(new PixelRow());
+    }
+    if (this.cameFrom != null) {
+      this.cameFrom.insertHelper(pixels, count + 1);
+    }
+    this.pixel.revalidate();
+    int row = pixels.size() - count - 1;
+    pixels.get(row).add(this.insertIndex(pixels.get(row), this.pixel.getRight()), this.pixel);
+    return pixels;
+  }
+
+}
+
+// represents a horizontal seam
+class HorizSeamInfo extends ASeamInfo {
+
+  Utils utils = new Utils();
+
+  // creates a horizontal seam
+  HorizSeamInfo(Pixel pixel, double totalWeight, HorizSeamInfo cameFrom, int index) {
+    super(pixel, totalWeight, cameFrom, index);
+  }
+
+  HorizSeamInfo(Pixel pixel, double totalWeight, HorizSeamInfo cameFrom) {
+    this(pixel, totalWeight, cameFrom, -1);
+  }
+
+  // removes this seam from the given list of pixels and row
+  public void removeSelf(ArrayList<PixelRow> pixels, int col) {
+    this.slideOut();
+    if (this.cameFrom != null) {
+      this.cameFrom.removeSelf(pixels, col - 1);
+    }
+    if (this.index != -1) {
+      pixels.get(col).remove(this.index);
+    } else {
+      pixels.get(col).remove(this.pixel);
+    }
+  }
+
+  // relinks the pixel graph around this seam's pixel, which the seam reaches from its pixel in
+  // the column to the left (the pixels of the later columns are relinked first)
+  void slideOut() {
+    if (this.cameFrom == null) {
+      this.pixel.slideStillHoriz();
+    }
+    else if (this.cameFrom.pixel.sameIPixelAs(this.pixel.getLeft())) {
+      this.pixel.slideStillHoriz();
+    }
+    else if (this.cameFrom.pixel.sameIPixelAs(this.pixel.getLeft().getDown())) {
+      this.pixel.slideUp();
+    }
+    else if (this.cameFrom.pixel.sameIPixelAs(this.pixel.getLeft().getUp())) {
+      this.pixel.slideDown();
+    }
+    else {
+      throw new IllegalStateException("Pixel Image is Ill-Formed");
+    }
+  }
+
+  // removes this seam from the pixel graph and from the given rows without transposing them:
+  // in each column the pixels below the seam move up a row in place, and the last row goes
+  // (the rows of an image without any row left are one empty row, as after a transpose)
+  public void removeFrom(ArrayList<PixelRow> pixels) {
+    int col = pixels.get(0).size() - 1;
+    for (ASeamInfo seam = this; seam != null; seam = seam.cameFrom) {
+      ((HorizSeamInfo) seam).slideOut();
+      int row = (seam.index != -1) ? seam.index
+          : new PixelColumn(pixels, col, pixels.size()).indexOf(seam.pixel);
+      for (; row < pixels.size() - 1; row += 1) {
+        pixels.get(row).set(col, pixels.get(row + 1).get(col));
+      }
+      col -= 1;
+    }
+    if (pixels.size() > 1) {
+      pixels.remove(pixels.size() - 1);
+    }
+    else {
+      pixels.set(0, new PixelRow());
+    }
+  }
+
+  // is this a vertical seam?
+  public boolean isVertical() {
+    return false;
+  }
+
+  // returns the next seam connected to this from the given pixel and weight
+  public ASeamInfo makeNextSeam(Pixel pixel, double weight, int index) {
+    return new HorizSeamInfo(pixel, weight, this, index);
+  }
+
+  // inserts this seam into the given list of pixels without transposing them: a row is added
+  // at the bottom, and in each column the pixels below the seam move down a row in place
+  public ArrayList<PixelRow> insert(ArrayList<PixelRow> pixels) {
+    ArrayList<ASeamInfo> links = new ArrayList<>();
+    for (ASeamInfo seam = this; seam != null; seam = seam.cameFrom) {
+      links.add(seam);
+    }
+    Collections.reverse(links);
+    int height = pixels.get(0).isEmpty() ? 0 : pixels.size();
+    PixelRow added = new PixelRow(Arrays.asList(new Pixel[links.size()]));
+    if (height == 0) {
+      pixels.set(0, added);
+    }
+    else {
+      pixels.add(added);
+    }
+    for (int col = 0; col < links.size(); col += 1) {
+      ASeamInfo seam = links.get(col);
+      seam.pixel.revalidate();
+      int row = seam.insertIndex(new PixelColumn(pixels, col, height), seam.pixel.getDown());
+      for (int y = height; y > row; y -= 1) {
+        pixels.get(y).set(col, pixels.get(y - 1).get(col));
+      }
+      pixels.get(row).set(col, seam.pixel);
+    }
+    return pixels;
+  }
+
+  // helps insert this seam into the given list of pixels
+  public ArrayList<PixelRow> insertHelper(ArrayList<PixelRow> pixels, int count) {
+    if (pixels.size() - 1 < count) {
+      pixels.add(new PixelRow());
+    }
+    if (this.cameFrom != null) {
+      this.cameFrom.insertHelper(pixels, count + 1);
+    }
+    this.pixel.revalidate();
+    int row = pixels.size() - count - 1;
+    pixels.get(row).add(this.insertIndex(pixels.get(row), this.pixel.getDown()), this.pixel);
+    return pixels;
+  }
+
+}
+
+// represents a background thread that computes the next seams of a seam carving ahead of
+// the animation
+// The producer works on its own copy of the rows: it only reads pixel colors and removes
+// each seam it finds from its copy, so the animation thread stays the only one that touches
+// the pixel graph. Seams come out in the order they have to be removed.
+class SeamPrecomputer {
+
+  private final ExecutorService executor;
+  private final int capacity;
+  private BlockingQueue<ASeamInfo> ready;
+  private Future<?> task;
+  private volatile double seamNanos;
+  private final SeamWorkspace workspace = new SeamWorkspace();
+
+  // creates a precomputer that keeps at most the given number of finished seams
+  SeamPrecomputer(int capacity) {
+    this.executor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "seam-precompute");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.capacity = capacity;
+    this.ready = new ArrayBlockingQueue<>(capacity);
+    this.task = null;
+  }
+
+  // starts computing the seams of the given pixels, either removing the seam that costs less
+  // per pixel or picking horizontal seams with the given probability drawn from the given
+  // random numbers (which then belong to the producer)
+  void start(ArrayList<PixelRow> pixels, boolean costDriven, double horizShare,
+      Random random, boolean fixedPoint) {
+    this.start(pixels, costDriven, horizShare, random, fixedPoint, null);
+  }
+
+  // starts computing the seams of the given pixels as above, scoring them with the given
+  // energy function (which then belongs to the producer), or the Sobel energy if it is null
+  void start(ArrayList<PixelRow> pixels, boolean costDriven, double horizShare,
+      Random random, boolean fixedPoint, IEnergyFunction energy) {
+    this.cancel();
+    ArrayList<PixelRow> rows = Utils.getInstance().copyRows(pixels);
+    BlockingQueue<ASeamInfo> queue = this.ready;
+    this.task = this.executor.submit(() -> this.produce(rows, queue, costDriven, horizShare,
+        random, fixedPoint, energy));
+  }
+
+  // computes seams into the given queue until the copy is empty or this producer is cancelled
+  private void produce(ArrayList<PixelRow> rows, BlockingQueue<ASeamInfo> queue,
+      boolean costDriven, double horizShare, Random random, boolean fixedPoint,
+      IEnergyFunction energy) {
+    Utils utils = Utils.getInstance();
+    this.workspace.energy = energy;
+    try {
+      while (!rows.get(0).isEmpty() && !Thread.currentThread().isInterrupted()) {
+        long start = System.nanoTime();
+        ASeamInfo seam;
+        if (costDriven) {
+          ArrayList<ASeamInfo> both = utils.seamifyBoth(rows, fixedPoint, energy);
+          seam = utils.cheaperSeam(both.get(0), both.get(1), rows.get(0).size(), rows.size());
+        }
+        else {
+          if (random.nextDouble() < horizShare) {
+            seam = utils.getSmallestSeam(utils.seamifyAcross(rows, fixedPoint, this.workspace));
+          }
+          else {
+            seam = utils.getSmallestSeam(fixedPoint ? utils.seamifyFixedPoint(rows, true)
+                : utils.seamify(rows, true, this.workspace));
+          }
+        }
+        utils.removeFromRows(rows, seam);
+        this.seamNanos = FrameBudget.average(this.seamNanos, System.nanoTime() - start);
+        queue.put(seam);
+      }
+    }
+    catch (InterruptedException e) {
+      // cancelled: the queued seams have been discarded
+    }
+  }
+
+  // returns the next finished seam, or null if none is ready yet
+  ASeamInfo poll() {
+    return this.ready.poll();
+  }
+
+  // returns the average time the producer needs for one seam (0 until it has made one)
+  double seamNanos() {
+    return this.seamNanos;
+  }
+
+  // is the producer still computing seams?
+  boolean isRunning() {
+    return this.task != null && !this.task.isDone();
+  }
+
+  // stops the producer and discards its finished seams (they are stale once the pixels
+  // change in any other way than by removing them in order)
+  // The queue is replaced rather than cleared: a cancelled producer may still complete one
+  // last put, which then lands in a queue nobody reads.
+  void cancel() {
+    if (this.task != null) {
+      this.task.cancel(true);
+      this.task = null;
+    }
+    this.ready = new ArrayBlockingQueue<>(this.capacity);
+  }
+
+}
+
+// represents the check of the pixel graph that runs after each seam is removed or inserted
+// Only the pixels along the seam and on either side of it are checked (the rest of the graph
+// is untouched by the seam), so a check costs O(h) instead of the O(w * h) of
+// Utils.verifyPixelGraph. The sampling rate is the share of seams that are checked: 1 checks
+// every seam, 0.1 every tenth, 0 none; the default comes from -Dseamcarve.validate.
+class GraphValidator {
+
+  double sampleRate;
+  double credit;
+  long seamsChecked;
+  long seamsSkipped;
+  long pixelsChecked;
+  long failures;
+
+  // creates a validator that checks the given share of seams
+  GraphValidator(double sampleRate) {
+    if (sampleRate < 0 || sampleRate > 1) {
+      throw new IllegalArgumentException("Sampling rate must be between 0 and 1: " + sampleRate);
+    }
+    this.sampleRate = sampleRate;
+    this.credit = 0;
+  }
+
+  // creates a validator with the sampling rate of -Dseamcarve.validate (1 by default)
+  GraphValidator() {
+    this(Double.parseDouble(System.getProperty("seamcarve.validate", "1")));
+  }
+
+  // throws if the graph is ill-formed around the given seam, which was just removed from it
+  // (or, if inserted, just put back), unless this seam is not sampled
+  void check(ASeamInfo seam, boolean inserted) {
+    this.credit += this.sampleRate;
+    if (this.credit < 1) {
+      this.seamsSkipped += 1;
+      return;
+    }
+    this.credit -= 1;
+    this.seamsChecked += 1;
+    if (!this.wellFormedAround(seam, inserted)) {
+      this.failures += 1;
+      throw new IllegalStateException("Pixel Image is Ill-Formed");
+    }
+  }
+
+  // is the graph well formed at the pixels on either side of the given seam (and, if it was
+  // inserted, at the seam's own pixels)?
+  boolean wellFormedAround(ASeamInfo seam, boolean inserted) {
+    Utils utils = Utils.getInstance();
+    boolean isVert = seam.isVertical();
+    for (ASeamInfo s = seam; s != null; s = s.cameFrom) {
+      Pixel pixel = s.pixel;
+      IPixel before = isVert ? pixel.getLeft() : pixel.getUp();
+      IPixel after = isVert ? pixel.getRight() : pixel.getDown();
+      this.pixelsChecked += inserted ? 3 : 2;
+      if (!utils.wellFormedAt(before) || !utils.wellFormedAt(after)
+          || (inserted && !utils.wellFormedAt(pixel))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // returns the counters of this validator
+  String metrics() {
+    return "seams_checked=" + this.seamsChecked + " seams_skipped=" + this.seamsSkipped
+        + " pixels_checked=" + this.pixelsChecked + " failures=" + this.failures;
+  }
+
+}
+
+// represents the binary checkpoint format of a seam carving, which resumes it after a restart
+// The file holds the current colors and energy caches as packed planes, the removed seams in
+// removal order (the position and color of each of their pixels, and their total weight), and
+// the direction, mode and random state. Resuming puts the seams back into the colors to get
+// the original image, and replays the removals at the recorded positions to rebuild the
+// removed pixels' links for insertSeam: no seam is searched for and no energy is recomputed.
+// All numbers are big-endian; the layout is:
+//   header:  magic, format, width, height, seams, flags, colorMode (ints), random seed (long)
+//   colors:  width * height ARGB ints, row by row
+//   energy:  width * height doubles, NaN where no energy is cached
+//   seams:   per seam: vertical (byte), length (int), total weight (double),
+//            length positions (ints), length colors (ints)
+class CarveCheckpoint {
+
+  static final int MAGIC = 0x53434b50;
+  static final int FORMAT = 1;
+  static final int HEADER_BYTES = 7 * Integer.BYTES + Long.BYTES;
+
+  Utils utils = Utils.getInstance();
+
+  // writes the state of the given carving, which must not have a seam on screen, to the given
+  // file; it goes through a temporary file, so an interrupted write keeps the last checkpoint
+  // (the carving's random directions are reseeded so that they can be resumed)
+  void write(SeamCarving carving, Path file) throws IOException {
+    if (carving.badSeam != null) {
+      throw new IllegalStateException("Cannot checkpoint with a seam on screen");
+    }
+    long seed = carving.random.nextLong();
+    carving.seed(seed);
+    ArrayList<PixelRow> pixels = carving.pixels;
+    int h = pixels.size();
+    int w = pixels.get(0).size();
+    int seams = carving.history.size();
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(MAGIC).putInt(FORMAT).putInt(w).putInt(h).putInt(seams)
+        .putInt(this.flags(carving)).putInt(carving.colorMode).putLong(seed);
+
+    int[] argb = new int[w * h];
+    double[] energies = new double[w * h];
+    for (int y = 0; y < h; y += 1) {
+      PixelRow row = pixels.get(y);
+      for (int x = 0; x < w; x += 1) {
+        Pixel pixel = row.get(x);
+        argb[y * w + x] = pixel.color.getRGB();
+        energies[y * w + x] = (pixel.energyCache == null) ? Double.NaN : pixel.energyCache;
+      }
+    }
+    ByteBuffer colors = ByteBuffer.allocate(argb.length * Integer.BYTES);
+    colors.asIntBuffer().put(argb);
+    ByteBuffer energy = ByteBuffer.allocate(energies.length * Double.BYTES);
+    energy.asDoubleBuffer().put(energies);
+
+    long lines = 0;
+    for (ASeamInfo seam : carving.history) {
+      lines += this.length(seam);
+    }
+    ByteBuffer history = ByteBuffer.allocate(Math.toIntExact(
+        seams * (1L + Integer.BYTES + Double.BYTES) + lines * 2 * Integer.BYTES));
+    int[] path = new int[0];
+    int[] pathColors = new int[0];
+    for (ASeamInfo seam : carving.history) {
+      int length = this.length(seam);
+      if (path.length < length) {
+        path = new int[length];
+        pathColors = new int[length];
+      }
+      int line = length - 1;
+      for (ASeamInfo s = seam; s != null; s = s.cameFrom) {
+        if (s.index < 0) {
+          throw new IllegalStateException("Seams without recorded positions cannot be saved");
+        }
+        path[line] = s.index;
+        pathColors[line] = s.pixel.color.getRGB();
+        line -= 1;
+      }
+      history.put((byte) (seam.isVertical() ? 1 : 0)).putInt(length).putDouble(seam.totalWeight);
+      history.asIntBuffer().put(path, 0, length).put(pathColors, 0, length);
+      history.position(history.position() + 2 * length * Integer.BYTES);
+    }
+
+    ByteBuffer[] parts = { header, colors, energy, history };
+    header.flip();
+    history.flip();
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (history.hasRemaining()) {
+        channel.write(parts);
+      }
+      channel.force(false);
+    }
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // returns the carving saved in the given checkpoint file, as it was when it was written
+  SeamCarving resume(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC
+          || buffer.getInt() != FORMAT) {
+        throw new IOException("Not a seam carving checkpoint: " + file);
+      }
+      int w = buffer.getInt();
+      int h = buffer.getInt();
+      int seams = buffer.getInt();
+      int flags = buffer.getInt();
+      int colorMode = buffer.getInt();
+      long seed = buffer.getLong();
+      int[] argb = new int[w * h];
+      buffer.asIntBuffer().get(argb);
+      buffer.position(buffer.position() + argb.length * Integer.BYTES);
+      double[] energies = new double[w * h];
+      buffer.asDoubleBuffer().get(energies);
+      buffer.position(buffer.position() + energies.length * Double.BYTES);
+      boolean[] vertical = new boolean[seams];
+      double[] weights = new double[seams];
+      int[][] paths = new int[seams][];
+      int[][] pathColors = new int[seams][];
+      for (int k = 0; k < seams; k += 1) {
+        vertical[k] = buffer.get() == 1;
+        paths[k] = new int[buffer.getInt()];
+        pathColors[k] = new int[paths[k].length];
+        weights[k] = buffer.getDouble();
+        buffer.asIntBuffer().get(paths[k]).get(pathColors[k]);
+        buffer.position(buffer.position() + 2 * paths[k].length * Integer.BYTES);
+      }
+      SeamCarving carving = this.replay(argb, w, h, vertical, weights, paths, pathColors);
+      this.restore(carving, argb, energies, file);
+      carving.removeVert = (flags & 1) != 0;
+      carving.isReversed = (flags & 2) != 0;
+      carving.isPlaying = (flags & 4) != 0;
+      carving.fixedPoint = (flags & 8) != 0;
+      carving.costDriven = (flags & 16) != 0;
+      carving.colorMode = colorMode;
+      carving.seed(seed);
+      // the replayed seams and the restored color mode change what the pixels show
+      carving.version += 1;
+      carving.publish();
+      return carving;
+    }
+    catch (BufferUnderflowException | IndexOutOfBoundsException
+        | NegativeArraySizeException e) {
+      throw new IOException("Corrupt seam carving checkpoint: " + file, e);
+    }
+  }
+
+  // returns the direction and mode flags of the given carving as bits
+  int flags(SeamCarving carving) {
+    return (carving.removeVert ? 1 : 0) | (carving.isReversed ? 2 : 0)
+        | (carving.isPlaying ? 4 : 0) | (carving.fixedPoint ? 8 : 0)
+        | (carving.costDriven ? 16 : 0);
+  }
+
+  // returns how many pixels the given seam has
+  int length(ASeamInfo seam) {
+    int length = 0;
+    for (ASeamInfo s = seam; s != null; s = s.cameFrom) {
+      length += 1;
+    }
+    return length;
+  }
+
+  // returns a carving of the image that the given seams were removed from (in order) to leave
+  // the given packed w x h colors, with those seams removed again at their recorded positions
+  SeamCarving replay(int[] argb, int w, int h, boolean[] vertical, double[] weights,
+      int[][] paths, int[][] pathColors) {
+    int[] plane = argb;
+    int width = w;
+    int height = h;
+    for (int k = vertical.length - 1; k >= 0; k -= 1) {
+      int[] path = paths[k];
+      if (path.length != (vertical[k] ? height : width)) {
+        throw new IndexOutOfBoundsException("Seam " + k + " does not fit the image");
+      }
+      int[] bigger;
+      if (vertical[k]) {
+        bigger = new int[(width + 1) * height];
+        for (int y = 0; y < height; y += 1) {
+          Objects.checkIndex(path[y], width + 1);
+          System.arraycopy(plane, y * width, bigger, y * (width + 1), path[y]);
+          bigger[y * (width + 1) + path[y]] = pathColors[k][y];
+          System.arraycopy(plane, y * width + path[y], bigger, y * (width + 1) + path[y] + 1,
+              width - path[y]);
+        }
+        width += 1;
+      }
+      else {
+        bigger = new int[width * (height + 1)];
+        for (int x = 0; x < width; x += 1) {
+          Objects.checkIndex(path[x], height + 1);
+          for (int y = 0; y < height; y += 1) {
+            bigger[(y < path[x] ? y : y + 1) * width + x] = plane[y * width + x];
+          }
+          bigger[path[x] * width + x] = pathColors[k][x];
+        }
+        height += 1;
+      }
+      plane = bigger;
+    }
+
+    Color[][] colors = new Color[height][width];
+    for (int y = 0; y < height; y += 1) {
+      for (int x = 0; x < width; x += 1) {
+        colors[y][x] = new Color(plane[y * width + x], true);
+      }
+    }
+    SeamCarving carving = new SeamCarving(this.utils.constructPixelGraph(colors));
+    ArrayList<PixelRow> rows = carving.pixels;
+    for (int k = 0; k < vertical.length; k += 1) {
+      int[] path = paths[k];
+      Pixel[] seamPixels = new Pixel[path.length];
+      for (int line = 0; line < path.length; line += 1) {
+        seamPixels[line] = vertical[k] ? rows.get(line).get(path[line])
+            : rows.get(path[line]).get(line);
+      }
+      // only the total weight is kept, on the last pixel of the seam
+      double[] lineWeights = new double[path.length];
+      lineWeights[path.length - 1] = weights[k];
+      ASeamInfo seam = this.utils.makeSeam(seamPixels, path, lineWeights, vertical[k]);
+      seam.removeFrom(rows);
+      carving.history.push(seam);
+    }
+    return carving;
+  }
+
+  // checks that the given carving shows the given packed colors and puts the given energies
+  // back into the caches of its pixels
+  void restore(SeamCarving carving, int[] argb, double[] energies, Path file)
+      throws IOException {
+    int w = carving.pixels.get(0).size();
+    if (carving.pixels.size() * w != argb.length) {
+      throw new IOException("Checkpoint does not replay to its pixels: " + file);
+    }
+    for (int y = 0; y < carving.pixels.size(); y += 1) {
+      PixelRow row = carving.pixels.get(y);
+      for (int x = 0; x < w; x += 1) {
+        Pixel pixel = row.get(x);
+        if (pixel.color.getRGB() != argb[y * w + x]) {
+          throw new IOException("Checkpoint does not replay to its pixels: " + file);
+        }
+        if (!Double.isNaN(energies[y * w + x])) {
+          pixel.energyCache = energies[y * w + x];
+        }
+      }
+    }
+  }
+
+}
+
+// represents an on-disk cache of the seams carved out of images, shared by every process that
+// uses the same directory
+// An entry is keyed by the SHA-256 of the pixels, the energy function, the kernel, the seam
+// criterion and the directions. The seams of an image carved before are replayed without any
+// energy or DP, and a longer carve picks up where the entry ends. Entries are written to a
+// temporary file and moved into place, so readers only ever see whole entries. A hit touches
+// the modification time of its entry. After every write, the least recently used entries are
+// deleted until the directory fits the size bound, under a file lock taken by every process;
+// temporary files that a crashed writer left behind count toward the bound and are deleted
+// once they are old enough that no writer can still be using them.
+class SeamCache {
+
+  static final int MAGIC = 0x53435343;
+  static final int FORMAT = 2;
+  static final int HEADER_BYTES = 5 * Integer.BYTES;
+  static final String SUFFIX = ".seams";
+  static final String TEMPORARY_SUFFIX = ".tmp";
+  static final long DEFAULT_BYTES = 1L << 30;
+  // a temporary file untouched for this long belongs to a writer that died
+  static final long STALE_MILLIS = 10 * 60 * 1000;
+  // a JVM cannot hold the same file lock twice, so its threads take turns for it here first
+  static final Object LOCAL_LOCK = new Object();
+
+  final Path dir;
+  final long maxBytes;
+  final AtomicLong hits = new AtomicLong();
+  final AtomicLong misses = new AtomicLong();
+  final AtomicLong evictions = new AtomicLong();
+
+  // creates a cache in the given directory (created if needed) that keeps its entries within
+  // the given number of bytes
+  SeamCache(Path dir, long maxBytes) throws IOException {
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("The cache size bound must be positive");
+    }
+    this.dir = Files.createDirectories(dir);
+    this.maxBytes = maxBytes;
+  }
+
+  // creates a cache in the given directory bounded to DEFAULT_BYTES
+  SeamCache(Path dir) throws IOException {
+    this(dir, DEFAULT_BYTES);
+  }
+
+  // carves the given number of seams in the given direction (v, h, or both alternating) out of
+  // the carver's image, like CarveExport.carve without frames; returns the number carved
+  // The seams the cache holds are replayed. It is a hit if they are all that was asked for
+  // (or all that the image has), and a miss otherwise: the rest are carved and stored.
+  int carve(FlatSeamCarver carver, int seams, String direction) throws IOException {
+    Path file = this.dir.resolve(SeamCache.key(carver, direction) + SUFFIX);
+    SeamCacheEntry entry = this.read(file);
+    if (entry == null) {
+      entry = new SeamCacheEntry(carver.width, carver.height);
+    }
+    int seam = 0;
+    for (; seam < seams && seam < entry.seams; seam += 1) {
+      carver.replay(entry.paths.get(seam), entry.vertical[seam], entry.weights[seam]);
+    }
+    boolean isVert = SeamCache.isVertical(direction, seam);
+    if (seam == seams || (isVert ? carver.width : carver.height) < 2) {
+      this.hits.incrementAndGet();
+      this.touch(file);
+      return seam;
+    }
+    this.misses.incrementAndGet();
+    for (; seam < seams; seam += 1) {
+      isVert = SeamCache.isVertical(direction, seam);
+      if ((isVert ? carver.width : carver.height) < 2) {
+        break;
+      }
+      int length = isVert ? carver.height : carver.width;
+      int[] path = carver.carve(isVert);
+      entry.add(Arrays.copyOf(path, length), isVert, carver.lastWeight);
+    }
+    this.write(file, entry);
+    this.evict();
+    return seam;
+  }
+
+  // returns the entry that the cache holds for the given carver's image carved in the given
+  // direction, or null (without counting a hit or a miss)
+  SeamCacheEntry entry(FlatSeamCarver carver, String direction) throws IOException {
+    return this.read(this.dir.resolve(SeamCache.key(carver, direction) + SUFFIX));
+  }
+
+  // is the seam of the given index (from 0) vertical in the given direction?
+  static boolean isVertical(String direction, int seam) {
+    return direction.equals("v") || (direction.equals("both") && seam % 2 == 0);
+  }
+
+  // returns the key of the given carver's image carved in the given direction, in hex
+  static String key(FlatSeamCarver carver, String direction) {
+    if (!direction.equals("v") && !direction.equals("h") && !direction.equals("both")) {
+      throw new IllegalArgumentException("Seam directions are v, h or both: " + direction);
+    }
+    String energy = carver.energy.id();
+    if (energy == null) {
+      throw new IllegalArgumentException("The energy cannot be cached: "
+          + carver.energy.getClass().getSimpleName());
+    }
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    String id = energy + "|" + carver.kernel.getClass().getSimpleName() + "|"
+        + ((carver.forward != null) ? "forward" : "backward") + "|" + direction + "|"
+        + carver.frozenLeft + "," + carver.frozenRight + "|" + carver.width + "x"
+        + carver.height + "|";
+    digest.update(id.getBytes(StandardCharsets.UTF_8));
+    ByteBuffer row = ByteBuffer.allocate(carver.width * Integer.BYTES);
+    for (int y = 0; y < carver.height; y += 1) {
+      row.clear();
+      row.asIntBuffer().put(carver.argb, y * carver.stride, carver.width);
+      digest.update(row);
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  // returns the entry in the given file, or null if there is none (a corrupt entry is
+  // deleted)
+  SeamCacheEntry read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC
+          || buffer.getInt() != FORMAT) {
+        throw new BufferUnderflowException();
+      }
+      int w = buffer.getInt();
+      int h = buffer.getInt();
+      int seams = buffer.getInt();
+      SeamCacheEntry entry = new SeamCacheEntry(w, h);
+      for (int seam = 0; seam < seams; seam += 1) {
+        boolean isVert = buffer.get() == 1;
+        double weight = buffer.getDouble();
+        int[] path = new int[isVert ? h : w];
+        path[0] = buffer.getInt();
+        // the path moves at most one position from line to line, so each step is a byte
+        for (int line = 1; line < path.length; line += 1) {
+          path[line] = path[line - 1] + buffer.get();
+        }
+        for (int position : path) {
+          Objects.checkIndex(position, isVert ? w : h);
+        }
+        entry.add(path, isVert, weight);
+        w -= isVert ? 1 : 0;
+        h -= isVert ? 0 : 1;
+      }
+      return entry;
+    }
+    catch (NoSuchFileException e) {
+      return null;
+    }
+    catch (BufferUnderflowException | IndexOutOfBoundsException
+        | NegativeArraySizeException e) {
+      Files.deleteIfExists(file);
+      return null;
+    }
+  }
+
+  // writes the given entry to the given file through a temporary file beside it
+  void write(Path file, SeamCacheEntry entry) throws IOException {
+    long bytes = HEADER_BYTES;
+    int w = entry.width;
+    int h = entry.height;
+    for (int seam = 0; seam < entry.seams; seam += 1) {
+      bytes += 1 + Double.BYTES + Integer.BYTES + (entry.vertical[seam] ? h : w) - 1;
+      w -= entry.vertical[seam] ? 1 : 0;
+      h -= entry.vertical[seam] ? 0 : 1;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(bytes));
+    buffer.putInt(MAGIC).putInt(FORMAT).putInt(entry.width).putInt(entry.height)
+        .putInt(entry.seams);
+    for (int seam = 0; seam < entry.seams; seam += 1) {
+      int[] path = entry.paths.get(seam);
+      buffer.put((byte) (entry.vertical[seam] ? 1 : 0)).putDouble(entry.weights[seam])
+          .putInt(path[0]);
+      for (int line = 1; line < path.length; line += 1) {
+        buffer.put((byte) (path[line] - path[line - 1]));
+      }
+    }
+    buffer.flip();
+    Path temporary = Files.createTempFile(this.dir, file.getFileName().toString(),
+        TEMPORARY_SUFFIX);
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // marks the entry in the given file as just used (unless it was evicted meanwhile)
+  void touch(Path file) throws IOException {
+    try {
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+    catch (NoSuchFileException e) {
+      return;
+    }
+  }
+
+  // deletes the stale temporary files, then the least recently used entries until the
+  // entries and the temporary files still being written fit the size bound
+  void evict() throws IOException {
+    synchronized (LOCAL_LOCK) {
+      try (FileChannel channel = FileChannel.open(this.dir.resolve("lock"),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        // closing the channel releases the lock
+        channel.lock();
+        ArrayList<Path> files = new ArrayList<>();
+        HashMap<Path, BasicFileAttributes> attributes = new HashMap<>();
+        long total = 0;
+        long stale = System.currentTimeMillis() - STALE_MILLIS;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.dir,
+            "*{" + SUFFIX + "," + TEMPORARY_SUFFIX + "}")) {
+          for (Path file : entries) {
+            try {
+              BasicFileAttributes attribute = Files.readAttributes(file,
+                  BasicFileAttributes.class);
+              if (!file.toString().endsWith(TEMPORARY_SUFFIX)) {
+                files.add(file);
+                attributes.put(file, attribute);
+                total += attribute.size();
+              }
+              else if (attribute.lastModifiedTime().toMillis() < stale) {
+                Files.deleteIfExists(file);
+                this.evictions.incrementAndGet();
+              }
+              else {
+                total += attribute.size();
+              }
+            }
+            catch (NoSuchFileException e) {
+              continue;
+            }
+          }
+        }
+        files.sort((a, b) -> attributes.get(a).lastModifiedTime()
+            .compareTo(attributes.get(b).lastModifiedTime()));
+        for (int i = 0; i < files.size() && total > this.maxBytes; i += 1) {
+          Files.deleteIfExists(files.get(i));
+          total -= attributes.get(files.get(i)).size();
+          this.evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+}
+
+// represents what a SeamCache holds for one image: the seams carved out of it, in order
+class SeamCacheEntry {
+
+  final int width;
+  final int height;
+  final ArrayList<int[]> paths = new ArrayList<>();
+  boolean[] vertical = new boolean[16];
+  double[] weights = new double[16];
+  int seams;
+
+  // creates an entry for a w x h image, without seams
+  SeamCacheEntry(int width, int height) {
+    this.width = width;
+    this.height = height;
+  }
+
+  // adds the given seam (the position in every line), of the given direction and total cost
+  void add(int[] path, boolean isVert, double weight) {
+    if (this.seams == this.weights.length) {
+      this.vertical = Arrays.copyOf(this.vertical, this.seams * 2);
+      this.weights = Arrays.copyOf(this.weights, this.seams * 2);
+    }
+    this.paths.add(path);
+    this.vertical[this.seams] = isVert;
+    this.weights[this.seams] = weight;
+    this.seams += 1;
+  }
+
+}
+
+// represents the colors of a carving at one moment as a packed plane, numbered in the order
+// the snapshots were taken; a snapshot never changes once made, so any thread can read it
+class CarveSnapshot {
+
+  final long version;
+  final int width;
+  final int height;
+  final int colorMode;
+  // never written after the constructor
+  private final int[] argb;
+
+  // creates the snapshot of the given version from the given packed w x h plane (which it
+  // then owns) shown in the given color mode
+  CarveSnapshot(long version, int[] argb, int width, int height, int colorMode) {
+    this.version = version;
+    this.argb = argb;
+    this.width = width;
+    this.height = height;
+    this.colorMode = colorMode;
+  }
+
+  // returns the color at the given position as packed ARGB
+  int rgbAt(int x, int y) {
+    Objects.checkIndex(x, this.width);
+    Objects.checkIndex(y, this.height);
+    return this.argb[y * this.width + x];
+  }
+
+  // returns a copy of the packed plane
+  int[] toArgb() {
+    return this.argb.clone();
+  }
+
+}
+
+// represents the latest snapshot of a carving: the carving thread publishes new versions,
+// and renderers, encoders and metrics on any thread read the latest one without locking
+class SnapshotPublisher {
+
+  private volatile CarveSnapshot latest;
+  private volatile long published;
+
+  // makes the given snapshot the latest one; versions must increase (only one thread
+  // publishes, so the count needs no atomic update)
+  void publish(CarveSnapshot snapshot) {
+    CarveSnapshot previous = this.latest;
+    if (previous != null && snapshot.version <= previous.version) {
+      throw new IllegalArgumentException("Snapshot version " + snapshot.version
+          + " is not newer than " + previous.version);
+    }
+    this.latest = snapshot;
+    this.published += 1;
+  }
+
+  // returns the latest snapshot, or null before the first one
+  CarveSnapshot latest() {
+    return this.latest;
+  }
+
+  // returns how many snapshots were published
+  long published() {
+    return this.published;
+  }
+
+}
+
+// represents the measured cost of the animation and how many seams fit in one frame of the
+// target frame rate
+class FrameBudget {
+
+  // the most seams removed in one frame
+  static final int MAX_SEAMS_PER_FRAME = 64;
+
+  final double frameNanos;
+  double applyNanos;
+  double renderNanos;
+
+  // creates a budget for the given number of frames per second
+  FrameBudget(double targetFps) {
+    this.frameNanos = 1e9 / targetFps;
+    this.applyNanos = 0;
+    this.renderNanos = 0;
+  }
+
+  // returns the given running average updated with the given sample
+  static double average(double average, double sample) {
+    return (average == 0) ? sample : average * 0.8 + sample * 0.2;
+  }
+
+  // records the time the animation thread spent removing the given number of seams
+  void recordApply(long nanos, int seams) {
+    this.applyNanos = FrameBudget.average(this.applyNanos, (double) nanos / seams);
+  }
+
+  // records the time spent drawing one frame
+  void recordRender(long nanos) {
+    this.renderNanos = FrameBudget.average(this.renderNanos, nanos);
+  }
+
+  // returns how many seams to remove in the next frame: as many as the animation thread can
+  // remove in what is left of the frame after drawing, but no more than the producer (taking
+  // the given time per seam) can compute in a frame
+  int seamsPerFrame(double computeNanos) {
+    if (this.applyNanos == 0) {
+      return 1;
+    }
+    double seams = (this.frameNanos - this.renderNanos) / this.applyNanos;
+    if (computeNanos > 0) {
+      seams = Math.min(seams, this.frameNanos / computeNanos);
+    }
+    return (int) Math.max(1, Math.min(MAX_SEAMS_PER_FRAME, seams));
+  }
+
+}
+
+// represents a seam carving animation
+class SeamCarving extends World {
+
+  // the seconds between two ticks of the animation, which bigBang is given; a frame is drawn
+  // on every tick, so the frame budget is sized for that rate
+  static final double TICK_SECONDS = 0.01;
+
+  ArrayList<PixelRow> pixels;
+  Stack<ASeamInfo> history;
+  ASeamInfo badSeam;
+  int width;
+  int height;
+  boolean removeVert;
+  boolean isPlaying;
+  boolean isReversed;
+  int colorMode;
+  boolean fixedPoint;
+  SeamPrecomputer precomputer;
+  FrameBudget budget;
+  boolean costDriven;
+  Random random;
+  SeamWorkspace workspace;
+  GraphValidator validator;
+  SnapshotPublisher snapshots;
+  // counts the changes to what the pixels show, and so names the snapshot of each state; only
+  // the carving thread changes it, but any thread may read it
+  volatile long version;
+  Path checkpointFile;
+  int checkpointInterval;
+  IFrameSink recorder;
+  // the cost per pixel of every removed seam
+  SeamCostHistogram seamCosts;
+  AutoTarget autoTarget;
+  // makes the energy functions the seams are scored with, or null for the Sobel energy
+  Supplier<IEnergyFunction> energies;
+
+  // creates a seam carving animation from a given image
+  SeamCarving(FromFileImage image) {
+    this.width = (int) image.getWidth();
+    this.height = (int) image.getHeight();
+    this.pixels = Utils.getInstance().constructPixelGraph(image);
+    this.history = new Stack<>();
+    this.badSeam = null;
+    this.removeVert = true;
+    this.isPlaying = true;
+    this.colorMode = 1;
+    this.isReversed = false;
+    this.fixedPoint = false;
+    this.precomputer = new SeamPrecomputer(FrameBudget.MAX_SEAMS_PER_FRAME);
+    this.budget = new FrameBudget(1 / TICK_SECONDS);
+    this.costDriven = false;
+    this.random = new Random();
+    this.workspace = new SeamWorkspace();
+    this.validator = new GraphValidator();
+    this.snapshots = new SnapshotPublisher();
+    this.version = 0;
+    this.checkpointFile = null;
+    this.checkpointInterval = 0;
+    this.recorder = null;
+    this.seamCosts = new SeamCostHistogram();
+    this.autoTarget = null;
+    this.energies = null;
+    this.publish();
+  }
+
+  // creates a seam carving animation for a given arraylist of pixels
+  SeamCarving(ArrayList<PixelRow> pixels) {
+    this.width = pixels.get(0).size();
+    this.height = pixels.size();
+    this.pixels = pixels;
+    this.history = new Stack<>();
+    this.badSeam = null;
+    this.removeVert = true;
+    this.isPlaying = true;
+    this.colorMode = 1;
+    this.isReversed = false;
+    this.fixedPoint = false;
+    this.precomputer = new SeamPrecomputer(FrameBudget.MAX_SEAMS_PER_FRAME);
+    this.budget = new FrameBudget(1 / TICK_SECONDS);
+    this.costDriven = false;
+    this.random = new Random();
+    this.workspace = new SeamWorkspace();
+    this.validator = new GraphValidator();
+    this.snapshots = new SnapshotPublisher();
+    this.version = 0;
+    this.checkpointFile = null;
+    this.checkpointInterval = 0;
+    this.recorder = null;
+    this.seamCosts = new SeamCostHistogram();
+    this.autoTarget = null;
+    this.energies = null;
+    this.publish();
+  }
+
+  // constructs the scene from the latest snapshot the carving thread published (the pixels
+  // themselves are never walked here, since the next tick may be changing them)
+  public WorldScene makeScene() {
+    long start = System.nanoTime();
+    WorldScene scene = new WorldScene(this.width, this.height);
+    ComputedPixelImage pixelImage = new ComputedPixelImage(this.width, this.height);
+    CarveSnapshot snapshot = this.snapshots.latest();
+    Color color = Color.BLACK;
+    for (int y = 0; y < snapshot.height && y < this.height; y += 1) {
+      for (int x = 0; x < snapshot.width && x < this.width; x += 1) {
+        // neighboring pixels often share a color
+        int rgb = snapshot.rgbAt(x, y);
+        if (rgb != color.getRGB()) {
+          color = new Color(rgb, true);
+        }
+        pixelImage.setPixel(x, y, color);
+      }
+    }
+    scene.placeImageXY(pixelImage, this.width / 2, this.height / 2);
+    this.budget.recordRender(System.nanoTime() - start);
+    return scene;
+  }
+
+  // removes or inserts vertical and horizontal seams
+  public void onTick() {
+    if (this.isPlaying) {
+      this.removeOrInsert();
+    }
+    else {
+      if (this.badSeam != null) {
+        if (this.isReversed) {
+          this.insertBadSeam();
+        }
+        else {
+          this.removeBadSeam();
+        }
+      }
+    }
+    if (this.pixels.get(0).isEmpty()) {
+      this.setReversed(true);
+    }
+    else if (this.history.isEmpty() && this.badSeam == null) {
+      this.setReversed(false);
+    }
+    this.publish();
+  }
+
+  // publishes the pixels as they show in the current color mode if they changed since the
+  // latest snapshot, and returns the latest snapshot (only the carving thread calls this: the
+  // constructors, ticks and key events)
+  CarveSnapshot publish() {
+    CarveSnapshot latest = this.snapshots.latest();
+    if (latest != null && latest.version == this.version) {
+      return latest;
+    }
+    int h = this.pixels.size();
+    int w = (h == 0) ? 0 : this.pixels.get(0).size();
+    int[] argb = new int[w * h];
+    for (int y = 0; y < h; y += 1) {
+      PixelRow row = this.pixels.get(y);
+      for (int x = 0; x < w; x += 1) {
+        argb[y * w + x] = row.get(x).getColor(this.colorMode).getRGB();
+      }
+    }
+    CarveSnapshot snapshot = new CarveSnapshot(this.version, argb, w, h, this.colorMode);
+    this.snapshots.publish(snapshot);
+    if (this.recorder != null) {
+      try {
+        this.recorder.accept(snapshot.toArgb(), w, h);
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return snapshot;
+  }
+
+  // hands the given sink (an AsyncFrameSink, so that encoding does not hold up the animation)
+  // every snapshot published from now on, or stops recording if it is null
+  void recordTo(IFrameSink sink) {
+    this.recorder = sink;
+  }
+
+  // switches between removing and inserting seams, dropping any precomputed seams
+  void setReversed(boolean isReversed) {
+    if (this.isReversed != isReversed) {
+      this.precomputer.cancel();
+      this.isReversed = isReversed;
+    }
+  }
+
+  // makes the random choice of seam direction repeat for the given seed
+  void seed(long seed) {
+    this.random = new Random(seed);
+    this.precomputer.cancel();
+  }
+
+  // removes or inserts seams from this.pixels
+  void removeOrInsert() {
+    if (this.isReversed) {
+      this.insertSeam();
+    }
+    else {
+      this.removeSeam();
+    }
+  }
+
+  // inserts seams of pixels into this.pixels
+  void insertSeam() {
+    if (this.badSeam == null) {
+      this.precomputer.cancel();
+      this.badSeam = this.history.pop();
+      this.pixels = this.badSeam.insert(this.pixels);
+      this.validator.check(this.badSeam, true);
+      this.version += 1;
+    }
+    else {
+      this.insertBadSeam();
+    }
+
+  }
+
+  // completes seam insertion by unpainting red inserted pixels
+  // and reseting the bad seam to null
+  void insertBadSeam() {
+    this.badSeam.unPaintRed();
+    this.badSeam = null;
+    this.version += 1;
+  }
+
+  // removes the seam on screen plus as many precomputed seams as fit in this frame's budget,
+  // and shows the last seam of the batch in red (it is removed first thing next frame)
+  // (never waits for the producer: if no seam is ready yet the batch ends early)
+  void removeSeam() {
+    long start = System.nanoTime();
+    int removed = 0;
+    if (this.badSeam != null) {
+      this.removeBadSeam();
+      removed += 1;
+    }
+    int batch = this.budget.seamsPerFrame(this.precomputer.seamNanos());
+    while (this.badSeam == null && !this.pixels.get(0).isEmpty()) {
+      ASeamInfo seam = this.precomputer.poll();
+      if (seam == null) {
+        if (!this.precomputer.isRunning()) {
+          this.precomputer.start(this.pixels, this.costDriven,
+              (double) (this.height) / (this.width + this.height),
+              new Random(this.random.nextLong()), this.fixedPoint,
+              (this.energies == null) ? null : this.energies.get());
+        }
+        break;
+      }
+      if (this.autoTarget != null && this.reachesTarget(seam)) {
+        // the seams precomputed past this one would only be thrown away
+        this.precomputer.cancel();
+        this.isPlaying = false;
+        break;
+      }
+      this.badSeam = seam;
+      this.removeVert = seam.isVertical();
+      if (removed + 1 < batch) {
+        this.removeBadSeam();
+        removed += 1;
+      }
+      else {
+        seam.paintRed();
+        this.version += 1;
+      }
+    }
+    if (removed > 0) {
+      this.budget.recordApply(System.nanoTime() - start, removed);
+    }
+  }
+
+  // scores the seams with energy functions made by the given supplier from now on, one for each
+  // thread that looks for seams (a function follows one image), or with the Sobel energy if it
+  // is null; the fixed-point search (f) always uses the Sobel energy
+  void useEnergy(Supplier<IEnergyFunction> energies) {
+    this.energies = energies;
+    this.workspace.energy = (energies == null) ? null : energies.get();
+    this.precomputer.cancel();
+  }
+
+  // pauses the animation instead of removing the first seam the given target stops at, or
+  // never if it is null
+  void stopWhen(AutoTarget target) {
+    this.autoTarget = target;
+  }
+
+  // does the auto target stop at the given seam? (a percentile target is resolved the first
+  // time from the seams ending at every column or row of the pixels, in the seam's direction)
+  boolean reachesTarget(ASeamInfo seam) {
+    int length = seam.isVertical() ? this.pixels.size() : this.pixels.get(0).size();
+    if (!this.autoTarget.resolved()) {
+      // every end cell of the DP is the cost of the cheapest seam ending there, like the
+      // candidates of FlatSeamCarver.carveUnless, in the units of the seams being carved
+      Utils utils = Utils.getInstance();
+      double[] ends;
+      if (this.fixedPoint) {
+        ends = utils.fixedPointEnds(this.pixels, seam.isVertical());
+      }
+      else {
+        if (seam.isVertical()) {
+          utils.seamify(this.pixels, true, this.workspace);
+        }
+        else {
+          utils.seamifyAcross(this.pixels, false, this.workspace);
+        }
+        ends = this.workspace.ends;
+      }
+      this.autoTarget.resolve(ends, 1,
+          seam.isVertical() ? this.pixels.get(0).size() : this.pixels.size(), length);
+    }
+    return this.autoTarget.stops(seam.totalWeight, length);
+  }
+
+  // responsible for pausing, changing color modes, and
+  // removing vertical and horizontal seams, and inserting
+  // seams back when reversed
+  public void onKeyEvent(String s) {
+    if (s.equals(" ")) {
+      this.isPlaying = !this.isPlaying;
+    }
+    if (s.equals("1") || s.equals("2")) {
+      this.colorMode = s.equals("1") ? 1 : 2;
+      this.version += 1;
+    }
+    if (s.equals("f")) {
+      this.fixedPoint = !this.fixedPoint;
+      this.precomputer.cancel();
+    }
+    if (s.equals("c")) {
+      this.costDriven = !this.costDriven;
+      this.precomputer.cancel();
+    }
+    // pausing keeps the precomputed seams: they stay valid until the pixels change
+    if (!this.isPlaying && this.badSeam == null) {
+      if (this.isReversed) {
+        if (s.equals("i")) {
+          this.insertSeam();
+        }
+      }
+      else {
+        if (s.equals("v")) {
+          this.precomputer.cancel();
+          this.removeVert = true;
+          this.seamCarve();
+        }
+        else if (s.equals("h")) {
+          this.precomputer.cancel();
+          this.removeVert = false;
+          this.seamCarve();
+        }
+      }
+    }
+    this.publish();
+  }
+
+  // finds the most boring next seam
+  void seamCarve() {
+    this.badSeam = Utils.getInstance().getSmallestSeam(this.seamify(this.pixels));
+    if (this.badSeam != null) {
+      this.badSeam.paintRed();
+      this.version += 1;
+    }
+  }
+
+  // returns the seams of the given rows (not transposed) in the current direction and
+  // precision
+  ArrayList<ASeamInfo> seamify(ArrayList<PixelRow> pixels) {
+    if (!this.removeVert) {
+      return Utils.getInstance().seamifyAcross(pixels, this.fixedPoint, this.workspace);
+    }
+    if (this.fixedPoint) {
+      return Utils.getInstance().seamifyFixedPoint(pixels, true);
+    }
+    return Utils.getInstance().seamify(pixels, true, this.workspace);
+  }
+
+  // removes current bad seam from this list of pixels
+  void removeBadSeam() {
+    this.seamCosts.record(this.badSeam.totalWeight
+        / (this.removeVert ? this.pixels.size() : this.pixels.get(0).size()));
+    this.badSeam.removeFrom(this.pixels);
+    this.history.add(this.badSeam);
+    this.validator.check(this.badSeam, false);
+    this.badSeam = null;
+    this.version += 1;
+    if (this.checkpointFile != null && this.history.size() % this.checkpointInterval == 0) {
+      try {
+        new CarveCheckpoint().write(this, this.checkpointFile);
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  // writes a checkpoint of this carving to the given file after every given number of
+  // removed seams (CarveCheckpoint.resume picks it up again)
+  void checkpointEvery(int seams, Path file) {
+    if (seams < 1) {
+      throw new IllegalArgumentException("Checkpoint interval must be positive");
+    }
+    this.checkpointInterval = seams;
+    this.checkpointFile = file;
+  }
+}
+
+// writes the 64x64 disks image that make headless and the startup benchmark carve, as a PPM
+// usage: java -cp "jars/javalib.jar:bin" SampleImage <file.ppm>
+class SampleImage {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      throw new IllegalArgumentException("Usage: SampleImage <file.ppm>");
+    }
+    SampleImage.write(Paths.get(args[0]));
+  }
+
+  // writes the sample image to the given file
+  static void write(Path file) throws IOException {
+    RawImage.write(file, FlatSeamCarver.pack(new SeamBenchmark().generate("disks", 64, 64)), 64,
+        64);
+  }
+
+}
+
+// runs the seam carving benchmarks on a fixed corpus of sample and generated images
+// usage: java -cp "jars/javalib.jar:bin" SeamBenchmark <suite> [seams per image]
+class SeamBenchmark {
+
+  // the sample images and the sizes of the generated images
+  static final String[] SAMPLES = { "balloons.jpg", "balloons2.jpg" };
+  static final int[][] SIZES = { { 64, 64 }, { 256, 192 }, { 512, 384 } };
+
+  Utils utils = Utils.getInstance();
+
+  public static void main(String[] args) {
+    String suite = (args.length > 0) ? args[0] : "fixed";
+    int seams = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+    SeamBenchmark bench = new SeamBenchmark();
+    if (suite.equals("fixed")) {
+      bench.fixedPoint(seams);
+    }
+    else if (suite.equals("energy")) {
+      bench.energyFunctions(seams);
+    }
+    else if (suite.equals("strips")) {
+      bench.strips(seams);
+    }
+    else if (suite.equals("ladder")) {
+      bench.ladder();
+    }
+    else if (suite.equals("checkpoint")) {
+      bench.checkpoint(seams);
+    }
+    else if (suite.equals("engines")) {
+      bench.engines(seams);
+    }
+    else if (suite.equals("raw")) {
+      bench.raw();
+    }
+    else if (suite.equals("region")) {
+      bench.region(seams);
+    }
+    else if (suite.equals("splice")) {
+      bench.splice(seams);
+    }
+    else if (suite.equals("backtrack")) {
+      bench.backtrack();
+    }
+    else if (suite.equals("auto")) {
+      bench.autoTarget();
+    }
+    else if (suite.equals("cache")) {
+      bench.cache(seams);
+    }
+    else if (suite.equals("planes")) {
+      bench.planes();
+    }
+    else if (suite.equals("tiled")) {
+      bench.tiled(seams);
+    }
+    else if (suite.equals("startup")) {
+      bench.startup(seams);
+    }
     else {
-      this.removeSeam();
+      throw new IllegalArgumentException("Unknown benchmark suite: " + suite);
+    }
+  }
+
+  // returns the benchmark corpus by name: the sample images and generated images of each size
+  LinkedHashMap<String, Color[][]> corpus() {
+    LinkedHashMap<String, Color[][]> corpus = new LinkedHashMap<>();
+    for (String sample : SAMPLES) {
+      if (new File(sample).exists()) {
+        corpus.put(sample, this.read(new FromFileImage(sample)));
+      }
+    }
+    for (int[] size : SIZES) {
+      for (String kind : new String[] { "gradient", "noise", "stripes", "disks" }) {
+        corpus.put(kind + "-" + size[0] + "x" + size[1], this.generate(kind, size[0], size[1]));
+      }
+    }
+    return corpus;
+  }
+
+  // returns the colors of the given image as rows
+  Color[][] read(FromFileImage image) {
+    Color[][] colors = new Color[(int) image.getHeight()][(int) image.getWidth()];
+    for (int y = 0; y < colors.length; y += 1) {
+      for (int x = 0; x < colors[y].length; x += 1) {
+        colors[y][x] = image.getColorAt(x, y);
+      }
+    }
+    return colors;
+  }
+
+  // returns a generated w x h image of the given kind (always the same for the same input)
+  Color[][] generate(String kind, int w, int h) {
+    Random random = new Random(w * 31 + h);
+    Color[][] colors = new Color[h][w];
+    for (int y = 0; y < h; y += 1) {
+      for (int x = 0; x < w; x += 1) {
+        int value;
+        if (kind.equals("gradient")) {
+          value = (x * 255 / w + y * 255 / h) / 2;
+        }
+        else if (kind.equals("noise")) {
+          value = random.nextInt(256);
+        }
+        else if (kind.equals("stripes")) {
+          value = ((x / 8) % 2 == 0) ? 40 : 215;
+        }
+        else {
+          int dx = (x % 64) - 32;
+          int dy = (y % 64) - 32;
+          value = (dx * dx + dy * dy < 400) ? 230 : 20;
+        }
+        colors[y][x] = new Color(value, (value + x) % 256, (value + y) % 256);
+      }
+    }
+    return colors;
+  }
+
+  // returns whether the two given seams go through the same column in every row, counting the
+  // rows where they agree into the given counter
+  boolean samePath(ASeamInfo a, ASeamInfo b, int[] agreeingRows) {
+    boolean same = true;
+    for (; a != null && b != null; a = a.cameFrom, b = b.cameFrom) {
+      if (a.index == b.index) {
+        agreeingRows[0] += 1;
+      }
+      else {
+        same = false;
+      }
+    }
+    return same;
+  }
+
+  // reports the wall time of a new JVM carving the given number of seams out of a 64x64
+  // image, and the classes it loads (those of AWT, ImageIO and javalib apart): through
+  // CarveExport, through HeadlessCarve, and through HeadlessCarve with the class-data
+  // sharing archive of make headless
+  void startup(int seams) {
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    File dir = new File("bin/startup");
+    dir.mkdirs();
+    String ppm = new File(dir, "sample.ppm").getPath();
+    String png = new File(dir, "sample.png").getPath();
+    try {
+      SampleImage.write(Paths.get(ppm));
+      ImageDirectorySink.write(new File(png), "png",
+          FlatSeamCarver.pack(this.generate("disks", 64, 64)), 64, 64);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    String seamCount = Integer.toString(seams);
+    LinkedHashMap<String, List<String>> runs = new LinkedHashMap<>();
+    runs.put("CarveExport", Arrays.asList(java, "-Djava.awt.headless=true", "-cp",
+        System.getProperty("java.class.path"), "CarveExport", png,
+        new File(dir, "out.png").getPath(), seamCount));
+    runs.put("HeadlessCarve", Arrays.asList(java, "-Xshare:auto", "-cp", "headless.jar",
+        "HeadlessCarve", ppm, new File(dir, "out.ppm").getPath(), seamCount));
+    if (new File("headless.jsa").exists()) {
+      runs.put("HeadlessCarve+CDS", Arrays.asList(java, "-XX:SharedArchiveFile=headless.jsa",
+          "-Xshare:auto", "-cp", "headless.jar", "HeadlessCarve", ppm,
+          new File(dir, "out.ppm").getPath(), seamCount));
+    }
+    // the runs take turns, so that drift in the machine's load reaches them all alike
+    double[][] wall = new double[runs.size()][11];
+    for (int i = 0; i < 11; i += 1) {
+      int r = 0;
+      for (List<String> command : runs.values()) {
+        long start = System.nanoTime();
+        this.execute(command);
+        wall[r][i] = (System.nanoTime() - start) / 1e6;
+        r += 1;
+      }
+    }
+    System.out.println(String.format("%-18s %8s %8s %9s %9s %9s", "run", "seams", "wall ms",
+        "classes", "awt+io", "javalib"));
+    int r = 0;
+    for (Map.Entry<String, List<String>> run : runs.entrySet()) {
+      Arrays.sort(wall[r]);
+      ArrayList<String> logged = new ArrayList<>(run.getValue());
+      logged.add(1, "-Xlog:class+load=info");
+      int classes = 0;
+      int awt = 0;
+      int javalib = 0;
+      for (String line : this.execute(logged)) {
+        if (line.contains("source:")) {
+          classes += 1;
+          awt += (line.contains(" java.awt.") || line.contains(" sun.awt.")
+              || line.contains(" javax.imageio.")) ? 1 : 0;
+          javalib += line.contains(" javalib.") ? 1 : 0;
+        }
+      }
+      System.out.println(String.format("%-18s %8d %8.1f %9d %9d %9d", run.getKey(), seams,
+          wall[r][wall[r].length / 2], classes, awt, javalib));
+      r += 1;
+    }
+  }
+
+  // runs the given command to the end and returns the lines it prints
+  List<String> execute(List<String> command) {
+    try {
+      Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+      ArrayList<String> lines = new ArrayList<>();
+      try (BufferedReader out = new BufferedReader(new InputStreamReader(
+          process.getInputStream(), StandardCharsets.UTF_8))) {
+        for (String line = out.readLine(); line != null; line = out.readLine()) {
+          lines.add(line);
+        }
+      }
+      if (process.waitFor() != 0) {
+        throw new IllegalStateException("Failed: " + String.join(" ", command) + "\n"
+            + String.join("\n", lines));
+      }
+      return lines;
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // reports the time and heap allocation of loading a 4096x2048 image into a packed plane from
+  // headerless RGBA, from a PPM and from a PNG through ImageIO
+  void raw() {
+    int w = 4096;
+    int h = 2048;
+    int[] argb = FlatSeamCarver.pack(this.generate("disks", w, h));
+    ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    try {
+      File dir = Files.createTempDirectory("seamcarve").toFile();
+      ByteBuffer rgba = ByteBuffer.allocate(w * h * 4);
+      ByteBuffer ppm = ByteBuffer.allocate(20 + w * h * 3);
+      ppm.put(("P6\n" + w + " " + h + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+      for (int pixel : argb) {
+        rgba.put((byte) (pixel >> 16)).put((byte) (pixel >> 8)).put((byte) pixel)
+            .put((byte) (pixel >> 24));
+        ppm.put((byte) (pixel >> 16)).put((byte) (pixel >> 8)).put((byte) pixel);
+      }
+      Path rgbaFile = new File(dir, "image.rgba").toPath();
+      Files.write(rgbaFile, rgba.array());
+      Path ppmFile = new File(dir, "image.ppm").toPath();
+      Files.write(ppmFile, Arrays.copyOf(ppm.array(), ppm.position()));
+      File png = new File(dir, "image.png");
+      ImageDirectorySink.write(png, "png", argb, w, h);
+      System.out.println(String.format("%-8s %9s %12s", "input", "load ms", "heap MB"));
+      for (int round = 0; round < 2; round += 1) {
+        for (String input : new String[] { "rgba", "ppm", "png" }) {
+          long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+          long start = System.nanoTime();
+          if (input.equals("rgba")) {
+            RawImage.openRgba(rgbaFile, w, h).toArgb();
+          }
+          else if (input.equals("ppm")) {
+            RawImage.open(ppmFile).toArgb();
+          }
+          else {
+            BufferedImage image = ImageIO.read(png);
+            image.getRGB(0, 0, w, h, null, 0, w);
+          }
+          double millis = (System.nanoTime() - start) / 1e6;
+          allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId())
+              - allocated;
+          // the first round is a warm-up
+          if (round == 1) {
+            System.out.println(String.format("%-8s %9.1f %12.1f", input, millis,
+                allocated / (double) (1 << 20)));
+          }
+        }
+      }
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // reports the estimated footprint of every engine and the planner's choices from thumbnails
+  // to 200 MP scans in this JVM, then the seams/second of each engine on a 1024x768 image
+  void engines(int seams) {
+    EnginePlanner planner = new EnginePlanner();
+    System.out.println("max heap MB: " + Runtime.getRuntime().maxMemory() / (1 << 20)
+        + ", planner budget MB: " + planner.budget / (1 << 20));
+    System.out.print(String.format("%-12s", "size"));
+    for (CarveEngine engine : CarveEngine.ALL) {
+      System.out.print(String.format(" %10s", engine.name + " MB"));
+    }
+    System.out.println(String.format(" %9s %9s", "plan", "undoable"));
+    int[][] sizes = { { 64, 64 }, { 512, 384 }, { 1920, 1080 }, { 4000, 3000 },
+        { 8000, 6000 }, { 20000, 10000 } };
+    for (int[] size : sizes) {
+      System.out.print(String.format("%-12s", size[0] + "x" + size[1]));
+      for (CarveEngine engine : CarveEngine.ALL) {
+        System.out.print(String.format(" %10.1f",
+            engine.footprint(size[0], size[1]) / (double) (1 << 20)));
+      }
+      CarveEngine plan = planner.choose(size[0], size[1], false, planner.budget);
+      CarveEngine undoable = planner.choose(size[0], size[1], true, planner.budget);
+      System.out.println(String.format(" %9s %9s", (plan == null) ? "-" : plan.name,
+          (undoable == null) ? "-" : undoable.name));
+    }
+
+    Color[][] colors = this.generate("noise", 1024, 768);
+    int[] argb = FlatSeamCarver.pack(colors);
+    try {
+      for (int round = 0; round < 2; round += 1) {
+        long start = System.nanoTime();
+        FlatSeamCarver flat = new FlatSeamCarver(argb.clone(), 1024, 768, EnergyKernels.get());
+        for (int seam = 0; seam < seams; seam += 1) {
+          flat.carve(true);
+        }
+        double flatRate = seams * 1e9 / (System.nanoTime() - start);
+        Path file = BandedSeamCarver.spill(argb, 1024, 768);
+        start = System.nanoTime();
+        try (BandedSeamCarver banded = new BandedSeamCarver(file, 1024, 768)) {
+          for (int seam = 0; seam < seams; seam += 1) {
+            banded.carve();
+          }
+        }
+        double bandedRate = seams * 1e9 / (System.nanoTime() - start);
+        Files.delete(file);
+        SeamCarving graph = new SeamCarving(this.utils.constructPixelGraph(colors));
+        graph.isPlaying = false;
+        graph.validator = new GraphValidator(0);
+        start = System.nanoTime();
+        for (int seam = 0; seam < seams / 5; seam += 1) {
+          graph.onKeyEvent("v");
+          graph.removeBadSeam();
+        }
+        double graphRate = seams / 5 * 1e9 / (System.nanoTime() - start);
+        // the first round is a warm-up
+        if (round == 1) {
+          System.out.println(String.format("1024x768 vertical seams/s: flat %.1f, banded %.1f, "
+              + "graph %.1f", flatRate, bandedRate, graphRate));
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // reports how long writing and resuming a checkpoint of a carving takes after removing the
+  // given number of alternating vertical and horizontal seams, against removing them
+  void checkpoint(int seams) {
+    System.out.println(String.format("%-20s %9s %6s %10s %10s %10s %10s", "image", "size",
+        "seams", "carve ms", "write ms", "resume ms", "file KB"));
+    CarveCheckpoint checkpoint = new CarveCheckpoint();
+    for (Map.Entry<String, Color[][]> entry : this.corpus().entrySet()) {
+      Color[][] colors = entry.getValue();
+      int count = Math.min(seams, Math.min(colors.length, colors[0].length) / 2);
+      SeamCarving carving = new SeamCarving(this.utils.constructPixelGraph(colors));
+      carving.isPlaying = false;
+      carving.validator = new GraphValidator(0);
+      long start = System.nanoTime();
+      for (int seam = 0; seam < count; seam += 1) {
+        carving.onKeyEvent((seam % 2 == 0) ? "v" : "h");
+        carving.removeBadSeam();
+      }
+      double carveMillis = (System.nanoTime() - start) / 1e6;
+      try {
+        Path file = Files.createTempFile("seamcarve", ".ckpt");
+        start = System.nanoTime();
+        checkpoint.write(carving, file);
+        double writeMillis = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        checkpoint.resume(file);
+        double resumeMillis = (System.nanoTime() - start) / 1e6;
+        System.out.println(String.format("%-20s %9s %6d %10.1f %10.1f %10.1f %10d",
+            entry.getKey(), colors[0].length + "x" + colors.length, count, carveMillis,
+            writeMillis, resumeMillis, Files.size(file) / 1024));
+        Files.delete(file);
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  // reports the time of carving every image to 2/3, 1/2, 1/3 and 1/4 of its width as a size
+  // ladder, against carving it to each of those widths separately and to 1/4 alone
+  void ladder() {
+    System.out.println(String.format("%-20s %9s %10s %10s %10s %9s", "image", "size",
+        "ladder s", "separate s", "1/4 s", "ladder/4"));
+    for (Map.Entry<String, Color[][]> entry : this.corpus().entrySet()) {
+      Color[][] colors = entry.getValue();
+      int w = colors[0].length;
+      int h = colors.length;
+      int[] argb = FlatSeamCarver.pack(colors);
+      SizeLadder ladder = new SizeLadder(w * 2 / 3, w / 2, w / 3, w / 4);
+      IFrameSink discard = (frame, frameW, frameH) -> { };
+      // the first run is a warm-up: the JIT compiles the loops per shape
+      this.ladderRun(argb, w, h, ladder, discard);
+      double ladderSeconds = this.ladderRun(argb, w, h, ladder, discard);
+      double separateSeconds = 0;
+      for (int width : ladder.widths) {
+        separateSeconds += this.ladderRun(argb, w, h, new SizeLadder(width), discard);
+      }
+      double smallestSeconds = this.ladderRun(argb, w, h, new SizeLadder(w / 4), discard);
+      System.out.println(String.format("%-20s %9s %10.3f %10.3f %10.3f %9.2f", entry.getKey(),
+          w + "x" + h, ladderSeconds, separateSeconds, smallestSeconds,
+          ladderSeconds / smallestSeconds));
+    }
+  }
+
+  // reports the milliseconds per vertical seam carved out of a centered window of a 2048x1536
+  // image, from a sixteenth of its area to all of it, against the whole image
+  void region(int seams) {
+    int w = 2048;
+    int h = 1536;
+    int[] argb = FlatSeamCarver.pack(this.generate("disks", w, h));
+    System.out.println(String.format("%-11s %7s %9s %9s", "window", "area", "ms/seam",
+        "of image"));
+    double full = 0;
+    for (int scale = 1; scale <= 4; scale *= 2) {
+      int windowW = w / scale;
+      int windowH = h / scale;
+      double millis = 0;
+      // the first run is a warm-up: the JIT compiles the loops per shape
+      for (int run = 0; run < 2; run += 1) {
+        RegionCarver region = new RegionCarver(argb, w, h, (w - windowW) / 2, (h - windowH) / 2,
+            windowW, windowH);
+        long start = System.nanoTime();
+        for (int seam = 0; seam < seams; seam += 1) {
+          region.carve(true);
+        }
+        region.toArgb();
+        millis = (System.nanoTime() - start) / 1e6 / seams;
+      }
+      full = (scale == 1) ? millis : full;
+      System.out.println(String.format("%-11s %7.4f %9.2f %9.3f", windowW + "x" + windowH,
+          1.0 / (scale * scale), millis, millis / full));
+    }
+  }
+
+  // reports the milliseconds per seam taken to splice vertical and horizontal seams out of the
+  // pixel graph and back in, from 512x384 to 2048x1536, and the pixels moved per horizontal seam
+  // (finding the seams is not timed)
+  void splice(int seams) {
+    System.out.println(String.format("%-11s %9s %9s %9s %9s %9s %7s", "size", "v out ms",
+        "v in ms", "h out ms", "h in ms", "h moves", "ratio"));
+    // the first size is a warm-up: the JIT compiles the splices
+    int[][] sizes = { { 256, 192 }, { 512, 384 }, { 1024, 768 }, { 2048, 1536 } };
+    for (int[] size : sizes) {
+      double[] millis = new double[4];
+      long moves = 0;
+      for (int dir = 0; dir < 2; dir += 1) {
+        ArrayList<PixelRow> rows = this.utils.constructPixelGraph(this.generate("disks", size[0],
+            size[1]));
+        SeamWorkspace workspace = new SeamWorkspace();
+        ArrayDeque<ASeamInfo> removed = new ArrayDeque<>();
+        for (int i = 0; i < seams; i += 1) {
+          ASeamInfo seam = (dir == 0)
+              ? this.utils.getSmallestSeam(this.utils.seamify(rows, true, workspace))
+              : this.utils.seamifyAcross(rows, false, workspace).get(0);
+          for (ASeamInfo s = seam; dir == 1 && s != null; s = s.cameFrom) {
+            moves += rows.size() - 1 - s.index;
+          }
+          long start = System.nanoTime();
+          seam.removeFrom(rows);
+          millis[dir * 2] += (System.nanoTime() - start) / 1e6 / seams;
+          removed.push(seam);
+        }
+        long start = System.nanoTime();
+        while (!removed.isEmpty()) {
+          rows = removed.pop().insert(rows);
+        }
+        millis[dir * 2 + 1] = (System.nanoTime() - start) / 1e6 / seams;
+      }
+      if (size[0] > 256) {
+        System.out.println(String.format("%-11s %9.3f %9.3f %9.3f %9.3f %9d %7.1f",
+            size[0] + "x" + size[1], millis[0], millis[1], millis[2], millis[3], moves / seams,
+            millis[2] / millis[0]));
+      }
+    }
+  }
+
+  // reports the milliseconds and the bytes of DP state taken to find the cheapest vertical
+  // path through random energy planes, with a parent for every pixel and by splitting rows
+  void backtrack() {
+    System.out.println(String.format("%-11s %6s %9s %9s %10s %10s %7s", "size", "split", "table ms",
+        "split ms", "table MB", "split MB", "ratio"));
+    IEnergyKernel kernel = EnergyKernels.get();
+    Random random = new Random(7);
+    int[][] sizes = { { 1024, 768 }, { 2048, 1536 }, { 4096, 3072 }, { 6000, 4500 } };
+    for (int[] size : sizes) {
+      int w = size[0];
+      int h = size[1];
+      double[] energies = new double[w * h];
+      for (int i = 0; i < energies.length; i += 1) {
+        energies[i] = random.nextDouble();
+      }
+      SeamWorkspace table = new SeamWorkspace();
+      table.reservePath(w, h, false);
+      SeamWorkspace split = new SeamWorkspace();
+      split.reservePath(w, h, true);
+      double[] tableMillis = new double[4];
+      double[] splitMillis = new double[4];
+      // the first runs are warm-ups: the JIT compiles the loops per shape
+      for (int run = 0; run < 4; run += 1) {
+        long start = System.nanoTime();
+        this.utils.tablePath(energies, w, h, kernel, table);
+        tableMillis[run] = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        this.utils.splitPath(energies, w, h, kernel, split);
+        splitMillis[run] = (System.nanoTime() - start) / 1e6;
+      }
+      if (!Arrays.equals(Arrays.copyOf(table.path, h), Arrays.copyOf(split.path, h))) {
+        throw new IllegalStateException("The split path differs at " + w + "x" + h);
+      }
+      Arrays.sort(tableMillis, 1, 4);
+      Arrays.sort(splitMillis, 1, 4);
+      System.out.println(String.format("%-11s %6s %9.1f %9.1f %10.1f %10.1f %7.2f", w + "x" + h,
+          Utils.splitsPath(w, h) ? "auto" : "-", tableMillis[2], splitMillis[2],
+          table.pathBytes() / 1e6, split.pathBytes() / 1e6, splitMillis[2] / tableMillis[2]));
+      table = null;
+      split = null;
+      energies = null;
+    }
+  }
+
+  // reports where a 50th percentile auto target stops carving vertical seams out of every
+  // image, and what that costs against carving to half the width, with the spread of the
+  // costs per pixel of the seams removed
+  void autoTarget() {
+    System.out.println(String.format("%-20s %9s %10s %7s %8s %8s %9s %9s %9s", "image", "size",
+        "threshold", "seams", "auto s", "1/2 s", "cost p50", "cost p90", "last"));
+    for (Map.Entry<String, Color[][]> entry : this.corpus().entrySet()) {
+      Color[][] colors = entry.getValue();
+      int w = colors[0].length;
+      int h = colors.length;
+      int[] argb = FlatSeamCarver.pack(colors);
+      // the first run is a warm-up: the JIT compiles the loops per shape
+      this.autoRun(argb, w, h, w / 2, new AutoTarget("50%"));
+      AutoTarget target = new AutoTarget("50%");
+      long start = System.nanoTime();
+      FlatSeamCarver carver = this.autoRun(argb, w, h, w - 1, target);
+      double autoSeconds = (System.nanoTime() - start) / 1e9;
+      start = System.nanoTime();
+      this.autoRun(argb, w, h, w / 2, null);
+      double halfSeconds = (System.nanoTime() - start) / 1e9;
+      SeamCostHistogram costs = carver.seamCosts;
+      System.out.println(String.format("%-20s %9s %10.2f %7d %8.3f %8.3f %9s %9s %9s",
+          entry.getKey(), w + "x" + h, target.threshold, costs.count, autoSeconds, halfSeconds,
+          (costs.count == 0) ? "-" : String.format("%.2f", costs.percentile(50)),
+          (costs.count == 0) ? "-" : String.format("%.2f", costs.percentile(90)),
+          (costs.count == 0) ? "-" : String.format("%.2f", costs.curve[(int) costs.count - 1])));
+    }
+  }
+
+  // reports the milliseconds taken to carve the given number of vertical seams out of every
+  // image without a cache, through a cold SeamCache (a miss) and through a warm one (a hit),
+  // with the bytes of the entry
+  void cache(int seams) {
+    System.out.println(String.format("%-20s %9s %9s %9s %9s %7s %10s", "image", "size",
+        "plain ms", "miss ms", "hit ms", "speedup", "entry KB"));
+    try {
+      Path dir = Files.createTempDirectory("seamcache");
+      for (Map.Entry<String, Color[][]> entry : this.corpus().entrySet()) {
+        Color[][] colors = entry.getValue();
+        int w = colors[0].length;
+        int h = colors.length;
+        int[] argb = FlatSeamCarver.pack(colors);
+        double[] millis = new double[3];
+        // the first round is a warm-up: the JIT compiles the loops per shape
+        for (int round = 0; round < 2; round += 1) {
+          SeamCache cache = new SeamCache(dir.resolve("round" + round));
+          long start = System.nanoTime();
+          FlatSeamCarver carver = new FlatSeamCarver(argb.clone(), w, h, EnergyKernels.get());
+          for (int seam = 0; seam < seams && carver.width > 1; seam += 1) {
+            carver.carve(true);
+          }
+          millis[0] = (System.nanoTime() - start) / 1e6;
+          for (int run = 1; run < 3; run += 1) {
+            start = System.nanoTime();
+            cache.carve(new FlatSeamCarver(argb.clone(), w, h, EnergyKernels.get()), seams, "v");
+            millis[run] = (System.nanoTime() - start) / 1e6;
+          }
+          if (cache.hits.get() != 1 || cache.misses.get() != 1) {
+            throw new IllegalStateException("The cache missed twice on " + entry.getKey());
+          }
+        }
+        long bytes = 0;
+        for (int round = 0; round < 2; round += 1) {
+          Path roundDir = dir.resolve("round" + round);
+          try (DirectoryStream<Path> files = Files.newDirectoryStream(roundDir)) {
+            for (Path file : files) {
+              bytes += (round == 1 && file.toString().endsWith(SeamCache.SUFFIX))
+                  ? Files.size(file) : 0;
+              Files.delete(file);
+            }
+          }
+          Files.delete(roundDir);
+        }
+        System.out.println(String.format("%-20s %9s %9.2f %9.2f %9.2f %7.1f %10.1f",
+            entry.getKey(), w + "x" + h, millis[0], millis[1], millis[2], millis[0] / millis[2],
+            bytes / 1024.0));
+      }
+      Files.delete(dir);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // reports the milliseconds taken by the first energy pass over the pixel graph of a 1280x960
+  // image: sequentially, then by EnergyPlanes on fork-join pools of 1, 2 and 4 workers and of
+  // one worker per core
+  void planes() {
+    int w = 1280;
+    int h = 960;
+    ArrayList<PixelRow> pixels = this.utils.constructPixelGraph(this.generate("noise", w, h));
+    IEnergyKernel kernel = EnergyKernels.get();
+    double[] brightness = new double[(w + 2) * (h + 2)];
+    double[] expected = new double[w * h];
+    double[] energies = new double[w * h];
+    int cores = Runtime.getRuntime().availableProcessors();
+    System.out.println("cores: " + cores + ", blocks of " + EnergyPlanes.blockRows(w)
+        + " rows");
+    System.out.println(String.format("%-12s %9s %8s", "pass", "ms", "speedup"));
+    double sequential = 0;
+    for (int workers : (cores > 4) ? new int[] { 0, 1, 2, 4, cores } : new int[] { 0, 1, 2, 4 }) {
+      ForkJoinPool pool = (workers == 0) ? null : new ForkJoinPool(workers);
+      double[] millis = new double[7];
+      // the first runs are warm-ups: the JIT compiles the loops
+      for (int run = 0; run < millis.length; run += 1) {
+        long start = System.nanoTime();
+        if (pool == null) {
+          this.utils.brightnessPlane(pixels, brightness);
+          kernel.energies(brightness, w, h, expected);
+        }
+        else {
+          pool.invoke(new EnergyPlanes(pixels, kernel, energies, EnergyPlanes.blockRows(w)));
+        }
+        millis[run] = (System.nanoTime() - start) / 1e6;
+      }
+      if (pool != null) {
+        pool.shutdown();
+        if (!Arrays.equals(energies, expected)) {
+          throw new IllegalStateException("The energies differ with " + workers + " workers");
+        }
+      }
+      Arrays.sort(millis, 2, millis.length);
+      double median = millis[2 + (millis.length - 2) / 2];
+      sequential = (pool == null) ? median : sequential;
+      System.out.println(String.format("%-12s %9.1f %8.2f",
+          (pool == null) ? "sequential" : workers + " workers", median, sequential / median));
+    }
+  }
+
+  // reports the milliseconds per vertical seam carved by a TiledSeamCarver and handed to a
+  // TileRenderer, from 1024x768 to 4096x3072, against a FlatSeamCarver where it fits the heap,
+  // with the tiles redrawn per seam and the milliseconds taken to set the tiles up
+  void tiled(int seams) {
+    System.out.println(String.format("%-11s %9s %9s %9s %9s %11s", "size", "setup ms",
+        "tiled ms", "flat ms", "ratio", "tiles/seam"));
+    // the JIT compiles the update of the tiles only after a few hundred seams
+    TiledSeamCarver warmUp = new TiledSeamCarver(FlatSeamCarver.pack(this.generate("disks", 512,
+        384)), 512, 384);
+    for (int seam = 0; seam < 400; seam += 1) {
+      warmUp.carve();
+    }
+    int[][] sizes = { { 1024, 768 }, { 2048, 1536 }, { 4096, 3072 } };
+    for (int[] size : sizes) {
+      int w = size[0];
+      int h = size[1];
+      int[] argb = FlatSeamCarver.pack(this.generate("disks", w, h));
+      long start = System.nanoTime();
+      TiledSeamCarver tiled = new TiledSeamCarver(argb, w, h);
+      double setup = (System.nanoTime() - start) / 1e6;
+      TileRenderer sink = new TileRenderer(tiled);
+      tiled.redraw(sink);
+      long redrawn = 0;
+      double[] tiledMillis = new double[seams];
+      for (int seam = 0; seam < seams; seam += 1) {
+        start = System.nanoTime();
+        tiled.carve();
+        redrawn += tiled.redraw(sink);
+        tiledMillis[seam] = (System.nanoTime() - start) / 1e6;
+      }
+      tiled = null;
+      // the flat engine keeps about 96 bytes per pixel
+      double[] flatMillis = new double[Math.min(seams, 10)];
+      if ((long) w * h <= 2048 * 1536) {
+        FlatSeamCarver flat = new FlatSeamCarver(argb, w, h, EnergyKernels.get());
+        for (int seam = 0; seam < flatMillis.length; seam += 1) {
+          start = System.nanoTime();
+          flat.carve(true);
+          flatMillis[seam] = (System.nanoTime() - start) / 1e6;
+        }
+      }
+      argb = null;
+      // the first seams are warm-ups: the JIT compiles the loops
+      Arrays.sort(tiledMillis, Math.min(5, seams / 2), seams);
+      Arrays.sort(flatMillis, flatMillis.length / 2, flatMillis.length);
+      double tiledMedian = tiledMillis[(Math.min(5, seams / 2) + seams) / 2];
+      double flatMedian = flatMillis[flatMillis.length * 3 / 4];
+      System.out.println(String.format("%-11s %9.1f %9.2f %9s %9s %11.1f", w + "x" + h, setup,
+          tiledMedian, (flatMedian == 0) ? "-" : String.format("%.1f", flatMedian),
+          (flatMedian == 0) ? "-" : String.format("%.3f", tiledMedian / flatMedian),
+          redrawn / (double) seams));
+    }
+  }
+
+  // returns a carver over a copy of the given packed w x h image once it has carved the given
+  // number of vertical seams, or stopped early at the given target (if any)
+  FlatSeamCarver autoRun(int[] argb, int w, int h, int seams, AutoTarget target) {
+    FlatSeamCarver carver = new FlatSeamCarver(argb.clone(), w, h, EnergyKernels.get());
+    for (int seam = 0; seam < seams; seam += 1) {
+      if (target == null) {
+        carver.carve(true);
+      }
+      else if (carver.carveUnless(true, target) == null) {
+        break;
+      }
+    }
+    return carver;
+  }
+
+  // returns the seconds taken to carve a copy of the given packed w x h image down the given
+  // ladder into the given sink
+  double ladderRun(int[] argb, int w, int h, SizeLadder ladder, IFrameSink sink) {
+    long start = System.nanoTime();
+    try {
+      ladder.carve(new FlatSeamCarver(argb.clone(), w, h, EnergyKernels.get()), sink);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return (System.nanoTime() - start) / 1e9;
+  }
+
+  // reports how much faster the strip carver removes the given number of vertical seams from
+  // wide images on 1, 2, 4 and 8 threads than a flat carver over the whole image, and how
+  // much more energy its seams remove than those seamify finds over the whole image
+  void strips(int seams) {
+    LinkedHashMap<String, Color[][]> corpus = new LinkedHashMap<>();
+    for (String sample : SAMPLES) {
+      if (new File(sample).exists()) {
+        corpus.put(sample, this.read(new FromFileImage(sample)));
+      }
+    }
+    for (String kind : new String[] { "noise", "disks" }) {
+      corpus.put(kind + "-2048x256", this.generate(kind, 2048, 256));
+    }
+    int[] threads = { 1, 2, 4, 8 };
+    System.out.println("available processors: " + Runtime.getRuntime().availableProcessors());
+    System.out.print(String.format("%-20s %9s %6s %9s", "image", "size", "seams", "full s"));
+    for (int count : threads) {
+      System.out.print(String.format(" %9s %9s", count + "t speedup", count + "t dE%"));
+    }
+    System.out.println();
+    for (Map.Entry<String, Color[][]> entry : corpus.entrySet()) {
+      Color[][] colors = entry.getValue();
+      int w = colors[0].length;
+      int h = colors.length;
+      int count = Math.min(seams, w / 4);
+      int[] argb = FlatSeamCarver.pack(colors);
+      // the first runs are a warm-up: the JIT compiles the loops per shape
+      this.fullRun(argb, w, h, count);
+      new StripCarver(threads[threads.length - 1]).carve(argb, w, h, count);
+      long start = System.nanoTime();
+      this.fullRun(argb, w, h, count);
+      double fullSeconds = (System.nanoTime() - start) / 1e9;
+      double fullWeight = this.seamifyRun(colors, count);
+      System.out.print(String.format("%-20s %9s %6d %9.3f", entry.getKey(), w + "x" + h, count,
+          fullSeconds));
+      for (int pool : threads) {
+        StripCarver carver = new StripCarver(pool);
+        start = System.nanoTime();
+        carver.carve(argb, w, h, count);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.print(String.format(" %9.2f %9.2f", fullSeconds / seconds,
+            100 * (carver.totalWeight - fullWeight) / fullWeight));
+      }
+      System.out.println();
+    }
+  }
+
+  // returns the total energy of the given number of vertical seams carved out of a copy of
+  // the given packed w x h image by a single flat carver
+  double fullRun(int[] argb, int w, int h, int seams) {
+    FlatSeamCarver carver = new FlatSeamCarver(argb.clone(), w, h, EnergyKernels.get());
+    for (int seam = 0; seam < seams; seam += 1) {
+      carver.carve(true);
+    }
+    return carver.totalWeight;
+  }
+
+  // returns the total energy of the given number of vertical seams that seamify finds over the
+  // pixel graph of the given image, removing the cheapest one each time
+  double seamifyRun(Color[][] colors, int seams) {
+    Utils utils = Utils.getInstance();
+    ArrayList<PixelRow> pixels = utils.constructPixelGraph(colors);
+    SeamWorkspace workspace = new SeamWorkspace();
+    double total = 0;
+    for (int seam = 0; seam < seams; seam += 1) {
+      ASeamInfo cheapest = utils.getSmallestSeam(utils.seamify(pixels, true, workspace));
+      total += cheapest.totalWeight;
+      cheapest.removeSelf(pixels, pixels.size() - 1);
+    }
+    return total;
+  }
+
+  // reports the throughput of the flat carver with the Sobel energy, the forward-energy
+  // criterion and the windowed energies at window sizes 5 and 15, alternating vertical and
+  // horizontal seams
+  void energyFunctions(int seams) {
+    String[] names = { "sobel", "forward", "var5", "var15", "ent5", "ent15" };
+    System.out.print(String.format("%-20s %9s %6s", "image", "size", "seams"));
+    for (String name : names) {
+      System.out.print(String.format(" %9s", name + " s/s"));
+    }
+    System.out.println();
+    for (Map.Entry<String, Color[][]> entry : this.corpus().entrySet()) {
+      Color[][] colors = entry.getValue();
+      int count = Math.min(seams, Math.min(colors.length, colors[0].length) / 2);
+      System.out.print(String.format("%-20s %9s %6d", entry.getKey(),
+          colors[0].length + "x" + colors.length, count));
+      // the first run on each image is a warm-up: the JIT compiles the loops per shape
+      this.energyRun(colors, count, names);
+      for (double rate : this.energyRun(colors, count, names)) {
+        System.out.print(String.format(" %9.1f", rate));
+      }
+      System.out.println();
+    }
+  }
+
+  // returns the seams/second of carving the given number of alternating vertical and
+  // horizontal seams out of the given image with each of the named energy functions
+  double[] energyRun(Color[][] colors, int seams, String[] names) {
+    double[] rates = new double[names.length];
+    for (int i = 0; i < names.length; i += 1) {
+      FlatSeamCarver carver = new FlatSeamCarver(FlatSeamCarver.pack(colors), colors[0].length,
+          colors.length, this.energyFunction(names[i]));
+      if (names[i].equals("forward")) {
+        carver.useForwardEnergy();
+      }
+      long start = System.nanoTime();
+      for (int seam = 0; seam < seams; seam += 1) {
+        carver.carve(seam % 2 == 0);
+      }
+      rates[i] = seams * 1e9 / (System.nanoTime() - start);
+    }
+    return rates;
+  }
+
+  // returns the energy function of the given name (var<window>, ent<window>, or the Sobel
+  // energy for anything else)
+  IEnergyFunction energyFunction(String name) {
+    if (name.startsWith("var")) {
+      return new LocalVarianceEnergy(Integer.parseInt(name.substring(3)));
+    }
+    if (name.startsWith("ent")) {
+      return new EntropyEnergy(Integer.parseInt(name.substring(3)));
+    }
+    return new SobelEnergy();
+  }
+
+  // reports the throughput of the double and fixed-point DP and how often they pick the same
+  // vertical seam, carving every image with the double seams
+  void fixedPoint(int seams) {
+    this.fixedPointRun("warm-up", this.generate("noise", 64, 64), 200, false);
+    System.out.println(String.format("%-20s %9s %6s %12s %12s %8s %9s %9s", "image", "size",
+        "seams", "double s/s", "fixed s/s", "speedup", "same seam", "same cols"));
+    for (Map.Entry<String, Color[][]> entry : this.corpus().entrySet()) {
+      this.fixedPointRun(entry.getKey(), entry.getValue(), seams, true);
+    }
+  }
+
+  // runs the fixed-point comparison on one image and optionally prints its row of the report
+  void fixedPointRun(String name, Color[][] colors, int seams, boolean print) {
+    ArrayList<PixelRow> pixels = this.utils.constructPixelGraph(colors);
+    int h = pixels.size();
+    int w = pixels.get(0).size();
+    long doubleNanos = 0;
+    long fixedNanos = 0;
+    int sameSeams = 0;
+    int[] agreeingRows = new int[1];
+    int count = 0;
+    for (; count < seams && pixels.get(0).size() > 1; count += 1) {
+      long start = System.nanoTime();
+      ASeamInfo exact = this.utils.getSmallestSeam(this.utils.seamify(pixels, true));
+      doubleNanos += System.nanoTime() - start;
+      start = System.nanoTime();
+      ASeamInfo fixed = this.utils.getSmallestSeam(this.utils.seamifyFixedPoint(pixels, true));
+      fixedNanos += System.nanoTime() - start;
+      if (this.samePath(exact, fixed, agreeingRows)) {
+        sameSeams += 1;
+      }
+      exact.removeSelf(pixels, pixels.size() - 1);
+    }
+    if (print) {
+      System.out.println(String.format("%-20s %9s %6d %12.1f %12.1f %7.2fx %8.1f%% %8.1f%%", name,
+          w + "x" + h, count, count * 1e9 / doubleNanos, count * 1e9 / fixedNanos,
+          (double) doubleNanos / fixedNanos, 100.0 * sameSeams / count,
+          100.0 * agreeingRows[0] / ((long) count * h)));
+    }
+  }
+
+}
+
+// runs the Java seam carver and the C one (../SeamCarvingC, built with `make bench`) on the
+// same corpus and compares their seams, output pixels, speed and memory
+// usage: java -cp "jars/javalib.jar:bin" SeamConformance run [seams per image]
+//        java -cp "jars/javalib.jar:bin" SeamConformance trace <image> <seams> <v|h> <trace>
+//            <out.ppm>
+// Each carve runs in its own process so that peak RSS and start-up are measured separately.
+// Both sides read the corpus as lossless PNGs (samples are decoded once by ImageIO) so that
+// differences come from carving, not from the JPEG decoders.
+class SeamConformance {
+
+  static final String C_BINARY = "../SeamCarvingC/build/seamcarve-bench";
+  static final File OUTPUT = new File("bin/conformance");
+
+  Utils utils = Utils.getInstance();
+  SeamBenchmark bench = new SeamBenchmark();
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    SeamConformance harness = new SeamConformance();
+    if (args.length > 0 && args[0].equals("trace")) {
+      harness.trace(args[1], Integer.parseInt(args[2]), args[3].equals("v"), args[4], args[5]);
+    }
+    else if (args.length > 0 && args[0].equals("run")) {
+      harness.run((args.length > 1) ? Integer.parseInt(args[1]) : 50);
+    }
+    else {
+      throw new IllegalArgumentException("Usage: SeamConformance run [seams] | trace ...");
+    }
+  }
+
+  // writes the corpus into the given directory and returns the image files
+  ArrayList<File> corpus(File dir) throws IOException {
+    dir.mkdirs();
+    ArrayList<File> files = new ArrayList<>();
+    for (Map.Entry<String, Color[][]> entry : this.bench.corpus().entrySet()) {
+      Color[][] colors = entry.getValue();
+      String name = entry.getKey().replace(".jpg", "");
+      files.add(this.writePng(new File(dir, name + ".png"), colors));
+      if (entry.getKey().endsWith(".jpg")) {
+        files.add(this.writePng(new File(dir, name + "-half.png"), this.half(colors)));
+      }
+    }
+    return files;
+  }
+
+  // returns the given image scaled to half its size (nearest neighbor)
+  Color[][] half(Color[][] colors) {
+    Color[][] result = new Color[Math.max(1, colors.length / 2)][Math.max(1,
+        colors[0].length / 2)];
+    for (int y = 0; y < result.length; y += 1) {
+      for (int x = 0; x < result[y].length; x += 1) {
+        result[y][x] = colors[y * 2][x * 2];
+      }
+    }
+    return result;
+  }
+
+  // writes the given image to the given file as a PNG and returns the file
+  File writePng(File file, Color[][] colors) throws IOException {
+    BufferedImage image = new BufferedImage(colors[0].length, colors.length,
+        BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < colors.length; y += 1) {
+      for (int x = 0; x < colors[y].length; x += 1) {
+        image.setRGB(x, y, colors[y][x].getRGB());
+      }
+    }
+    ImageIO.write(image, "png", file);
+    return file;
+  }
+
+  // carves the given number of seams of one direction out of the given image, writing every
+  // seam path to the given trace file and the result to the given PPM file, and prints the
+  // same key=value report as the C benchmark binary
+  void trace(String image, int seams, boolean isVert, String traceFile, String outFile)
+      throws IOException {
+    long start = System.nanoTime();
+    Color[][] colors = this.bench.read(new FromFileImage(image));
+    long loadNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    ArrayList<PixelRow> pixels = this.utils.constructPixelGraph(colors);
+    long graphNanos = System.nanoTime() - start;
+
+    long findNanos = 0;
+    long removeNanos = 0;
+    int done = 0;
+    try (PrintWriter trace = new PrintWriter(new FileWriter(traceFile))) {
+      for (; done < seams && pixels.size() > 1 && pixels.get(0).size() > 1; done += 1) {
+        start = System.nanoTime();
+        ASeamInfo seam = this.utils.getSmallestSeam(isVert ? this.utils.seamify(pixels, true)
+            : this.utils.seamifyAcross(pixels, false, new SeamWorkspace()));
+        findNanos += System.nanoTime() - start;
+        trace.println(this.pathLine(seam, isVert, isVert ? pixels.size()
+            : pixels.get(0).size()));
+
+        start = System.nanoTime();
+        seam.removeFrom(pixels);
+        removeNanos += System.nanoTime() - start;
+      }
+    }
+    this.writePpm(new File(outFile), pixels);
+
+    double carveMillis = (findNanos + removeNanos) / 1e6;
+    System.out.println(String.format(
+        "impl=java seams=%d load_ms=%.3f graph_ms=%.3f find_ms=%.3f remove_ms=%.3f "
+            + "seams_per_sec=%.1f peak_rss_kb=%d",
+        done, loadNanos / 1e6, graphNanos / 1e6, findNanos / 1e6, removeNanos / 1e6,
+        (carveMillis > 0) ? done * 1000.0 / carveMillis : 0.0, this.peakRssKb()));
+  }
+
+  // returns the trace line of the given seam: its direction, then its index in every row
+  String pathLine(ASeamInfo seam, boolean isVert, int rows) {
+    int[] path = new int[rows];
+    int row = rows - 1;
+    for (ASeamInfo s = seam; s != null; s = s.cameFrom) {
+      path[row] = s.index;
+      row -= 1;
+    }
+    StringBuilder line = new StringBuilder(isVert ? "v" : "h");
+    for (int index : path) {
+      line.append(' ').append(index);
+    }
+    return line.toString();
+  }
+
+  // returns the peak resident set size of this process in kilobytes (-1 if unknown)
+  long peakRssKb() {
+    try {
+      for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+        if (line.startsWith("VmHWM:")) {
+          return Long.parseLong(line.replaceAll("[^0-9]", ""));
+        }
+      }
+    }
+    catch (IOException e) {
+      // not Linux
+    }
+    return -1;
+  }
+
+  // writes the given pixels to the given file as a binary PPM
+  void writePpm(File file, ArrayList<PixelRow> pixels) throws IOException {
+    int h = pixels.get(0).isEmpty() ? 0 : pixels.size();
+    int w = pixels.get(0).size();
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+      out.write(("P6\n" + w + " " + h + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+      for (int y = 0; y < h; y += 1) {
+        for (Pixel pixel : pixels.get(y)) {
+          out.write(pixel.color.getRed());
+          out.write(pixel.color.getGreen());
+          out.write(pixel.color.getBlue());
+        }
+      }
+    }
+  }
+
+  // returns the width, height and RGB bytes of the given binary PPM file
+  int[] readPpm(File file) throws IOException {
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    int[] header = new int[3];
+    int pos = 2;
+    for (int field = 0; field < 3; field += 1) {
+      while (Character.isWhitespace(bytes[pos])) {
+        pos += 1;
+      }
+      while (!Character.isWhitespace(bytes[pos])) {
+        header[field] = header[field] * 10 + (bytes[pos] - '0');
+        pos += 1;
+      }
+    }
+    pos += 1;
+    int[] result = new int[2 + header[0] * header[1]];
+    result[0] = header[0];
+    result[1] = header[1];
+    for (int i = 0; i < header[0] * header[1]; i += 1) {
+      int at = pos + i * 3;
+      result[2 + i] = ((bytes[at] & 0xFF) << 16) | ((bytes[at + 1] & 0xFF) << 8)
+          | (bytes[at + 2] & 0xFF);
+    }
+    return result;
+  }
+
+  // runs the given command and returns the key=value pairs of the last line it prints
+  Map<String, String> exec(List<String> command) throws IOException, InterruptedException {
+    Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    String last = "";
+    StringBuilder output = new StringBuilder();
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        output.append(line).append('\n');
+        last = line;
+      }
+    }
+    if (process.waitFor() != 0) {
+      throw new IllegalStateException("Command failed: " + command + "\n" + output);
+    }
+    Map<String, String> result = new HashMap<>();
+    for (String pair : last.trim().split(" ")) {
+      String[] parts = pair.split("=", 2);
+      if (parts.length == 2) {
+        result.put(parts[0], parts[1]);
+      }
+    }
+    return result;
+  }
+
+  // runs both implementations on the whole corpus in both directions and prints the report
+  void run(int seams) throws IOException, InterruptedException {
+    if (!new File(C_BINARY).canExecute()) {
+      throw new IllegalStateException("Build the C benchmark first: make -C ../SeamCarvingC bench");
+    }
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    String classpath = System.getProperty("java.class.path");
+    System.out.println(String.format("%-22s %3s %9s %9s %7s %15s %15s %13s %9s %8s",
+        "image", "dir", "java s/s", "c s/s", "c/java", "java find/rm ms", "c find/rm ms",
+        "rss MB j/c", "same seam", "same px"));
+    for (File image : this.corpus(new File(OUTPUT, "corpus"))) {
+      for (String dir : new String[] { "v", "h" }) {
+        String base = new File(OUTPUT, image.getName().replace(".png", "") + "-" + dir)
+            .getPath();
+        Map<String, String> j = this.exec(Arrays.asList(java, "-Djava.awt.headless=true", "-cp",
+            classpath, "SeamConformance", "trace", image.getPath(), Integer.toString(seams), dir,
+            base + ".java.trace", base + ".java.ppm"));
+        Map<String, String> c = this.exec(Arrays.asList(C_BINARY, image.getPath(),
+            Integer.toString(seams), dir, base + ".c.trace", base + ".c.ppm"));
+        List<String> javaSeams = Files.readAllLines(Paths.get(base + ".java.trace"));
+        List<String> cSeams = Files.readAllLines(Paths.get(base + ".c.trace"));
+        int same = 0;
+        while (same < Math.min(javaSeams.size(), cSeams.size())
+            && javaSeams.get(same).equals(cSeams.get(same))) {
+          same += 1;
+        }
+        double javaRate = Double.parseDouble(j.get("seams_per_sec"));
+        double cRate = Double.parseDouble(c.get("seams_per_sec"));
+        System.out.println(String.format("%-22s %3s %9.1f %9.1f %6.2fx %15s %15s %13s %9s %7.2f%%",
+            image.getName(), dir, javaRate, cRate, cRate / javaRate,
+            Math.round(Double.parseDouble(j.get("find_ms"))) + "/"
+                + Math.round(Double.parseDouble(j.get("remove_ms"))),
+            Math.round(Double.parseDouble(c.get("find_ms"))) + "/"
+                + Math.round(Double.parseDouble(c.get("remove_ms"))),
+            Long.parseLong(j.get("peak_rss_kb")) / 1024 + "/"
+                + Long.parseLong(c.get("peak_rss_kb")) / 1024,
+            same + "/" + javaSeams.size(),
+            this.samePixels(new File(base + ".java.ppm"), new File(base + ".c.ppm"))));
+      }
+    }
+  }
+
+  // returns the percentage of pixels that are equal in the two given PPM files (0 if their
+  // sizes differ)
+  double samePixels(File a, File b) throws IOException {
+    int[] first = this.readPpm(a);
+    int[] second = this.readPpm(b);
+    if (first[0] != second[0] || first[1] != second[1]) {
+      return 0;
+    }
+    int same = 0;
+    for (int i = 2; i < first.length; i += 1) {
+      if (first[i] == second[i]) {
+        same += 1;
+      }
+    }
+    return (first.length == 2) ? 100 : 100.0 * same / (first.length - 2);
+  }
+
+}
+
+// runs tests and big bang example
+class ExamplesPixels {
+  FromFileImage testImage1 = new FromFileImage("balloons.jpg");
+  SeamCarving sc1 = new SeamCarving(testImage1);
+
+  void testData(Tester t) {
+    sc1.bigBang((int) testImage1.getWidth(), (int) testImage1.getHeight(),
+        SeamCarving.TICK_SECONDS);
+  }
+
+  void testEnergyKernels(Tester t) {
+    ArrayList<PixelRow> pixels = Utils.getInstance().constructPixelGraph(testImage1);
+    int h = pixels.size();
+    int w = pixels.get(0).size();
+    double[] brightness = Utils.getInstance().brightnessPlane(pixels);
+    double[] scalar = new double[w * h];
+    double[] best = new double[w * h];
+    EnergyKernels.scalar().energies(brightness, w, h, scalar);
+    EnergyKernels.get().energies(brightness, w, h, best);
+    t.checkExpect(EnergyKernels.maxDeviation(scalar, best) <= EnergyKernels.TOLERANCE, true);
+    t.checkInexact(scalar[w + 1], pixels.get(1).get(1).energy(), 0.000001);
+    double[] prev = new double[w + 2];
+    prev[0] = Double.POSITIVE_INFINITY;
+    prev[w + 1] = Double.POSITIVE_INFINITY;
+    System.arraycopy(scalar, 0, prev, 1, w);
+    double[] scalarNext = new double[w + 2];
+    double[] bestNext = new double[w + 2];
+    int[] scalarParents = new int[w * h];
+    int[] bestParents = new int[w * h];
+    EnergyKernels.scalar().minPlusAdd(prev, scalar, w, scalarNext, scalarParents, w);
+    EnergyKernels.get().minPlusAdd(prev, scalar, w, bestNext, bestParents, w);
+    t.checkExpect(EnergyKernels.maxDeviation(scalarNext, bestNext) <= EnergyKernels.TOLERANCE,
+        true);
+    t.checkExpect(scalarParents, bestParents);
+  }
+
+  void testEnergyPlanes(Tester t) {
+    Utils utils = Utils.getInstance();
+    ArrayList<PixelRow> pixels = utils.constructPixelGraph(
+        new SeamBenchmark().generate("noise", 37, 29));
+    double[] brightness = utils.brightnessPlane(pixels);
+    double[] expected = new double[37 * 29];
+    EnergyKernels.get().energies(brightness, 37, 29, expected);
+    int[] expectedFixed = new int[37 * 29];
+    new FixedPointKernel().energies(utils.luminancePlane(pixels), 37, 29, expectedFixed);
+
+    // any block size and any number of workers give the same energies as the sequential pass
+    ForkJoinPool pool = new ForkJoinPool(3);
+    for (int blockRows : new int[] { 1, 4, 7, 29, 100 }) {
+      double[] energies = new double[37 * 29];
+      pool.invoke(new EnergyPlanes(pixels, EnergyKernels.get(), energies, blockRows));
+      t.checkExpect(Arrays.equals(energies, expected), true);
+      int[] fixed = new int[37 * 29];
+      pool.invoke(new EnergyPlanes(pixels, new FixedPointKernel(), fixed, blockRows));
+      t.checkExpect(Arrays.equals(fixed, expectedFixed), true);
+    }
+    pool.shutdown();
+
+    // a worker keeps its plane from one pass to the next, and a smaller block reuses it
+    double[] plane = new EnergyPlanes(pixels, EnergyKernels.get(), expected, 29)
+        .brightnessPlane();
+    t.checkExpect(new EnergyPlanes(pixels, EnergyKernels.get(), expected, 4).brightnessPlane()
+        == plane, true);
+    t.checkExpect(new EnergyPlanes(pixels, EnergyKernels.get(), expected, 30).brightnessPlane()
+        == plane, false);
+    for (int blockRows : new int[] { 29, 4 }) {
+      double[] energies = new double[37 * 29];
+      new EnergyPlanes(pixels, EnergyKernels.get(), energies, blockRows).invoke();
+      t.checkExpect(Arrays.equals(energies, expected), true);
+      int[] fixed = new int[37 * 29];
+      new EnergyPlanes(pixels, new FixedPointKernel(), fixed, blockRows).invoke();
+      t.checkExpect(Arrays.equals(fixed, expectedFixed), true);
     }
+
+    // the kernels write into the middle of a larger buffer
+    double[] shifted = new double[37 * 29 + 5];
+    EnergyKernels.scalar().energies(brightness, 37, 29, shifted, 5);
+    t.checkExpect(Arrays.equals(Arrays.copyOfRange(shifted, 5, shifted.length), expected), true);
+
+    // large images go through the common pool
+    ArrayList<PixelRow> large = utils.constructPixelGraph(
+        new SeamBenchmark().generate("disks", 600, 450));
+    t.checkExpect(EnergyPlanes.parallel(600, 450), true);
+    t.checkExpect(EnergyPlanes.parallel(511, 512), false);
+    double[] sequential = new double[600 * 450];
+    EnergyKernels.get().energies(utils.brightnessPlane(large), 600, 450, sequential);
+    double[] parallel = new double[600 * 450];
+    utils.energyPlane(large, EnergyKernels.get(), null, parallel);
+    t.checkExpect(Arrays.equals(parallel, sequential), true);
+    int[] sequentialFixed = new int[600 * 450];
+    new FixedPointKernel().energies(utils.luminancePlane(large), 600, 450, sequentialFixed);
+    t.checkExpect(Arrays.equals(utils.energyPlane(large, new FixedPointKernel()),
+        sequentialFixed), true);
+
+    t.checkExpect(EnergyPlanes.blockRows(100), 319);
+    t.checkExpect(EnergyPlanes.blockRows(10000), EnergyPlanes.MIN_BLOCK_ROWS);
+    t.checkExpect(this.failure(() -> new EnergyPlanes(pixels, EnergyKernels.get(),
+        new double[37 * 29], 0)), "Blocks must have at least one row: 0");
   }
 
-  // inserts seams of pixels into this.pixels
-  void insertSeam() {
-    if (this.badSeam == null) {
-      this.badSeam = this.history.pop();
-      this.pixels = this.badSeam.insert(this.pixels);
-      if (!Utils.getInstance().verifyPixelGraph(this.pixels)) {
-        throw new IllegalStateException("Pixel Image is Ill-Formed");
+  void testFixedPoint(Tester t) {
+    FixedPointKernel kernel = new FixedPointKernel();
+    int[] prev = { Integer.MAX_VALUE, Integer.MAX_VALUE - 5, 7, Integer.MAX_VALUE };
+    int[] next = new int[4];
+    int[] parents = new int[2];
+    kernel.minPlusAdd(prev, new int[] { 10, 20 }, 0, next, parents, 2);
+    t.checkExpect(next[1], 17);
+    t.checkExpect(parents[0], 1);
+    kernel.minPlusAdd(new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE - 5, Integer.MAX_VALUE },
+        new int[] { 10 }, 0, next, parents, 1);
+    t.checkExpect(next[1], Integer.MAX_VALUE);
+
+    ArrayList<PixelRow> pixels = Utils.getInstance().constructPixelGraph(testImage1);
+    ASeamInfo seam = Utils.getInstance()
+        .getSmallestSeam(Utils.getInstance().seamifyFixedPoint(pixels, true));
+    int rows = 0;
+    for (ASeamInfo s = seam; s != null; s = s.cameFrom) {
+      rows += 1;
+      if (s.cameFrom != null) {
+        t.checkExpect(Math.abs(s.index - s.cameFrom.index) <= 1, true);
       }
     }
-    else {
-      this.insertBadSeam();
+    t.checkExpect(rows, pixels.size());
+  }
+
+  void testSeamPrecomputer(Tester t) {
+    Utils utils = Utils.getInstance();
+    FromFileImage image = new FromFileImage("balloons2.jpg");
+    ArrayList<PixelRow> expected = utils.constructPixelGraph(image);
+    ArrayList<PixelRow> pixels = utils.constructPixelGraph(image);
+    SeamPrecomputer precomputer = new SeamPrecomputer(2);
+    precomputer.start(pixels, false, 0.0, new Random(), false);
+    for (int i = 0; i < 10; i += 1) {
+      ASeamInfo seam = precomputer.poll();
+      while (seam == null) {
+        Thread.yield();
+        seam = precomputer.poll();
+      }
+      ASeamInfo direct = utils.getSmallestSeam(utils.seamify(expected, true));
+      t.checkExpect(seam.isVertical(), true);
+      t.checkExpect(seam.index, direct.index);
+      t.checkInexact(seam.totalWeight, direct.totalWeight, 0.000001);
+      seam.removeSelf(pixels, pixels.size() - 1);
+      direct.removeSelf(expected, expected.size() - 1);
     }
+    precomputer.cancel();
+    t.checkExpect(precomputer.poll(), null);
+    t.checkExpect(pixels.get(0).size(), expected.get(0).size());
+  }
 
+  void testSeamifyBoth(Tester t) {
+    Utils utils = Utils.getInstance();
+    ArrayList<PixelRow> pixels = utils
+        .constructPixelGraph(new FromFileImage("balloons2.jpg"));
+    int h = pixels.size();
+    int w = pixels.get(0).size();
+    ArrayList<ASeamInfo> both = utils.seamifyBoth(pixels, false);
+    ASeamInfo vert = utils.getSmallestSeam(utils.seamify(pixels, true));
+    ASeamInfo horiz = utils.getSmallestSeam(utils.seamify(utils.transpose(pixels), false));
+    t.checkExpect(both.get(0).isVertical(), true);
+    t.checkExpect(both.get(1).isVertical(), false);
+    t.checkInexact(both.get(0).totalWeight, vert.totalWeight, 0.000001);
+    t.checkInexact(both.get(1).totalWeight, horiz.totalWeight, 0.000001);
+    t.checkExpect(both.get(0).pixel == vert.pixel, true);
+    t.checkExpect(both.get(1).pixel == horiz.pixel, true);
+    ASeamInfo cheaper = utils.cheaperSeam(both.get(0), both.get(1), w, h);
+    t.checkExpect(cheaper.totalWeight / (cheaper.isVertical() ? h : w)
+        <= Math.min(vert.totalWeight / h, horiz.totalWeight / w) + 0.000001, true);
+    ArrayList<ASeamInfo> fixed = utils.seamifyBoth(pixels, true);
+    t.checkExpect(fixed.get(1).pixel == utils
+        .getSmallestSeam(utils.seamifyFixedPoint(utils.transpose(pixels), false)).pixel, true);
   }
 
-  // completes seam insertion by unpainting red inserted pixels
-  // and reseting the bad seam to null
-  void insertBadSeam() {
-    this.badSeam.unPaintRed();
-    this.badSeam = null;
+  void testSeededDirections(Tester t) {
+    ArrayList<PixelRow> pixels = Utils.getInstance()
+        .constructPixelGraph(new FromFileImage("balloons2.jpg"));
+    SeamPrecomputer first = new SeamPrecomputer(8);
+    SeamPrecomputer second = new SeamPrecomputer(8);
+    first.start(pixels, false, 0.5, new Random(42), false);
+    second.start(pixels, false, 0.5, new Random(42), false);
+    for (int i = 0; i < 8; i += 1) {
+      ASeamInfo a = first.poll();
+      while (a == null) {
+        Thread.yield();
+        a = first.poll();
+      }
+      ASeamInfo b = second.poll();
+      while (b == null) {
+        Thread.yield();
+        b = second.poll();
+      }
+      t.checkExpect(a.isVertical(), b.isVertical());
+      t.checkExpect(a.pixel == b.pixel, true);
+    }
+    first.cancel();
+    second.cancel();
   }
 
-  // finds the most boring seam or removes it if already found
-  void removeSeam() {
-    if (this.badSeam == null) {
-      this.removeVert = Math.random() >= (double) (this.height) / (this.width + this.height);
-      this.seamCarve();
+  void testFrameBudget(Tester t) {
+    FrameBudget budget = new FrameBudget(10);
+    t.checkExpect(budget.seamsPerFrame(0), 1);
+    budget.recordRender(20000000);
+    budget.recordApply(20000000, 2);
+    t.checkExpect(budget.seamsPerFrame(0), 8);
+    t.checkExpect(budget.seamsPerFrame(50000000), 2);
+    t.checkExpect(budget.seamsPerFrame(1000000000), 1);
+    FrameBudget cheap = new FrameBudget(10);
+    cheap.recordApply(1000, 1000);
+    t.checkExpect(cheap.seamsPerFrame(0), FrameBudget.MAX_SEAMS_PER_FRAME);
+    t.checkInexact(FrameBudget.average(10, 20), 12.0, 0.000001);
+    // the animation's budget is one frame per tick
+    SeamCarving carving = new SeamCarving(Utils.getInstance().constructPixelGraph(
+        new SeamBenchmark().generate("noise", 8, 6)));
+    t.checkInexact(carving.budget.frameNanos, SeamCarving.TICK_SECONDS * 1e9, 0.000001);
+  }
+
+  void testPixelRow(Tester t) {
+    Random random = new Random(7);
+    ArrayList<Pixel> expected = new ArrayList<>();
+    PixelRow row = new PixelRow();
+    for (int i = 0; i < 2000; i += 1) {
+      if (expected.isEmpty() || random.nextInt(3) > 0) {
+        int index = random.nextInt(expected.size() + 1);
+        Pixel pixel = new Pixel(Color.BLACK);
+        expected.add(index, pixel);
+        row.add(index, pixel);
+      }
+      else {
+        int index = random.nextInt(expected.size());
+        t.checkExpect(row.remove(index) == expected.remove(index), true);
+      }
     }
-    else {
-      this.removeBadSeam();
+    t.checkExpect(row.size(), expected.size());
+    boolean same = true;
+    for (int i = 0; i < row.size(); i += 1) {
+      same = same && row.get(i) == expected.get(i);
     }
+    t.checkExpect(same, true);
+    t.checkExpect(new PixelRow(expected).indexOf(expected.get(5)), 5);
+    t.checkException(new IndexOutOfBoundsException("Index 0 out of bounds for length 0"),
+        new PixelRow(), "get", 0);
   }
 
-  // responsible for pausing, changing color modes, and
-  // removing vertical and horizontal seams, and inserting
-  // seams back when reversed
-  public void onKeyEvent(String s) {
-    if (s.equals(" ")) {
-      this.isPlaying = !this.isPlaying;
+  void testSeamWorkspace(Tester t) {
+    Utils utils = Utils.getInstance();
+    Color[][] colors = new SeamBenchmark().read(new FromFileImage("balloons2.jpg"));
+    ArrayList<PixelRow> pixels = utils.constructPixelGraph(colors);
+    FlatSeamCarver carver = new FlatSeamCarver(colors);
+    SeamWorkspace workspace = new SeamWorkspace();
+    for (int i = 0; i < 12; i += 1) {
+      boolean isVert = i % 3 != 2;
+      if (!isVert) {
+        pixels = utils.transpose(pixels);
+      }
+      ASeamInfo fresh = utils.getSmallestSeam(utils.seamify(pixels, isVert));
+      ASeamInfo reused = utils.getSmallestSeam(utils.seamify(pixels, isVert, workspace));
+      t.checkExpect(reused.pixel == fresh.pixel, true);
+      t.checkExpect(reused.totalWeight, fresh.totalWeight);
+      int[] path = carver.carve(isVert);
+      boolean samePath = true;
+      int row = pixels.size() - 1;
+      for (ASeamInfo s = fresh; s != null; s = s.cameFrom) {
+        samePath = samePath && path[row] == s.index;
+        row -= 1;
+      }
+      t.checkExpect(samePath, true);
+      t.checkInexact(carver.lastWeight, fresh.totalWeight, 0.000001);
+      fresh.removeSelf(pixels, pixels.size() - 1);
+      if (!isVert) {
+        pixels = utils.transpose(pixels);
+      }
     }
-    if (s.equals("1")) {
-      this.colorMode = 1;
+    t.checkExpect(carver.width, pixels.get(0).size());
+    t.checkExpect(carver.height, pixels.size());
+    t.checkExpect(carver.rgbAt(5, 7), pixels.get(7).get(5).color.getRGB());
+  }
+
+  void testFlatSeamCarverAllocation(Tester t) {
+    // the scalar kernel, because the vector one allocates until the JIT has compiled it
+    Color[][] colors = new SeamBenchmark().read(new FromFileImage("balloons2.jpg"));
+    FlatSeamCarver carver = new FlatSeamCarver(FlatSeamCarver.pack(colors), colors[0].length,
+        colors.length, EnergyKernels.scalar());
+    carver.carve(true);
+    carver.carve(false);
+    ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(id);
+    long overhead = threads.getThreadAllocatedBytes(id) - before;
+    before = threads.getThreadAllocatedBytes(id);
+    for (int i = 0; i < 20; i += 1) {
+      carver.carve(i % 3 != 2);
     }
-    if (s.equals("2")) {
-      this.colorMode = 2;
+    t.checkExpect(threads.getThreadAllocatedBytes(id) - before - overhead, 0L);
+    t.checkExpect(carver.width, colors[0].length - 15);
+    t.checkExpect(carver.height, colors.length - 7);
+  }
+
+  void testGraphValidator(Tester t) {
+    Utils utils = Utils.getInstance();
+    ArrayList<PixelRow> pixels = utils.constructPixelGraph(new FromFileImage("balloons2.jpg"));
+    t.checkExpect(utils.verifyPixelGraph(pixels), true);
+    GraphValidator validator = new GraphValidator(1);
+    Stack<ASeamInfo> removed = new Stack<>();
+    for (int i = 0; i < 6; i += 1) {
+      boolean isVert = i % 2 == 0;
+      if (!isVert) {
+        pixels = utils.transpose(pixels);
+      }
+      ASeamInfo seam = utils.getSmallestSeam(utils.seamify(pixels, isVert));
+      seam.removeSelf(pixels, pixels.size() - 1);
+      if (!isVert) {
+        pixels = utils.transpose(pixels);
+      }
+      validator.check(seam, false);
+      removed.push(seam);
     }
-    if (!this.isPlaying && this.badSeam == null) {
-      if (this.isReversed) {
-        if (s.equals("i")) {
-          this.insertSeam();
+    t.checkExpect(utils.verifyPixelGraph(pixels), true);
+    while (removed.size() > 1) {
+      ASeamInfo seam = removed.pop();
+      pixels = seam.insert(pixels);
+      validator.check(seam, true);
+    }
+    t.checkExpect(validator.seamsChecked, 11L);
+    t.checkExpect(validator.failures, 0L);
+
+    ASeamInfo last = removed.peek();
+    GraphValidator sampled = new GraphValidator(0.25);
+    for (int i = 0; i < 8; i += 1) {
+      sampled.check(last, false);
+    }
+    t.checkExpect(sampled.metrics(), "seams_checked=2 seams_skipped=6 pixels_checked="
+        + (2 * 2 * pixels.size()) + " failures=0");
+    t.checkExpect(new GraphValidator(0).metrics(),
+        "seams_checked=0 seams_skipped=0 pixels_checked=0 failures=0");
+
+    // a link next to the seam that is still removed goes wrong
+    IPixel left = last.cameFrom.pixel.getLeft();
+    left.setRight(last.cameFrom.cameFrom.pixel);
+    t.checkExpect(validator.wellFormedAround(last, false), false);
+    t.checkException(new IllegalStateException("Pixel Image is Ill-Formed"), validator, "check",
+        last, false);
+    t.checkExpect(validator.failures, 1L);
+    t.checkExpect(utils.verifyPixelGraph(pixels), false);
+    t.checkConstructorException(
+        new IllegalArgumentException("Sampling rate must be between 0 and 1: 2.0"),
+        "GraphValidator", 2.0);
+  }
+
+  void testSummedAreaTable(Tester t) {
+    Random random = new Random(3);
+    int w = 23;
+    int h = 17;
+    int[] argb = new int[w * h];
+    for (int i = 0; i < argb.length; i += 1) {
+      argb[i] = random.nextInt();
+    }
+    SummedAreaTable table = new SummedAreaTable(w, h);
+    table.build(argb, w, w, h, rgb -> rgb & 0xFF);
+    boolean same = true;
+    for (int i = 0; i < 12; i += 1) {
+      boolean isVert = i % 3 != 1;
+      int[] path = new int[isVert ? table.height : table.width];
+      for (int line = 0; line < path.length; line += 1) {
+        path[line] = random.nextInt(isVert ? table.width : table.height);
+        for (int pos = path[line]; pos < (isVert ? table.width : table.height) - 1; pos += 1) {
+          int at = isVert ? line * w + pos : pos * w + line;
+          argb[at] = argb[at + (isVert ? 1 : w)];
         }
       }
-      else {
-        if (s.equals("v")) {
-          this.removeVert = true;
-          this.seamCarve();
+      table.removeSeam(path, isVert);
+      for (int k = 0; k < 20; k += 1) {
+        int x0 = random.nextInt(table.width);
+        int y0 = random.nextInt(table.height);
+        int x1 = x0 + random.nextInt(table.width - x0);
+        int y1 = y0 + random.nextInt(table.height - y0);
+        long expected = 0;
+        for (int y = y0; y <= y1; y += 1) {
+          for (int x = x0; x <= x1; x += 1) {
+            expected += argb[y * w + x] & 0xFF;
+          }
         }
-        else if (s.equals("h")) {
-          this.removeVert = false;
-          this.seamCarve();
+        same = same && table.sum(x0, y0, x1, y1) == expected;
+      }
+    }
+    t.checkExpect(same, true);
+    t.checkExpect(table.width, w - 8);
+    t.checkExpect(table.height, h - 4);
+  }
+
+  void testWindowedEnergies(Tester t) {
+    Color[][] colors = new SeamBenchmark().generate("disks", 48, 36);
+    for (int window : new int[] { 5, 15 }) {
+      for (IEnergyFunction energy : new IEnergyFunction[] { new LocalVarianceEnergy(window),
+          new EntropyEnergy(window) }) {
+        FlatSeamCarver carver = new FlatSeamCarver(FlatSeamCarver.pack(colors), 48, 36, energy);
+        for (int i = 0; i < 9; i += 1) {
+          carver.carve(i % 3 != 1);
         }
+        double[] energies = new double[carver.width * carver.height];
+        energy.energies(energies);
+        t.checkInexact(this.maxDeviationFromNaive(carver, energies, window,
+            energy instanceof EntropyEnergy), 0.0, 0.000000001);
       }
     }
+    t.checkConstructorException(new IllegalArgumentException("Window must be odd and positive: 4"),
+        "LocalVarianceEnergy", 4);
+    t.checkConstructorException(new IllegalArgumentException("Bins must be between 2 and 32: 1"),
+        "EntropyEnergy", 5, 1);
+    t.checkConstructorException(new IllegalArgumentException("Bins must be between 2 and 32: 33"),
+        "EntropyEnergy", 5, 33);
+
+    // the pixel graph is scored with the same energy functions, and finds the seams of the
+    // flat carver
+    Utils utils = Utils.getInstance();
+    ArrayList<PixelRow> pixels = utils.constructPixelGraph(colors);
+    SeamWorkspace workspace = new SeamWorkspace();
+    workspace.energy = new LocalVarianceEnergy(5);
+    FlatSeamCarver flat = new FlatSeamCarver(FlatSeamCarver.pack(colors), 48, 36,
+        new LocalVarianceEnergy(5));
+    boolean same = true;
+    for (int i = 0; i < 6; i += 1) {
+      ASeamInfo seam = utils.getSmallestSeam(utils.seamify(pixels, true, workspace));
+      flat.carve(true);
+      same = same && Math.abs(seam.totalWeight - flat.lastWeight) < 0.000000001;
+      seam.removeSelf(pixels, pixels.size() - 1);
+    }
+    t.checkExpect(same, true);
+    t.checkExpect(utils.getSmallestSeam(utils.seamify(pixels, true)).totalWeight
+        == flat.lastWeight, false);
+    ArrayList<ASeamInfo> both = utils.seamifyBoth(pixels, false, new LocalVarianceEnergy(5));
+    t.checkInexact(both.get(0).totalWeight,
+        utils.getSmallestSeam(utils.seamify(pixels, true, workspace)).totalWeight, 0.000001);
+
+    // the animation scores its seams, and those of its precomputer, with the supplied function
+    SeamCarving carving = new SeamCarving(utils.constructPixelGraph(colors));
+    carving.useEnergy(() -> new EntropyEnergy(5));
+    t.checkExpect(carving.workspace.energy instanceof EntropyEnergy, true);
+    carving.seamCarve();
+    t.checkInexact(carving.badSeam.totalWeight, utils.getSmallestSeam(utils.seamify(
+        utils.constructPixelGraph(colors), true, carving.workspace)).totalWeight, 0.000001);
+    carving.useEnergy(null);
+    t.checkExpect(carving.workspace.energy, null);
   }
 
-  // finds the most boring next seam
-  void seamCarve() {
+  // returns the largest difference between the given energies of the carver's image and the
+  // variance or entropy (8 bins) computed pixel by pixel over each window
+  double maxDeviationFromNaive(FlatSeamCarver carver, double[] energies, int window,
+      boolean entropy) {
+    int r = window / 2;
+    double max = 0;
+    for (int y = 0; y < carver.height; y += 1) {
+      for (int x = 0; x < carver.width; x += 1) {
+        double sum = 0;
+        double square = 0;
+        int n = 0;
+        int[] histogram = new int[8];
+        for (int wy = Math.max(0, y - r); wy <= Math.min(carver.height - 1, y + r); wy += 1) {
+          for (int wx = Math.max(0, x - r); wx <= Math.min(carver.width - 1, x + r); wx += 1) {
+            int v = LocalVarianceEnergy.channelSum(carver.rgbAt(wx, wy));
+            sum += v / 765.0;
+            square += (v / 765.0) * (v / 765.0);
+            histogram[v * 8 / 766] += 1;
+            n += 1;
+          }
+        }
+        double expected = square / n - (sum / n) * (sum / n);
+        if (entropy) {
+          expected = 0;
+          for (int count : histogram) {
+            if (count > 0) {
+              expected -= (double) count / n * Math.log((double) count / n) / Math.log(2);
+            }
+          }
+        }
+        max = Math.max(max, Math.abs(energies[y * carver.width + x] - expected));
+      }
+    }
+    return max;
+  }
+
+  void testForwardEnergy(Tester t) {
+    Color[][] colors = new SeamBenchmark().generate("disks", 40, 30);
+    FlatSeamCarver carver = new FlatSeamCarver(FlatSeamCarver.pack(colors), 40, 30,
+        EnergyKernels.scalar());
+    carver.useForwardEnergy();
+    for (int i = 0; i < 10; i += 1) {
+      carver.carve(i % 3 != 1);
+      t.checkExpect(carver.lastWeight >= 0, true);
+    }
+    ForwardEnergy fresh = new ForwardEnergy(carver.argb, carver.stride, carver.width,
+        carver.height);
+    ForwardEnergy kept = carver.forward;
+    boolean same = kept.width == fresh.width && kept.height == fresh.height;
+    for (int y = 0; y < fresh.height; y += 1) {
+      for (int x = 0; x < fresh.width; x += 1) {
+        int i = y * fresh.stride + x;
+        same = same && kept.brightness[i] == fresh.brightness[i]
+            && kept.acrossVert[i] == fresh.acrossVert[i]
+            && kept.acrossHoriz[i] == fresh.acrossHoriz[i] && kept.upLeft[i] == fresh.upLeft[i]
+            && kept.upRight[i] == fresh.upRight[i] && kept.leftDown[i] == fresh.leftDown[i];
+      }
+    }
+    t.checkExpect(same, true);
+    for (boolean isVert : new boolean[] { true, false }) {
+      t.checkInexact(kept.cheapestPath(isVert, carver.workspace),
+          this.naiveForwardCost(carver, isVert), 0.000000001);
+    }
+    carver.useBackwardEnergy();
+    carver.carve(true);
+    t.checkExpect(carver.width, 32);
+  }
+
+  // returns the least forward energy of a seam of the given direction through the carver's
+  // image, computing every difference from the pixels
+  double naiveForwardCost(FlatSeamCarver carver, boolean isVert) {
+    int lines = isVert ? carver.height : carver.width;
+    int length = isVert ? carver.width : carver.height;
+    double[] costs = new double[length];
+    for (int line = 0; line < lines; line += 1) {
+      double[] next = new double[length];
+      for (int pos = 0; pos < length; pos += 1) {
+        double before = this.naiveBrightness(carver, isVert, line, pos - 1);
+        double after = this.naiveBrightness(carver, isVert, line, pos + 1);
+        double previous = this.naiveBrightness(carver, isVert, line - 1, pos);
+        double across = Math.abs(before - after);
+        if (line == 0) {
+          next[pos] = across;
+        }
+        else {
+          next[pos] = costs[pos] + across;
+          if (pos > 0) {
+            next[pos] = Math.min(next[pos], costs[pos - 1] + across
+                + Math.abs(previous - before));
+          }
+          if (pos < length - 1) {
+            next[pos] = Math.min(next[pos], costs[pos + 1] + across
+                + Math.abs(previous - after));
+          }
+        }
+      }
+      costs = next;
+    }
+    double min = Double.POSITIVE_INFINITY;
+    for (double cost : costs) {
+      min = Math.min(min, cost);
+    }
+    return min;
+  }
+
+  // returns the brightness of the carver's pixel at the given position along the given line
+  // (0 outside the image)
+  double naiveBrightness(FlatSeamCarver carver, boolean isVert, int line, int pos) {
+    int x = isVert ? pos : line;
+    int y = isVert ? line : pos;
+    if (x < 0 || y < 0 || x >= carver.width || y >= carver.height) {
+      return 0;
+    }
+    int rgb = carver.rgbAt(x, y);
+    return ((((rgb >> 16) & 0xFF) + (rgb & 0xFF) + ((rgb >> 8) & 0xFF)) / 3.0) / 255.0;
+  }
+
+  void testStripCarver(Tester t) {
+    Color[][] colors = new SeamBenchmark().generate("disks", 200, 40);
+    int[] argb = FlatSeamCarver.pack(colors);
+    FlatSeamCarver full = new FlatSeamCarver(argb.clone(), 200, 40, EnergyKernels.get());
+    for (int i = 0; i < 30; i += 1) {
+      full.carve(true);
+    }
+    // the seams that seamify finds over the whole image are the reference
+    double reference = new SeamBenchmark().seamifyRun(colors, 30);
+    StripCarver single = new StripCarver(1);
+    t.checkExpect(Arrays.equals(single.carve(argb, 200, 40, 30), full.toArgb()), true);
+    t.checkInexact(single.totalWeight, reference, 0.000000001);
+    // three strips on so small an image remove about a fifth more energy than seamify
+    StripCarver strips = new StripCarver(3, 3, 16);
+    int[] carved = strips.carve(argb, 200, 40, 30);
+    t.checkExpect(carved.length, 170 * 40);
+    t.checkInexact((strips.totalWeight - reference) / reference, 0.2016, 0.005);
+    t.checkException(new IllegalArgumentException("Cannot remove 196 seams from a 200 pixel "
+        + "wide image in 3 strips"), strips, "carve", argb, 200, 40, 196);
+    t.checkConstructorException(new IllegalArgumentException("Threads, strips and band width "
+        + "must be positive"), "StripCarver", 0, 1, 16);
+
+    FlatSeamCarver frozen = new FlatSeamCarver(argb.clone(), 200, 40, EnergyKernels.get());
+    frozen.freezeColumns(5, 7);
+    for (int i = 0; i < 20; i += 1) {
+      frozen.carve(true);
+    }
+    boolean kept = true;
+    for (int y = 0; y < 40; y += 1) {
+      for (int x = 0; x < 5; x += 1) {
+        kept = kept && frozen.argb[y * frozen.stride + x] == argb[y * 200 + x]
+            && frozen.argb[y * frozen.stride + 179 - x] == argb[y * 200 + 199 - x];
+      }
+    }
+    t.checkExpect(kept, true);
+    t.checkException(new IllegalStateException("Frozen columns only allow backward vertical "
+        + "seams"), frozen, "carve", false);
+    t.checkException(new IllegalArgumentException("Frozen columns must leave some to carve"),
+        frozen, "freezeColumns", 100, 80);
+  }
+
+  void testSizeLadder(Tester t) {
+    Color[][] colors = new SeamBenchmark().generate("noise", 60, 20);
+    int[] argb = FlatSeamCarver.pack(colors);
+    ArrayList<int[]> frames = new ArrayList<>();
+    ArrayList<Integer> frameWidths = new ArrayList<>();
+    IFrameSink sink = (frame, w, h) -> {
+      frames.add(frame);
+      frameWidths.add(w);
+    };
+    SizeLadder ladder = new SizeLadder(60, 45, 30, 12);
+    try {
+      ladder.carve(new FlatSeamCarver(argb.clone(), 60, 20, EnergyKernels.get()), sink);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    t.checkExpect(frameWidths, new ArrayList<>(Arrays.asList(60, 45, 30, 12)));
+    t.checkExpect(Arrays.equals(frames.get(0), argb), true);
+    for (int i = 1; i < frames.size(); i += 1) {
+      FlatSeamCarver alone = new FlatSeamCarver(argb.clone(), 60, 20, EnergyKernels.get());
+      while (alone.width > frameWidths.get(i)) {
+        alone.carve(true);
+      }
+      t.checkExpect(Arrays.equals(frames.get(i), alone.toArgb()), true);
+    }
+    t.checkConstructorException(new IllegalArgumentException("Ladder widths must be positive "
+        + "and decreasing"), "SizeLadder", new int[] { 30, 45 });
+    t.checkException(new IllegalArgumentException("Ladder width 61 exceeds the image width 60"),
+        new SizeLadder(61, 30), "carve", new FlatSeamCarver(argb.clone(), 60, 20,
+            EnergyKernels.get()), sink);
+  }
+
+  void testSnapshots(Tester t) {
+    SeamCarving carving = new SeamCarving(Utils.getInstance().constructPixelGraph(
+        new SeamBenchmark().generate("disks", 30, 20)));
+    CarveSnapshot first = carving.publish();
+    t.checkExpect(carving.publish() == first, true);
+    t.checkExpect(first.width, 30);
+    t.checkExpect(first.rgbAt(4, 3), carving.pixels.get(3).get(4).getColor().getRGB());
+    int[] before = first.toArgb();
+
+    carving.isPlaying = false;
+    carving.onKeyEvent("v");
+    CarveSnapshot painted = carving.snapshots.latest();
+    t.checkExpect(painted.version > first.version, true);
+    t.checkExpect(painted.width, 30);
+    carving.onTick();
+    CarveSnapshot removed = carving.snapshots.latest();
+    t.checkExpect(removed.width, 29);
+    t.checkExpect(removed.height, 20);
+    t.checkExpect(Arrays.equals(first.toArgb(), before), true);
+    carving.onTick();
+    t.checkExpect(carving.snapshots.latest() == removed, true);
+    carving.onKeyEvent("2");
+    t.checkExpect(carving.snapshots.latest().colorMode, 2);
+    t.checkExpect(carving.snapshots.published(), 4L);
+    t.checkException(new IllegalArgumentException("Snapshot version 0 is not newer than "
+        + carving.version), carving.snapshots, "publish", first);
+    t.checkException(new IndexOutOfBoundsException("Index 29 out of bounds for length 29"),
+        removed, "rgbAt", 29, 0);
+    t.checkException(new IndexOutOfBoundsException("Index 20 out of bounds for length 20"),
+        removed, "rgbAt", 0, 20);
+    // the scene is drawn from the latest snapshot, not from the pixels
+    carving.makeScene();
+    t.checkExpect(carving.snapshots.published(), 4L);
+  }
+
+  void testTiledSeamCarver(Tester t) {
+    // the tiled carver removes the seams of the flat carver, with ragged tiles at the edges
+    int[] argb = FlatSeamCarver.pack(new SeamBenchmark().generate("noise", 70, 50));
+    FlatSeamCarver flat = new FlatSeamCarver(argb.clone(), 70, 50, EnergyKernels.scalar());
+    TiledSeamCarver tiled = new TiledSeamCarver(argb, 70, 50, 16);
+    t.checkExpect(tiled.columns, 5);
+    t.checkExpect(tiled.bands, 4);
+    boolean same = true;
+    for (int seam = 0; seam < 25; seam += 1) {
+      same = same && Arrays.equals(Arrays.copyOf(flat.carve(true), 50),
+          Arrays.copyOf(tiled.carve(), 50)) && flat.lastWeight == tiled.lastWeight;
+    }
+    t.checkExpect(same, true);
+    t.checkExpect(tiled.width, 45);
+    t.checkExpect(tiled.totalWeight, flat.totalWeight);
+    t.checkExpect(Arrays.equals(tiled.toArgb(), flat.toArgb()), true);
+
+    // the energies and DP kept up to date seam by seam are those of the carved image
+    TiledSeamCarver fresh = new TiledSeamCarver(tiled.toArgb(), 45, 50, 16);
+    for (int y = 0; y < 50; y += 1) {
+      for (int x = 0; x < 45; x += 1) {
+        int i = tiled.index(y, x);
+        int j = fresh.index(y, x);
+        same = same && tiled.energies[i] == fresh.energies[j]
+            && tiled.costs[i] == fresh.costs[j] && tiled.parents[i] == fresh.parents[j];
+      }
+    }
+    t.checkExpect(same, true);
+
+    // a seam only dirties the tiles it crosses, and the tiles handed over so far draw the image
+    TiledSeamCarver drawn = new TiledSeamCarver(FlatSeamCarver.pack(new SeamBenchmark()
+        .generate("disks", 40, 30)), 40, 30, 8);
+    HashMap<Integer, int[]> tiles = new HashMap<>();
+    HashMap<Integer, int[]> rows = new HashMap<>();
+    ITileSink sink = (tile, pixels, lengths) -> {
+      tiles.put(tile, pixels);
+      rows.put(tile, lengths);
+    };
+    t.checkExpect(drawn.redraw(sink), 20);
+    t.checkExpect(drawn.redraw(sink), 0);
+    for (int seam = 0; seam < 6; seam += 1) {
+      int[] lengths = drawn.lengths.clone();
+      drawn.carve();
+      int crossed = 0;
+      for (int tile = 0; tile < 20; tile += 1) {
+        crossed += Arrays.equals(lengths, tile * 8, tile * 8 + 8, drawn.lengths, tile * 8,
+            tile * 8 + 8) ? 0 : 1;
+      }
+      t.checkExpect(crossed >= 4 && crossed < 20, true);
+      t.checkExpect(drawn.redraw(sink), crossed);
+    }
+    int[] image = new int[34 * 30];
+    for (int y = 0; y < 30; y += 1) {
+      for (int tx = 0; tx < 5; tx += 1) {
+        int tile = (y / 8) * 5 + tx;
+        System.arraycopy(tiles.get(tile), (y % 8) * 8, image, y * 34 + drawn.left(y, tx),
+            rows.get(tile)[y % 8]);
+      }
+    }
+    t.checkExpect(Arrays.equals(image, drawn.toArgb()), true);
+
+    // tiles can empty out, down to a single column
+    int[] small = FlatSeamCarver.pack(new SeamBenchmark().generate("stripes", 12, 9));
+    FlatSeamCarver narrow = new FlatSeamCarver(small.clone(), 12, 9, EnergyKernels.scalar());
+    TiledSeamCarver tiny = new TiledSeamCarver(small, 12, 9, 4);
+    for (int seam = 0; seam < 11; seam += 1) {
+      same = same && Arrays.equals(Arrays.copyOf(narrow.carve(true), 9),
+          Arrays.copyOf(tiny.carve(), 9));
+    }
+    t.checkExpect(same, true);
+    t.checkExpect(Arrays.equals(tiny.toArgb(), narrow.toArgb()), true);
+    t.checkExpect(this.failure(() -> tiny.carve()), "The image has no seam left to carve");
+    t.checkExpect(this.failure(() -> new TiledSeamCarver(small, 12, 9, 0)),
+        "Tiles must have at least one pixel: 0");
+    // the tile of a column skips the tiles that emptied out
+    int occupied = 0;
+    while (tiny.lengths[occupied * 4] == 0) {
+      occupied += 1;
+    }
+    t.checkExpect(tiny.tileAt(0, 0), occupied);
+    t.checkExpect(tiny.left(0, occupied), 0);
+    t.checkExpect(tiny.left(0, 3), 1);
+  }
+
+  void testTileRenderer(Tester t) {
+    // the renderer draws the image from the tiles it was handed, rebuilding only those
+    TiledSeamCarver carver = new TiledSeamCarver(FlatSeamCarver.pack(new SeamBenchmark()
+        .generate("disks", 40, 30)), 40, 30, 8);
+    TileRenderer renderer = new TileRenderer(carver);
+    t.checkExpect(carver.redraw(renderer), 20);
+    t.checkExpect(Arrays.equals(renderer.toArgb(), carver.toArgb()), true);
+    boolean kept = true;
+    for (int seam = 0; seam < 5; seam += 1) {
+      WorldImage[] rows = renderer.rows.clone();
+      carver.carve();
+      boolean[] dirty = carver.dirty.clone();
+      carver.redraw(renderer);
+      for (int line = 0; line < rows.length; line += 1) {
+        // a dirty tile's rows are rebuilt, unless they lie below the image
+        kept = kept && (dirty[line / 8] ? renderer.lengths[line] == 0
+            || rows[line] != renderer.rows[line] : rows[line] == renderer.rows[line]);
+      }
+    }
+    t.checkExpect(kept, true);
+    t.checkExpect(Arrays.equals(renderer.toArgb(), carver.toArgb()), true);
+    t.checkExpect(renderer.scene().width, 40);
+
+    // the animation carves a seam per tick down to one column, and draws the tiles
+    TiledCarving carving = new TiledCarving(FlatSeamCarver.pack(new SeamBenchmark()
+        .generate("stripes", 6, 5)), 6, 5);
+    for (int tick = 0; tick < 7; tick += 1) {
+      carving.onTick();
+    }
+    t.checkExpect(carving.carver.width, 1);
+    t.checkExpect(Arrays.equals(carving.renderer.toArgb(), carving.carver.toArgb()), true);
+    t.checkExpect(carving.makeScene().height, 5);
+  }
+
+  void testRegionCarver(Tester t) {
+    int[] image = FlatSeamCarver.pack(new SeamBenchmark().generate("disks", 40, 30));
+    // a window of every row carves like frozen columns, and closes the image around it
+    RegionCarver gap = new RegionCarver(image.clone(), 40, 30, 8, 0, 20, 30);
+    FlatSeamCarver frozen = new FlatSeamCarver(image.clone(), 40, 30, EnergyKernels.get());
+    frozen.freezeColumns(8, 12);
+    for (int i = 0; i < 6; i += 1) {
+      // paths are in the coordinates of the window
+      int[] path = Arrays.copyOf(gap.carve(true), 30);
+      for (int y = 0; y < 30; y += 1) {
+        path[y] += 8;
+      }
+      t.checkExpect(path, Arrays.copyOf(frozen.carve(true), 30));
+    }
+    t.checkExpect(gap.width, 34);
+    t.checkExpect(Arrays.equals(gap.toArgb(), frozen.toArgb()), true);
+
+    // the whole image carves like the flat carver
+    RegionCarver whole = new RegionCarver(image.clone(), 40, 30, 0, 0, 40, 30);
+    FlatSeamCarver flat = new FlatSeamCarver(image.clone(), 40, 30, EnergyKernels.get());
+    for (int i = 0; i < 6; i += 1) {
+      whole.carve(i % 2 == 0);
+      flat.carve(i % 2 == 0);
+    }
+    t.checkExpect(whole.height, 27);
+    t.checkExpect(Arrays.equals(whole.toArgb(), flat.toArgb()), true);
+
+    // a band of every column loses rows, and the rows around it are kept
+    RegionCarver band = new RegionCarver(image.clone(), 40, 30, 0, 5, 40, 10);
+    for (int i = 0; i < 3; i += 1) {
+      band.carve(false);
+    }
+    int[] banded = band.toArgb();
+    t.checkExpect(band.height, 27);
+    t.checkExpect(Arrays.copyOf(banded, 5 * 40), Arrays.copyOf(image, 5 * 40));
+    t.checkExpect(Arrays.copyOfRange(banded, 12 * 40, 27 * 40),
+        Arrays.copyOfRange(image, 15 * 40, 30 * 40));
+
+    // any other window keeps the image size and leaves the carved cells transparent
+    RegionCarver window = new RegionCarver(image.clone(), 40, 30, 10, 10, 15, 12);
+    for (int i = 0; i < 4; i += 1) {
+      window.carve(true);
+    }
+    window.carve(false);
+    int[] stitched = window.toArgb();
+    int changed = 0;
+    int transparent = 0;
+    for (int y = 0; y < 30; y += 1) {
+      for (int x = 0; x < 40; x += 1) {
+        boolean inside = x >= 10 && x < 25 && y >= 10 && y < 22;
+        changed += (!inside && stitched[y * 40 + x] != image[y * 40 + x]) ? 1 : 0;
+        transparent += (inside && stitched[y * 40 + x] == 0) ? 1 : 0;
+      }
+    }
+    t.checkExpect(window.width, 40);
+    t.checkExpect(window.height, 30);
+    t.checkExpect(changed, 0);
+    t.checkExpect(transparent, 15 * 12 - 11 * 11);
+
+    t.checkExpect(this.failure(() -> new RegionCarver(image, 40, 30, 30, 0, 11, 30)),
+        "The window 11x30 at (30, 0) does not fit in a 40x30 image");
+    RegionCarver thin = new RegionCarver(image, 40, 30, 0, 0, 2, 30);
+    thin.carve(true);
+    t.checkException(new IllegalStateException("The window has no seam left to carve"), thin,
+        "carve", true);
+  }
+
+  void testSplitPath(Tester t) {
     Utils utils = Utils.getInstance();
-    if (this.removeVert) {
-      this.badSeam = utils.getSmallestSeam(utils.seamify(this.pixels, this.removeVert));
+    Random random = new Random(3);
+    IEnergyKernel kernel = EnergyKernels.get();
+    // tall planes go through several levels of splits; energies of 0 to 2 make many ties
+    int[][] sizes = { { 37, 1100 }, { 5, 258 }, { 1, 600 }, { 2, 3 } };
+    for (int[] size : sizes) {
+      int w = size[0];
+      int h = size[1];
+      for (int ties = 0; ties < 2; ties += 1) {
+        double[] energies = new double[w * h];
+        for (int i = 0; i < energies.length; i += 1) {
+          energies[i] = (ties == 1) ? random.nextInt(3) : random.nextDouble();
+        }
+        SeamWorkspace table = new SeamWorkspace();
+        table.reservePath(w, h, false);
+        utils.tablePath(energies, w, h, kernel, table);
+        SeamWorkspace split = new SeamWorkspace();
+        split.reservePath(w, h, true);
+        utils.splitPath(energies, w, h, kernel, split);
+        t.checkExpect(Arrays.copyOf(split.path, h), Arrays.copyOf(table.path, h));
+        t.checkExpect(Arrays.copyOfRange(split.ends, 1, w + 1),
+            Arrays.copyOfRange(table.ends, 1, w + 1));
+      }
     }
-    else {
-      this.pixels = utils.transpose(this.pixels);
-      this.badSeam = utils.getSmallestSeam(utils.seamify(this.pixels, this.removeVert));
-      this.pixels = utils.transpose(this.pixels);
+    SeamWorkspace split = new SeamWorkspace();
+    split.reservePath(600, 400, true);
+    t.checkExpect(split.parents.length, Utils.SPLIT_PATH_ROWS * 600);
+    t.checkExpect(Utils.splitsPath(4096, 4096), false);
+    t.checkExpect(Utils.splitsPath(4097, 4096), true);
+  }
+
+  void testAutoTarget(Tester t) {
+    SeamCostHistogram histogram = new SeamCostHistogram();
+    for (int i = 1; i <= 100; i += 1) {
+      histogram.record(i);
     }
-    if (this.badSeam != null) {
-      this.badSeam.paintRed();
+    t.checkExpect(histogram.count, 100L);
+    t.checkExpect(Math.abs(histogram.percentile(50) - 50) <= 50 / 16.0, true);
+    t.checkExpect(histogram.percentile(100), 100.0);
+    t.checkExpect(histogram.percentile(0) <= 1 + 1 / 16.0, true);
+    t.checkExpect(histogram.curve().length, 100);
+    t.checkExpect(histogram.curve()[9], 10.0);
+    histogram.record(0);
+    histogram.record(1e300);
+    t.checkExpect(histogram.percentile(0), 0.0);
+    t.checkExpect(histogram.percentile(100), 1e300);
+    t.checkExpect(this.failure(() -> {
+      histogram.record(-1);
+      return null;
+    }), "Seam costs must be finite and not negative: -1.0");
+    t.checkExpect(this.failure(() -> new SeamCostHistogram().percentile(50)),
+        "No seam costs recorded");
+    t.checkExpect(this.failure(() -> new AutoTarget("150%")),
+        "Percentiles go from 0 to 100: 150%");
+    t.checkExpect(this.failure(() -> new AutoTarget("-1")),
+        "Seam cost targets cannot be negative: -1");
+    t.checkExpect(this.failure(() -> new AutoTarget("50%").stops(1, 1)),
+        "The percentile target is not resolved yet");
+
+    // the flat carver stops before the first seam above the median of the uncarved image, and
+    // the seams before it are those carve removes
+    int[] argb = FlatSeamCarver.pack(new SeamBenchmark().generate("disks", 40, 30));
+    FlatSeamCarver carver = new FlatSeamCarver(argb.clone(), 40, 30, EnergyKernels.get());
+    AutoTarget target = new AutoTarget("50%");
+    while (carver.carveUnless(true, target) != null) {
+      t.checkExpect(carver.width > 1, true);
+    }
+    int carved = (int) carver.seamCosts.count;
+    t.checkExpect(carved > 0 && carved < 39, true);
+    t.checkExpect(carver.width, 40 - carved);
+    t.checkExpect(carver.findSeam(true) / 30 > target.threshold, true);
+    t.checkExpect(carver.seamCosts.max <= target.threshold, true);
+    FlatSeamCarver fixed = new FlatSeamCarver(argb.clone(), 40, 30, EnergyKernels.get());
+    for (int i = 0; i < carved; i += 1) {
+      fixed.carve(true);
+    }
+    t.checkExpect(Arrays.equals(fixed.toArgb(), carver.toArgb()), true);
+    t.checkExpect(fixed.seamCosts.curve(), carver.seamCosts.curve());
+
+    // the animation records the seams it removes and checks the ones it is about to remove
+    Utils utils = Utils.getInstance();
+    SeamCarving carving = new SeamCarving(utils.constructPixelGraph(
+        new SeamBenchmark().generate("noise", 30, 20)));
+    carving.isPlaying = false;
+    carving.onKeyEvent("v");
+    carving.onTick();
+    t.checkExpect(carving.seamCosts.count, 1L);
+    ASeamInfo next = utils.getSmallestSeam(utils.seamify(carving.pixels, true));
+    carving.stopWhen(new AutoTarget("100%"));
+    t.checkExpect(carving.reachesTarget(next), false);
+    t.checkExpect(carving.autoTarget.resolved(), true);
+    carving.stopWhen(new AutoTarget("0"));
+    t.checkExpect(carving.reachesTarget(next), true);
+
+    // a percentile target is resolved from the seams ending at every column, so the median
+    // lies below the most expensive of them and lets the cheap seams through
+    AutoTarget full = new AutoTarget("100%");
+    carving.stopWhen(full);
+    carving.reachesTarget(next);
+    AutoTarget half = new AutoTarget("50%");
+    carving.stopWhen(half);
+    carving.reachesTarget(next);
+    t.checkExpect(half.threshold < full.threshold, true);
+    SeamWorkspace ws = new SeamWorkspace();
+    utils.seamify(carving.pixels, true, ws);
+    double worst = 0;
+    for (int x = 1; x <= carving.pixels.get(0).size(); x += 1) {
+      worst = Math.max(worst, ws.ends[x]);
+    }
+    t.checkInexact(full.threshold, worst / carving.pixels.size(), 0.000001);
+    int passed = 0;
+    ASeamInfo seam = next;
+    while (passed < 20 && !carving.reachesTarget(seam)) {
+      seam.removeFrom(carving.pixels);
+      passed += 1;
+      seam = utils.getSmallestSeam(utils.seamify(carving.pixels, true));
+    }
+    t.checkExpect(passed > 1, true);
+
+    // horizontal seams resolve against the seams ending at every row
+    ASeamInfo across = utils.seamifyAcross(carving.pixels, false, ws).get(0);
+    worst = 0;
+    for (int y = 1; y <= carving.pixels.size(); y += 1) {
+      worst = Math.max(worst, ws.ends[y]);
     }
+    AutoTarget rows = new AutoTarget("100%");
+    carving.stopWhen(rows);
+    t.checkExpect(carving.reachesTarget(across), false);
+    t.checkInexact(rows.threshold, worst / carving.pixels.get(0).size(), 0.000001);
   }
 
-  // removes current bad seam from this list of pixels
-  void removeBadSeam() {
+  void testSeamCache(Tester t) {
+    int[] argb = FlatSeamCarver.pack(new SeamBenchmark().generate("disks", 40, 30));
+    int[] other = FlatSeamCarver.pack(new SeamBenchmark().generate("noise", 40, 30));
+    FlatSeamCarver plain = new FlatSeamCarver(argb.clone(), 40, 30, EnergyKernels.get());
+    for (int seam = 0; seam < 10; seam += 1) {
+      plain.carve(seam % 2 == 0);
+    }
+    try {
+      Path dir = Files.createTempDirectory("seamcache");
+      SeamCache cache = new SeamCache(dir);
+
+      // the first carve misses and carves, the second replays the same seams
+      FlatSeamCarver cold = new FlatSeamCarver(argb.clone(), 40, 30, EnergyKernels.get());
+      t.checkExpect(cache.carve(cold, 10, "both"), 10);
+      t.checkExpect(cache.misses.get(), 1L);
+      t.checkExpect(cache.hits.get(), 0L);
+      t.checkExpect(Arrays.equals(cold.toArgb(), plain.toArgb()), true);
+      FlatSeamCarver warm = new FlatSeamCarver(argb.clone(), 40, 30, EnergyKernels.get());
+      t.checkExpect(cache.carve(warm, 10, "both"), 10);
+      t.checkExpect(cache.hits.get(), 1L);
+      t.checkExpect(warm.width, 35);
+      t.checkExpect(warm.height, 25);
+      t.checkExpect(Arrays.equals(warm.toArgb(), plain.toArgb()), true);
+      t.checkExpect(warm.totalWeight, plain.totalWeight);
+      t.checkExpect(warm.seamCosts.curve(), plain.seamCosts.curve());
+
+      // the entry holds the seams in order, in about a byte per pixel of each
+      FlatSeamCarver fresh = new FlatSeamCarver(argb.clone(), 40, 30, EnergyKernels.get());
+      SeamCacheEntry entry = cache.entry(fresh, "both");
+      t.checkExpect(entry.seams, 10);
+      t.checkExpect(entry.width, 40);
+      t.checkExpect(Files.size(dir.resolve(SeamCache.key(fresh, "both") + SeamCache.SUFFIX))
+          < SeamCache.HEADER_BYTES + 10 * (13 + 39), true);
+      t.checkExpect(entry.vertical[0] && !entry.vertical[1], true);
+      t.checkExpect(entry.paths.get(0).length, 30);
+      t.checkExpect(entry.paths.get(1).length, 39);
+
+      // fewer seams are a hit, more seams are a miss that replays the entry and extends it
+      t.checkExpect(cache.carve(fresh, 4, "both"), 4);
+      t.checkExpect(cache.hits.get(), 2L);
+      for (int seam = 10; seam < 14; seam += 1) {
+        plain.carve(seam % 2 == 0);
+      }
+      FlatSeamCarver longer = new FlatSeamCarver(argb.clone(), 40, 30, EnergyKernels.get());
+      t.checkExpect(cache.carve(longer, 14, "both"), 14);
+      t.checkExpect(cache.misses.get(), 2L);
+      t.checkExpect(Arrays.equals(longer.toArgb(), plain.toArgb()), true);
+      t.checkExpect(cache.entry(new FlatSeamCarver(argb.clone(), 40, 30, EnergyKernels.get()),
+          "both").seams, 14);
+
+      // an exhausted image is a hit however many seams are asked for
+      t.checkExpect(cache.carve(new FlatSeamCarver(argb.clone(), 40, 30,
+          EnergyKernels.get()), 50, "v"), 39);
+      t.checkExpect(cache.carve(new FlatSeamCarver(argb.clone(), 40, 30,
+          EnergyKernels.get()), 50, "v"), 39);
+      t.checkExpect(cache.hits.get(), 3L);
+      t.checkExpect(cache.misses.get(), 3L);
+
+      // the key changes with the pixels, the energy function and the directions
+      fresh = new FlatSeamCarver(argb.clone(), 40, 30, EnergyKernels.get());
+      String key = SeamCache.key(fresh, "both");
+      t.checkExpect(key.length(), 64);
+      t.checkExpect(SeamCache.key(new FlatSeamCarver(argb.clone(), 40, 30,
+          EnergyKernels.get()), "both"), key);
+      t.checkExpect(SeamCache.key(fresh, "v").equals(key), false);
+      t.checkExpect(SeamCache.key(new FlatSeamCarver(other.clone(), 40, 30,
+          EnergyKernels.get()), "both").equals(key), false);
+      t.checkExpect(SeamCache.key(new FlatSeamCarver(argb.clone(), 40, 30,
+          new LocalVarianceEnergy(3)), "both").equals(key), false);
+
+      // a corrupt entry is deleted and counts as a miss
+      Path file = dir.resolve(key + SeamCache.SUFFIX);
+      Files.write(file, new byte[] { 1, 2, 3 });
+      t.checkExpect(cache.entry(fresh, "both"), null);
+      t.checkExpect(Files.exists(file), false);
+      Files.write(file, new byte[] { 1, 2, 3 });
+      FlatSeamCarver repaired = new FlatSeamCarver(argb.clone(), 40, 30, EnergyKernels.get());
+      t.checkExpect(cache.carve(repaired, 14, "both"), 14);
+      t.checkExpect(cache.misses.get(), 4L);
+      t.checkExpect(Arrays.equals(repaired.toArgb(), plain.toArgb()), true);
+
+      // the least recently used entries go first once the directory outgrows the bound
+      long bytes = Files.size(dir.resolve(SeamCache.key(fresh, "v") + SeamCache.SUFFIX));
+      Path small = Files.createTempDirectory("seamcache");
+      SeamCache bounded = new SeamCache(small, bytes * 5 / 2);
+      int[][] images = { argb, other, FlatSeamCarver.pack(new SeamBenchmark().generate(
+          "stripes", 40, 30)) };
+      Path[] files = new Path[images.length];
+      for (int i = 0; i < images.length; i += 1) {
+        FlatSeamCarver carver = new FlatSeamCarver(images[i].clone(), 40, 30,
+            EnergyKernels.get());
+        files[i] = small.resolve(SeamCache.key(carver, "v") + SeamCache.SUFFIX);
+        if (i == 2) {
+          // the first image is used again after the second
+          Files.setLastModifiedTime(files[0], FileTime.fromMillis(1000));
+          Files.setLastModifiedTime(files[1], FileTime.fromMillis(2000));
+          bounded.carve(new FlatSeamCarver(argb.clone(), 40, 30, EnergyKernels.get()), 39,
+              "v");
+        }
+        bounded.carve(carver, 39, "v");
+      }
+      t.checkExpect(bounded.evictions.get(), 1L);
+      t.checkExpect(Files.exists(files[0]), true);
+      t.checkExpect(Files.exists(files[1]), false);
+      t.checkExpect(Files.exists(files[2]), true);
+
+      // a temporary file a crashed writer left behind is deleted once it is stale, and one
+      // still being written counts toward the bound
+      Path crashed = Files.createTempFile(small, "crashed", SeamCache.TEMPORARY_SUFFIX);
+      Files.setLastModifiedTime(crashed, FileTime.fromMillis(1000));
+      Path writing = Files.createTempFile(small, "writing", SeamCache.TEMPORARY_SUFFIX);
+      Files.write(writing, new byte[(int) bytes]);
+      // the first image was used before the third was written, whatever the clock's resolution
+      Files.setLastModifiedTime(files[0], FileTime.fromMillis(3000));
+      Files.setLastModifiedTime(files[2], FileTime.fromMillis(4000));
+      bounded.evict();
+      t.checkExpect(Files.exists(crashed), false);
+      t.checkExpect(Files.exists(writing), true);
+      t.checkExpect(bounded.evictions.get(), 3L);
+      t.checkExpect(Files.exists(files[0]), false);
+      t.checkExpect(Files.exists(files[2]), true);
+
+      for (Path root : new Path[] { dir, small }) {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+          for (Path path : entries) {
+            Files.delete(path);
+          }
+        }
+        Files.delete(root);
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    t.checkExpect(this.failure(() -> new SeamCache(Paths.get("."), 0)),
+        "The cache size bound must be positive");
+    t.checkExpect(this.failure(() -> SeamCache.key(plain, "d")),
+        "Seam directions are v, h or both: d");
+    // the energy of a window depends on the pixels around it, which the key does not cover
+    t.checkExpect(this.failure(() -> SeamCache.key(new RegionCarver(argb.clone(), 40, 30, 0, 0,
+        20, 15).window, "v")), "The energy cannot be cached: WindowSobelEnergy");
+  }
+
+  void testCheckpoint(Tester t) {
     Utils utils = Utils.getInstance();
-    if (this.removeVert) {
-      this.badSeam.removeSelf(this.pixels, this.pixels.size() - 1);
+    Color[][] colors = new SeamBenchmark().generate("disks", 24, 16);
+    SeamCarving carving = new SeamCarving(utils.constructPixelGraph(colors));
+    carving.isPlaying = false;
+    Path file;
+    try {
+      file = Files.createTempFile("seamcarve", ".ckpt");
+      carving.checkpointEvery(3, file);
+      for (String key : new String[] { "v", "h", "v", "v", "h", "h" }) {
+        carving.onKeyEvent(key);
+        carving.onTick();
+      }
+      t.checkExpect(Files.size(file) > 0, true);
+      carving.onKeyEvent("2");
+      carving.pixels.get(5).get(5).energy();
+      new CarveCheckpoint().write(carving, file);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
-    else {
-      this.pixels = utils.transpose(this.pixels);
-      this.badSeam.removeSelf(this.pixels, this.pixels.size() - 1);
-      this.pixels = utils.transpose(this.pixels);
 
+    SeamCarving resumed;
+    try {
+      resumed = new CarveCheckpoint().resume(file);
     }
-    this.history.add(this.badSeam);
-    this.badSeam = null;
-    if (!utils.verifyPixelGraph(this.pixels)) {
-      throw new IllegalStateException("Pixel Image is Ill-Formed");
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    t.checkExpect(resumed.width, 24);
+    t.checkExpect(resumed.history.size(), 6);
+    t.checkExpect(resumed.colorMode, 2);
+    t.checkExpect(resumed.isPlaying, false);
+    t.checkExpect(resumed.removeVert, false);
+    t.checkExpect(resumed.pixels.get(5).get(5).energyCache,
+        carving.pixels.get(5).get(5).energyCache);
+    t.checkExpect(Arrays.equals(resumed.publish().toArgb(), carving.publish().toArgb()), true);
+    t.checkExpect(utils.verifyPixelGraph(resumed.pixels), true);
+    // both undo the same seams back to the original image
+    for (SeamCarving c : Arrays.asList(carving, resumed)) {
+      c.isReversed = true;
+      for (int i = 0; i < 6; i += 1) {
+        c.insertSeam();
+        c.insertBadSeam();
+      }
+      t.checkExpect(utils.verifyPixelGraph(c.pixels), true);
+      t.checkExpect(c.pixels.size(), 16);
+      t.checkExpect(c.pixels.get(7).get(9).color, colors[7][9]);
+      t.checkExpect(c.pixels.get(15).get(23).color, colors[15][23]);
+    }
+    t.checkExpect(Arrays.equals(resumed.publish().toArgb(), carving.publish().toArgb()), true);
+
+    try {
+      Files.write(file, new byte[] { 1, 2, 3 });
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
+    t.checkException(new IOException("Not a seam carving checkpoint: " + file),
+        new CarveCheckpoint(), "resume", file);
+    t.checkException(new IllegalArgumentException("Checkpoint interval must be positive"),
+        carving, "checkpointEvery", 0, file);
   }
-}
 
-// runs tests and big bang example
-class ExamplesPixels {
-  FromFileImage testImage1 = new FromFileImage("balloons.jpg");
-  SeamCarving sc1 = new SeamCarving(testImage1);
+  void testBandedSeamCarver(Tester t) {
+    int[] argb = FlatSeamCarver.pack(new SeamBenchmark().generate("disks", 40, 30));
+    FlatSeamCarver flat = new FlatSeamCarver(argb.clone(), 40, 30, EnergyKernels.get());
+    try (BandedSeamCarver banded = new BandedSeamCarver(BandedSeamCarver.spill(argb, 40, 30),
+        40, 30, EnergyKernels.get(), 7)) {
+      for (int i = 0; i < 12; i += 1) {
+        flat.carve(true);
+        t.checkExpect(banded.carve(), Arrays.copyOf(flat.workspace.path, 30));
+        if (i == 5) {
+          t.checkExpect(Arrays.equals(banded.toArgb(), flat.toArgb()), true);
+        }
+      }
+      t.checkExpect(Arrays.equals(banded.toArgb(), flat.toArgb()), true);
+      t.checkInexact(banded.totalWeight, flat.totalWeight, 0.000000001);
+      t.checkExpect(banded.width, 28);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
 
-  void testData(Tester t) {
-    sc1.bigBang((int) testImage1.getWidth(), (int) testImage1.getHeight(), 0.01);
+  void testEnginePlanner(Tester t) {
+    long thumbnail = CarveEngine.GRAPH.footprint(64, 64);
+    EnginePlanner planner = new EnginePlanner(thumbnail);
+    t.checkExpect(planner.choose(64, 64, false, thumbnail), CarveEngine.FLAT);
+    t.checkExpect(planner.choose(64, 64, true, thumbnail), CarveEngine.GRAPH);
+    t.checkExpect(planner.choose(64, 64, true, thumbnail - 1), null);
+    t.checkExpect(planner.choose(20000, 10000, false, 1L << 30), CarveEngine.BANDED);
+    t.checkExpect(planner.choose(2000, 1500, false, 1L << 30), CarveEngine.FLAT);
+    t.checkException(new IllegalArgumentException("A 128x128 image does not fit in " + thumbnail
+        + " bytes with any undoable engine"), planner, "acquire", 128, 128, true);
+    // the banded engine only carves vertical seams
+    t.checkExpect(planner.choose(20000, 10000, false, "h", 1L << 30), null);
+    t.checkExpect(planner.choose(20000, 10000, false, "both", 1L << 30), null);
+    t.checkExpect(planner.choose(2000, 1500, false, "both", 1L << 30), CarveEngine.FLAT);
+    t.checkExpect(new EnginePlanner(1L << 30).tryAcquire(20000, 10000, false, "h"), null);
+    t.checkExpect(this.failure(() -> new EnginePlanner(1L << 30).require(20000, 10000, false,
+        "both")), "A 20000x10000 image does not fit in " + (1L << 30)
+            + " bytes with any engine carving both seams");
+
+    EnginePlan first = planner.tryAcquire(64, 64, false);
+    t.checkExpect(first.engine, CarveEngine.FLAT);
+    // the graph of a second thumbnail only fits once the first job is done
+    t.checkExpect(planner.tryAcquire(64, 64, true), null);
+    CompletableFuture<EnginePlan> second = CompletableFuture.supplyAsync(() -> {
+      try {
+        return planner.acquire(64, 64, true);
+      }
+      catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    while (planner.waiting.isEmpty()) {
+      Thread.onSpinWait();
+    }
+    t.checkExpect(planner.tryAcquire(8, 8, false), null);
+    t.checkExpect(second.isDone(), false);
+    planner.release(first);
+    t.checkExpect(second.join().engine, CarveEngine.GRAPH);
+    t.checkExpect(planner.running, 1);
+    planner.release(second.join());
+    t.checkExpect(planner.reserved, 0L);
+
+    // the command-line tools carve with the banded engine when the planes of the flat one do
+    // not fit, and remove the same seams
+    int[] argb = FlatSeamCarver.pack(new SeamBenchmark().generate("disks", 60, 40));
+    FlatSeamCarver flat = new FlatSeamCarver(argb.clone(), 60, 40, EnergyKernels.get());
+    for (int seam = 0; seam < 5; seam += 1) {
+      flat.carve(true);
+    }
+    EnginePlanner tight = new EnginePlanner(CarveEngine.BANDED.footprint(60, 40));
+    t.checkExpect(tight.require(60, 40, false, "v"), CarveEngine.BANDED);
+    try {
+      File dir = Files.createTempDirectory("seamcarve").toFile();
+      String ppm = new File(dir, "in.ppm").getPath();
+      RawImage.write(Paths.get(ppm), argb, 60, 40);
+      String carved = new File(dir, "out.ppm").getPath();
+      HeadlessCarve.run(new String[] { ppm, carved, "5" }, tight);
+      t.checkExpect(Arrays.equals(RawImage.open(Paths.get(carved)).toArgb(), flat.toArgb()),
+          true);
+      String png = new File(dir, "in.png").getPath();
+      ImageDirectorySink.write(new File(png), "png", argb, 60, 40);
+      String exported = new File(dir, "out.png").getPath();
+      CarveExport.run(new String[] { png, exported, "5" }, tight);
+      BufferedImage image = ImageIO.read(new File(exported));
+      t.checkExpect(Arrays.equals(image.getRGB(0, 0, 55, 40, null, 0, 55), flat.toArgb()),
+          true);
+      t.checkExpect(this.failure(() -> {
+        HeadlessCarve.run(new String[] { ppm, carved, "5", "h" }, tight);
+        return null;
+      }), "A 60x40 image does not fit in " + tight.budget
+          + " bytes with any engine carving h seams");
+      t.checkExpect(this.failure(() -> {
+        CarveExport.run(new String[] { png, exported, "5", "--curve", "curve.csv" }, tight);
+        return null;
+      }), "A 60x40 image only fits the banded engine, which carves without --auto, --curve, "
+          + "--cache or frames");
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  void testFrameSinks(Tester t) {
+    // a slow sink never has more than the buffered frames waiting for it
+    ArrayList<Integer> widths = new ArrayList<>();
+    boolean[] daemon = new boolean[1];
+    AsyncFrameSink async = new AsyncFrameSink((argb, w, h) -> {
+      daemon[0] = Thread.currentThread().isDaemon();
+      try {
+        Thread.sleep(1);
+      }
+      catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      widths.add(w);
+    }, 2);
+    int[] waiting = new int[1];
+    FlatSeamCarver carver = new FlatSeamCarver(FlatSeamCarver.pack(
+        new SeamBenchmark().generate("noise", 30, 12)), 30, 12, EnergyKernels.get());
+    try {
+      new CarveExport().carve(carver, 20, "v", (argb, w, h) -> {
+        async.accept(argb, w, h);
+        waiting[0] = Math.max(waiting[0], async.queue.size());
+      }, 3);
+      async.close();
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    t.checkExpect(widths, new ArrayList<>(Arrays.asList(30, 27, 24, 21, 18, 15, 12, 10)));
+    t.checkExpect(waiting[0] <= 2, true);
+    // an unclosed sink does not keep the program running
+    t.checkExpect(daemon[0], true);
+
+    AsyncFrameSink failing = new AsyncFrameSink((argb, w, h) -> {
+      throw new IOException("Disk full");
+    }, 1);
+    try {
+      failing.accept(new int[1], 1, 1);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    t.checkException(new IOException("Disk full"), failing, "close");
+
+    try {
+      File dir = Files.createTempDirectory("seamcarve").toFile();
+      File gif = new File(dir, "carve.gif");
+      AsyncFrameSink animation = new AsyncFrameSink(new GifAnimationSink(gif, 40), 2);
+      ImageDirectorySink numbered = new ImageDirectorySink(dir, "frame", "png", true);
+      for (int w = 12; w > 9; w -= 1) {
+        int[] argb = new int[w * 8];
+        Arrays.fill(argb, 0xFF000000 | (w * 20));
+        animation.accept(argb.clone(), w, 8);
+        numbered.accept(argb, w, 8);
+      }
+      animation.close();
+      ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+      try (ImageInputStream input = ImageIO.createImageInputStream(gif)) {
+        reader.setInput(input);
+        t.checkExpect(reader.getNumImages(true), 3);
+        t.checkExpect(reader.read(2).getWidth(), 10);
+      }
+      finally {
+        reader.dispose();
+      }
+      t.checkExpect(ImageIO.read(new File(dir, "frame-00002.png")).getRGB(0, 0),
+          0xFF000000 | 200);
+      File jpeg = new File(dir, "carved.jpg");
+      ImageDirectorySink.write(jpeg, ImageDirectorySink.formatOf(jpeg.getName()),
+          carver.toArgb(), carver.width, carver.height);
+      t.checkExpect(ImageIO.read(jpeg).getWidth(), 10);
+
+      // an invalid argument after --gif fails before the animation is opened
+      File unopened = new File(dir, "unopened.gif");
+      t.checkExpect(this.failure(() -> {
+        CarveExport.main(new String[] { jpeg.getPath(), jpeg.getPath(), "3", "--gif",
+            unopened.getPath(), "--every", "often" });
+        return null;
+      }), "For input string: \"often\"");
+      t.checkExpect(unopened.exists(), false);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  void testRawImage(Tester t) {
+    Utils utils = Utils.getInstance();
+    Color[][] colors = new SeamBenchmark().generate("disks", 21, 13);
+    int[] argb = FlatSeamCarver.pack(colors);
+    try {
+      File dir = Files.createTempDirectory("seamcarve").toFile();
+      File ppm = new File(dir, "disks.ppm");
+      new SeamConformance().writePpm(ppm, utils.constructPixelGraph(colors));
+      RawImage image = RawImage.open(ppm.toPath());
+      t.checkExpect(image.width, 21);
+      t.checkExpect(image.channels, 3);
+      t.checkExpect(Arrays.equals(image.toArgb(), argb), true);
+
+      // a PAM with a comment, 16-bit gray samples and alpha, then raw RGBA
+      ByteArrayOutputStream pam = new ByteArrayOutputStream();
+      pam.write(("P7\n# gray\nWIDTH 2\nHEIGHT 1\nDEPTH 2\nMAXVAL 65535\n"
+          + "TUPLTYPE GRAYSCALE_ALPHA\nENDHDR\n").getBytes(StandardCharsets.US_ASCII));
+      pam.write(new byte[] { (byte) 0xFF, (byte) 0xFF, 0, 0, (byte) 0x80, 0, (byte) 0xFF,
+          (byte) 0xFF });
+      Path pamFile = new File(dir, "gray.pam").toPath();
+      Files.write(pamFile, pam.toByteArray());
+      t.checkExpect(RawImage.open(pamFile).toArgb(), new int[] { 0x00FFFFFF, 0xFF808080 });
+      Path rgba = new File(dir, "pixels.rgba").toPath();
+      Files.write(rgba, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+      t.checkExpect(RawImage.openRgba(rgba, 1, 2).toArgb(),
+          new int[] { 0x04010203, 0x08050607 });
+      t.checkExpect(this.failure(() -> RawImage.openRgba(rgba, 2, 2)),
+          "The file is too short for a 2x2 image: " + rgba);
+      t.checkExpect(this.failure(() -> RawImage.load(rgba.toString(), null)),
+          "Headerless RGBA needs a size: " + rgba);
+      t.checkExpect(this.failure(() -> RawImage.open(rgba)),
+          "Not a binary PPM or PAM file: " + rgba);
+
+      // written out as a PPM, then as a PAM that keeps the alpha
+      Path written = new File(dir, "written.ppm").toPath();
+      RawImage.write(written, argb, 21, 13);
+      t.checkExpect(Arrays.equals(RawImage.open(written).toArgb(), argb), true);
+      Path alpha = new File(dir, "written.pam").toPath();
+      RawImage.write(alpha, new int[] { 0x00FFFFFF, 0xFF808080 }, 1, 2);
+      t.checkExpect(RawImage.open(alpha).toArgb(), new int[] { 0x00FFFFFF, 0xFF808080 });
+
+      // a window smaller than the image makes the rows come from several mappings, and a
+      // window smaller than a row still maps whole rows
+      int[] whole = image.toArgb();
+      RawImage windowed = image.withWindow(3 * image.rowBytes() + 1);
+      t.checkExpect(windowed.rowBytes() * windowed.height > windowed.windowBytes, true);
+      t.checkExpect(Arrays.equals(windowed.toArgb(), whole), true);
+      t.checkExpect(Arrays.equals(image.withWindow(1).toArgb(), whole), true);
+      t.checkExpect(this.failure(() -> image.withWindow(0)),
+          "The window must hold at least one byte");
+
+      // a spilled image carves like the flat one, even read through small windows
+      FlatSeamCarver flat = image.carver();
+      Path spilled = windowed.spill();
+      try (BandedSeamCarver banded = new BandedSeamCarver(spilled, 21, 13)) {
+        flat.carve(true);
+        banded.carve();
+        t.checkExpect(Arrays.equals(banded.toArgb(), flat.toArgb()), true);
+      }
+      Files.delete(spilled);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // returns the message of the exception the given call throws, or null if it returns
+  String failure(Callable<?> call) {
+    try {
+      call.call();
+      return null;
+    }
+    catch (Exception e) {
+      return e.getMessage();
+    }
+  }
+
+  void testInsertAtRecordedIndex(Tester t) {
+    Utils utils = Utils.getInstance();
+    ArrayList<PixelRow> pixels = utils.constructPixelGraph(new FromFileImage("balloons2.jpg"));
+    ArrayList<PixelRow> original = utils.copyRows(pixels);
+    Stack<ASeamInfo> removed = new Stack<>();
+    for (int i = 0; i < 12; i += 1) {
+      boolean isVert = i % 3 != 2;
+      if (!isVert) {
+        pixels = utils.transpose(pixels);
+      }
+      ASeamInfo seam = utils.getSmallestSeam(utils.seamify(pixels, isVert));
+      seam.removeSelf(pixels, pixels.size() - 1);
+      if (!isVert) {
+        pixels = utils.transpose(pixels);
+      }
+      removed.push(seam);
+    }
+    while (!removed.isEmpty()) {
+      pixels = removed.pop().insert(pixels);
+    }
+    boolean same = pixels.size() == original.size();
+    for (int y = 0; same && y < pixels.size(); y += 1) {
+      same = pixels.get(y).size() == original.get(y).size();
+      for (int x = 0; same && x < pixels.get(y).size(); x += 1) {
+        same = pixels.get(y).get(x) == original.get(y).get(x);
+      }
+    }
+    t.checkExpect(same, true);
+  }
+
+  void testHorizontalSeamsInPlace(Tester t) {
+    // splicing a horizontal seam out of the rows leaves what removing it from the transposed
+    // rows does, and putting it back restores the rows and the graph
+    Utils utils = Utils.getInstance();
+    Color[][] colors = new SeamBenchmark().generate("disks", 24, 18);
+    ArrayList<PixelRow> spliced = utils.constructPixelGraph(colors);
+    ArrayList<PixelRow> original = utils.copyRows(spliced);
+    ArrayList<PixelRow> transposed = utils.constructPixelGraph(colors);
+    Stack<ASeamInfo> removed = new Stack<>();
+    boolean same = true;
+    for (int i = 0; i < 6; i += 1) {
+      ASeamInfo seam = utils.getSmallestSeam(utils.seamify(utils.transpose(spliced), false));
+      seam.removeFrom(spliced);
+      removed.push(seam);
+      transposed = utils.transpose(transposed);
+      utils.getSmallestSeam(utils.seamify(transposed, false))
+          .removeSelf(transposed, transposed.size() - 1);
+      transposed = utils.transpose(transposed);
+      same = same && spliced.size() == transposed.size();
+      for (int y = 0; same && y < spliced.size(); y += 1) {
+        for (int x = 0; same && x < spliced.get(y).size(); x += 1) {
+          same = spliced.get(y).get(x).color.equals(transposed.get(y).get(x).color);
+        }
+      }
+    }
+    t.checkExpect(same, true);
+    t.checkExpect(spliced.size(), 12);
+    t.checkExpect(utils.verifyPixelGraph(spliced), true);
+    while (!removed.isEmpty()) {
+      spliced = removed.pop().insert(spliced);
+    }
+    t.checkExpect(utils.verifyPixelGraph(spliced), true);
+    for (int y = 0; y < spliced.size(); y += 1) {
+      for (int x = 0; x < spliced.get(y).size(); x += 1) {
+        same = same && spliced.get(y).get(x) == original.get(y).get(x);
+      }
+    }
+    t.checkExpect(same && spliced.size() == 18, true);
+
+    // the last row leaves one empty row behind, which the seam fills again
+    ArrayList<PixelRow> line = utils.constructPixelGraph(new SeamBenchmark().generate("noise",
+        5, 1));
+    PixelRow pixels = new PixelRow(line.get(0));
+    ASeamInfo last = utils.getSmallestSeam(utils.seamify(utils.transpose(line), false));
+    last.removeFrom(line);
+    t.checkExpect(line.size(), 1);
+    t.checkExpect(line.get(0).isEmpty(), true);
+    line = last.insert(line);
+    t.checkExpect(line.get(0).equals(pixels), true);
+
+    // the precomputer's copy of the rows loses the same pixels as the rows themselves
+    ArrayList<PixelRow> rows = utils.constructPixelGraph(colors);
+    ArrayList<PixelRow> copy = utils.copyRows(rows);
+    ASeamInfo seam = utils.getSmallestSeam(utils.seamify(utils.transpose(rows), false));
+    utils.removeFromRows(copy, seam);
+    seam.removeFrom(rows);
+    same = copy.size() == rows.size();
+    for (int y = 0; same && y < rows.size(); y += 1) {
+      same = copy.get(y).equals(rows.get(y));
+    }
+    t.checkExpect(same, true);
+  }
+
+  void testSeamifyAcross(Tester t) {
+    // the horizontal seam of the rows is the vertical seam of their transpose
+    Utils utils = Utils.getInstance();
+    ArrayList<PixelRow> pixels = utils.constructPixelGraph(new FromFileImage("balloons2.jpg"));
+    SeamWorkspace workspace = new SeamWorkspace();
+    for (boolean fixedPoint : new boolean[] { false, true }) {
+      ArrayList<PixelRow> transposed = utils.transpose(pixels);
+      ASeamInfo across = utils.getSmallestSeam(utils.seamifyAcross(pixels, fixedPoint,
+          workspace));
+      ASeamInfo expected = utils.getSmallestSeam(fixedPoint
+          ? utils.seamifyFixedPoint(transposed, false) : utils.seamify(transposed, false));
+      boolean same = across.totalWeight == expected.totalWeight;
+      for (ASeamInfo s = across, e = expected; s != null || e != null; s = s.cameFrom,
+          e = e.cameFrom) {
+        same = same && s != null && e != null && s.index == e.index && s.pixel == e.pixel;
+      }
+      t.checkExpect(same && !across.isVertical(), true);
+    }
+
+    // once the workspace fits the image, finding a horizontal seam allocates the seam and the
+    // row of its pixels, but no plane
+    int w = pixels.get(0).size();
+    int h = pixels.size();
+    ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long id = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(id);
+    utils.seamifyAcross(pixels, false, workspace);
+    t.checkExpect(threads.getThreadAllocatedBytes(id) - before < (long) w * h * 4, true);
+
+    // the animation finds and removes horizontal seams without transposing its rows
+    SeamCarving carving = new SeamCarving(pixels);
+    ArrayList<PixelRow> rows = carving.pixels;
+    PixelRow first = rows.get(0);
+    carving.removeVert = false;
+    carving.seamCarve();
+    t.checkExpect(carving.badSeam.isVertical(), false);
+    carving.removeBadSeam();
+    t.checkExpect(carving.pixels == rows && rows.get(0) == first, true);
+    t.checkExpect(rows.size(), h - 1);
+    t.checkExpect(utils.verifyPixelGraph(rows), true);
   }
 
   // ArrayList<ArrayList<Pixel>> testerImage;
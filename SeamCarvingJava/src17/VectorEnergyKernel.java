@@ -0,0 +1,106 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+// represents the SIMD kernel built on the JDK 17+ Vector API
+// Every lane performs exactly the operations of ScalarEnergyKernel in the same order, and
+// the leftover columns of each row are computed one at a time.
+class VectorEnergyKernel implements IEnergyKernel {
+
+  static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+  static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED
+      .withShape(VectorShape.forBitSize(DOUBLES.length() * Integer.SIZE));
+
+  private final IntVector lanes = IntVector.zero(INTS).addIndex(1);
+
+  // computes the energy of every pixel from the given padded brightness plane
+  public void energies(double[] brightness, int w, int h, double[] out) {
+    this.energies(brightness, w, h, out, 0);
+  }
+
+  // computes the energy of every pixel from the given padded brightness plane into the given
+  // buffer from the given index on
+  public void energies(double[] brightness, int w, int h, double[] out, int offset) {
+    int stride = w + 2;
+    int bound = DOUBLES.loopBound(w);
+    for (int y = 0; y < h; y += 1) {
+      int center = (y + 1) * stride + 1;
+      int x = 0;
+      for (; x < bound; x += DOUBLES.length()) {
+        int i = center + x;
+        DoubleVector upLeft = DoubleVector.fromArray(DOUBLES, brightness, i - stride - 1);
+        DoubleVector up = DoubleVector.fromArray(DOUBLES, brightness, i - stride);
+        DoubleVector upRight = DoubleVector.fromArray(DOUBLES, brightness, i - stride + 1);
+        DoubleVector left = DoubleVector.fromArray(DOUBLES, brightness, i - 1);
+        DoubleVector right = DoubleVector.fromArray(DOUBLES, brightness, i + 1);
+        DoubleVector downLeft = DoubleVector.fromArray(DOUBLES, brightness, i + stride - 1);
+        DoubleVector down = DoubleVector.fromArray(DOUBLES, brightness, i + stride);
+        DoubleVector downRight = DoubleVector.fromArray(DOUBLES, brightness, i + stride + 1);
+        DoubleVector horiz = upLeft.add(left.mul(2)).add(downLeft)
+            .sub(upRight.add(right.mul(2)).add(downRight));
+        DoubleVector vert = upLeft.add(up.mul(2)).add(upRight)
+            .sub(downLeft.add(down.mul(2)).add(downRight));
+        horiz.mul(horiz).add(vert.mul(vert)).sqrt().intoArray(out, offset + y * w + x);
+      }
+      for (; x < w; x += 1) {
+        this.energyAt(brightness, stride, center + x, out, offset + y * w + x);
+      }
+    }
+  }
+
+  // computes the energy of the single pixel at the given plane index
+  private void energyAt(double[] brightness, int stride, int i, double[] out, int at) {
+    double horiz = brightness[i - stride - 1] + 2 * brightness[i - 1]
+        + brightness[i + stride - 1] - (brightness[i - stride + 1] + 2 * brightness[i + 1]
+            + brightness[i + stride + 1]);
+    double vert = brightness[i - stride - 1] + 2 * brightness[i - stride]
+        + brightness[i - stride + 1] - (brightness[i + stride - 1] + 2 * brightness[i + stride]
+            + brightness[i + stride + 1]);
+    out[at] = Math.sqrt(horiz * horiz + vert * vert);
+  }
+
+  // computes one DP row, preferring the pixel straight above, then top-left, then top-right
+  public void minPlusAdd(double[] prev, double[] energy, int offset, double[] next, int[] parents,
+      int w) {
+    int bound = DOUBLES.loopBound(w);
+    int x = 0;
+    for (; x < bound; x += DOUBLES.length()) {
+      DoubleVector topLeft = DoubleVector.fromArray(DOUBLES, prev, x);
+      DoubleVector top = DoubleVector.fromArray(DOUBLES, prev, x + 1);
+      DoubleVector topRight = DoubleVector.fromArray(DOUBLES, prev, x + 2);
+      VectorMask<Double> takeLeft = topLeft.lt(top);
+      DoubleVector min = top.blend(topLeft, takeLeft);
+      VectorMask<Double> takeRight = topRight.lt(min);
+      min = min.blend(topRight, takeRight);
+      min.add(DoubleVector.fromArray(DOUBLES, energy, offset + x)).intoArray(next, x + 1);
+      IntVector columns = this.lanes.add(x);
+      columns.blend(columns.sub(1), takeLeft.cast(INTS))
+          .blend(columns.add(1), takeRight.cast(INTS)).intoArray(parents, offset + x);
+    }
+    if (x < w) {
+      this.minPlusAddTail(prev, energy, offset, next, parents, x, w);
+    }
+  }
+
+  // computes the columns of one DP row from the given start that did not fill a vector
+  private void minPlusAddTail(double[] prev, double[] energy, int offset, double[] next,
+      int[] parents, int start, int w) {
+    for (int x = start; x < w; x += 1) {
+      double minC = prev[x + 1];
+      int minIdx = x;
+      if (prev[x] < minC) {
+        minC = prev[x];
+        minIdx = x - 1;
+      }
+      if (prev[x + 2] < minC) {
+        minC = prev[x + 2];
+        minIdx = x + 1;
+      }
+      next[x + 1] = minC + energy[offset + x];
+      parents[offset + x] = minIdx;
+    }
+  }
+
+}